@@ -17,6 +17,7 @@ package okhttp3;
 
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
+import okhttp3.internal.ParseCache;
 import okhttp3.internal.http.HttpHeaders;
 
 /**
@@ -42,6 +43,9 @@ public final class CacheControl {
       .maxStale(Integer.MAX_VALUE, TimeUnit.SECONDS)
       .build();
 
+  /** Recently parsed Cache-Control header values. */
+  private static final ParseCache<CacheControl> CACHE = new ParseCache<>(64);
+
   private final boolean noCache;
   private final boolean noStore;
   private final int maxAgeSeconds;
@@ -165,6 +169,30 @@ public final class CacheControl {
    * headers if they are present.
    */
   public static CacheControl parse(Headers headers) {
+    // Cache the directives of a lone Cache-Control header. Other combinations are rare.
+    String cacheControl = null;
+    int cacheControlCount = 0;
+    for (int i = 0, size = headers.size(); i < size; i++) {
+      String name = headers.name(i);
+      if (name.equalsIgnoreCase("Cache-Control")) {
+        cacheControl = headers.value(i);
+        cacheControlCount++;
+      } else if (name.equalsIgnoreCase("Pragma")) {
+        cacheControlCount = -1;
+        break;
+      }
+    }
+    if (cacheControlCount != 1) return create(headers);
+
+    CacheControl result = CACHE.get(cacheControl);
+    if (result == null) {
+      result = create(headers);
+      CACHE.put(cacheControl, result);
+    }
+    return result;
+  }
+
+  private static CacheControl create(Headers headers) {
     boolean noCache = false;
     boolean noStore = false;
     int maxAgeSeconds = -1;
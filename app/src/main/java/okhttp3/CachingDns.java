@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2019 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import okhttp3.internal.Util;
+
+/**
+ * A {@link Dns} that caches the results of another. Each entry lives for its own time to live, and
+ * failed lookups are cached too so that a broken host name doesn't cost a lookup per call.
+ *
+ * <p>Entries that are still being used when they near their expiry are refreshed in the
+ * background, so that busy host names don't see lookups on the calling thread. If the delegate
+ * fails to resolve a host name that was resolved before, the previous addresses are served for a
+ * while longer. Concurrent lookups of the same host name share a single call to the delegate.
+ *
+ * <p>The cache is bounded. When it is full the entry that was used least recently is evicted.
+ *
+ * <pre>   {@code
+ *
+ *   OkHttpClient client = new OkHttpClient.Builder()
+ *       .dns(new CachingDns.Builder()
+ *           .ttl(30, TimeUnit.SECONDS)
+ *           .build())
+ *       .build();
+ * }</pre>
+ */
+public final class CachingDns implements Dns {
+  /** Refreshes entries in the background. Threads are only kept while refreshes are running. */
+  private static final Executor executor = new ThreadPoolExecutor(0 /* corePoolSize */,
+      Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
+      new SynchronousQueue<>(), Util.threadFactory("OkHttp Dns Refresh", true));
+
+  final Dns delegate;
+  final int maxEntries;
+  final long ttlNanos;
+  final long negativeTtlNanos;
+  final long staleTtlNanos;
+  final long refreshAfterNanos;
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Map<String, FutureTask<Entry>> lookups = new ConcurrentHashMap<>();
+
+  private final AtomicInteger hitCount = new AtomicInteger();
+  private final AtomicInteger missCount = new AtomicInteger();
+  private final AtomicInteger refreshCount = new AtomicInteger();
+  private final AtomicInteger staleHitCount = new AtomicInteger();
+
+  CachingDns(Builder builder) {
+    this.delegate = builder.delegate;
+    this.maxEntries = builder.maxEntries;
+    this.ttlNanos = builder.ttlNanos;
+    this.negativeTtlNanos = builder.negativeTtlNanos;
+    this.staleTtlNanos = builder.staleTtlNanos;
+    // Refresh entries that are used in the last quarter of their time to live.
+    this.refreshAfterNanos = ttlNanos - ttlNanos / 4;
+  }
+
+  @Override public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+    if (hostname == null) throw new UnknownHostException("hostname == null");
+
+    long now = System.nanoTime();
+    Entry entry = entries.get(hostname);
+    if (entry != null && entry.expiresAtNanos - now > 0) {
+      hitCount.incrementAndGet();
+      entry.lastUsedAtNanos = now;
+      if (entry.refreshAtNanos - now <= 0) {
+        refreshInBackground(entry);
+      }
+      return entry.get();
+    }
+
+    missCount.incrementAndGet();
+    return resolve(hostname).get();
+  }
+
+  /** Returns the number of lookups that were answered from the cache. */
+  public int hitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of lookups that had to wait for the delegate. */
+  public int missCount() {
+    return missCount.get();
+  }
+
+  /** Returns the number of entries that were refreshed in the background. */
+  public int refreshCount() {
+    return refreshCount.get();
+  }
+
+  /** Returns the number of failed lookups that were answered with expired addresses. */
+  public int staleHitCount() {
+    return staleHitCount.get();
+  }
+
+  /** Returns the number of host names in the cache, including failed ones. */
+  public int size() {
+    return entries.size();
+  }
+
+  /** Evicts every entry. Call this when the network changes. */
+  public void evictAll() {
+    entries.clear();
+  }
+
+  /** Looks up {@code hostname}, sharing the delegate call with concurrent misses. */
+  private Entry resolve(String hostname) throws UnknownHostException {
+    FutureTask<Entry> lookup = new FutureTask<>(() -> lookupAndCache(hostname));
+    FutureTask<Entry> existing = lookups.putIfAbsent(hostname, lookup);
+    if (existing != null) {
+      lookup = existing;
+    } else {
+      try {
+        lookup.run();
+      } finally {
+        lookups.remove(hostname, lookup);
+      }
+    }
+
+    try {
+      return lookup.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      UnknownHostException unknownHostException =
+          new UnknownHostException("Interrupted looking up " + hostname);
+      unknownHostException.initCause(e);
+      throw unknownHostException;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new AssertionError(cause); // The lookup only throws unchecked exceptions.
+    }
+  }
+
+  /**
+   * Calls the delegate and caches the result. If the delegate fails and the previous addresses are
+   * within their stale period, those addresses are cached again for the negative time to live.
+   */
+  private Entry lookupAndCache(String hostname) {
+    Entry result;
+    try {
+      List<InetAddress> addresses = delegate.lookup(hostname);
+      result = resolved(hostname, addresses, System.nanoTime());
+    } catch (UnknownHostException e) {
+      long now = System.nanoTime();
+      Entry previous = entries.get(hostname);
+      if (previous != null && previous.addresses != null && previous.staleUntilNanos - now > 0) {
+        staleHitCount.incrementAndGet();
+        long expiresAtNanos = now + Math.min(negativeTtlNanos, previous.staleUntilNanos - now);
+        result = new Entry(hostname, previous.addresses, null, now, expiresAtNanos,
+            expiresAtNanos, previous.staleUntilNanos);
+      } else {
+        long expiresAtNanos = now + negativeTtlNanos;
+        result = new Entry(hostname, null, e.getMessage(), now, expiresAtNanos, expiresAtNanos,
+            expiresAtNanos);
+      }
+    }
+    put(result);
+    return result;
+  }
+
+  private Entry resolved(String hostname, List<InetAddress> addresses, long now) {
+    return new Entry(hostname, Collections.unmodifiableList(addresses), null, now,
+        now + refreshAfterNanos, now + ttlNanos, now + ttlNanos + staleTtlNanos);
+  }
+
+  private void refreshInBackground(Entry entry) {
+    if (!entry.refreshing.compareAndSet(false, true)) return;
+    executor.execute(() -> {
+      try {
+        Entry refreshed = resolved(entry.hostname, delegate.lookup(entry.hostname),
+            System.nanoTime());
+        refreshed.lastUsedAtNanos = entry.lastUsedAtNanos;
+        entries.replace(entry.hostname, entry, refreshed);
+        refreshCount.incrementAndGet();
+      } catch (UnknownHostException ignored) {
+        // Keep the current entry. Once it expires a lookup will serve it stale or try again.
+      } finally {
+        entry.refreshing.set(false);
+      }
+    });
+  }
+
+  private void put(Entry entry) {
+    entries.put(entry.hostname, entry);
+    if (entries.size() > maxEntries) {
+      evictLeastRecentlyUsed(entry.lastUsedAtNanos);
+    }
+  }
+
+  /** Evicts expired entries, or the least recently used entry if none have expired. */
+  private void evictLeastRecentlyUsed(long now) {
+    Entry leastRecentlyUsed = null;
+    boolean evictedExpired = false;
+    for (Entry entry : entries.values()) {
+      if (entry.staleUntilNanos - now <= 0) {
+        evictedExpired |= entries.remove(entry.hostname, entry);
+      } else if (leastRecentlyUsed == null
+          || entry.lastUsedAtNanos - leastRecentlyUsed.lastUsedAtNanos < 0) {
+        leastRecentlyUsed = entry;
+      }
+    }
+    if (!evictedExpired && leastRecentlyUsed != null) {
+      entries.remove(leastRecentlyUsed.hostname, leastRecentlyUsed);
+    }
+  }
+
+  /**
+   * The outcome of looking up one host name: either its addresses or the failure's message. Failed
+   * entries and stale copies are never refreshed in the background, they expire first.
+   */
+  static final class Entry {
+    final String hostname;
+    final @Nullable List<InetAddress> addresses;
+    final @Nullable String failure;
+    final long refreshAtNanos;
+    final long expiresAtNanos;
+    final long staleUntilNanos;
+    final AtomicBoolean refreshing = new AtomicBoolean();
+    volatile long lastUsedAtNanos;
+
+    Entry(String hostname, @Nullable List<InetAddress> addresses, @Nullable String failure,
+        long now, long refreshAtNanos, long expiresAtNanos, long staleUntilNanos) {
+      this.hostname = hostname;
+      this.addresses = addresses;
+      this.failure = failure;
+      this.refreshAtNanos = refreshAtNanos;
+      this.expiresAtNanos = expiresAtNanos;
+      this.staleUntilNanos = staleUntilNanos;
+      this.lastUsedAtNanos = now;
+    }
+
+    List<InetAddress> get() throws UnknownHostException {
+      if (addresses != null) return addresses;
+      throw new UnknownHostException(failure);
+    }
+  }
+
+  public static final class Builder {
+    Dns delegate = Dns.SYSTEM;
+    int maxEntries = 256;
+    long ttlNanos = TimeUnit.SECONDS.toNanos(60);
+    long negativeTtlNanos = TimeUnit.SECONDS.toNanos(10);
+    long staleTtlNanos = TimeUnit.MINUTES.toNanos(5);
+
+    /** Sets the DNS that lookups are delegated to. The default is {@link Dns#SYSTEM}. */
+    public Builder delegate(Dns delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.delegate = delegate;
+      return this;
+    }
+
+    /** Sets the maximum number of host names to cache. The default is 256. */
+    public Builder maxEntries(int maxEntries) {
+      if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries <= 0: " + maxEntries);
+      this.maxEntries = maxEntries;
+      return this;
+    }
+
+    /** Sets how long resolved addresses are used for. The default is 60 seconds. */
+    public Builder ttl(long ttl, TimeUnit unit) {
+      this.ttlNanos = checkPositive("ttl", ttl, unit);
+      return this;
+    }
+
+    /** Sets how long a failed lookup is remembered for. The default is 10 seconds. */
+    public Builder negativeTtl(long negativeTtl, TimeUnit unit) {
+      this.negativeTtlNanos = checkPositive("negativeTtl", negativeTtl, unit);
+      return this;
+    }
+
+    /**
+     * Sets how long past their time to live addresses may be used if the delegate fails to resolve
+     * them again. Zero disables serving stale addresses. The default is 5 minutes.
+     */
+    public Builder staleTtl(long staleTtl, TimeUnit unit) {
+      if (staleTtl < 0) throw new IllegalArgumentException("staleTtl < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.staleTtlNanos = unit.toNanos(staleTtl);
+      return this;
+    }
+
+    public CachingDns build() {
+      return new CachingDns(this);
+    }
+
+    private static long checkPositive(String name, long duration, TimeUnit unit) {
+      if (duration <= 0) throw new IllegalArgumentException(name + " <= 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      return unit.toNanos(duration);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2019 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.util.concurrent.TimeUnit;
+import okhttp3.internal.http.RealCircuitBreaker;
+
+/**
+ * Limits the load that retries put on failing hosts. It bounds how often a client {@linkplain
+ * OkHttpClient.Builder#retryOnConnectionFailure retries} calls to each host, and stops calling a
+ * host for a while after its calls fail repeatedly.
+ *
+ * <p><strong>Retry budget.</strong> Each call to a host earns a fraction of a retry, up to a small
+ * reserve, and each retry spends a whole one. With the default ratio of 0.2, retries add at most
+ * about 20% to a host's load, even while every call to it fails. Repeated retries of a call wait a
+ * random backoff that grows with each retry. A retry is abandoned if its backoff would outlast the
+ * call's {@linkplain OkHttpClient.Builder#callTimeout timeout}.
+ *
+ * <p><strong>Circuit breaker.</strong> When consecutive calls to a host fail, its circuit
+ * {@linkplain State#OPEN opens}, and calls to that host fail immediately without being sent. After
+ * a while the circuit becomes {@linkplain State#HALF_OPEN half-open} and lets a single call
+ * through. If it succeeds the circuit {@linkplain State#CLOSED closes}; otherwise it opens again.
+ * Failures are calls that fail with I/O errors after any retries, and responses with status 502,
+ * 503 or 504. Transitions are reported to {@link EventListener#circuitStateChanged}.
+ *
+ * <pre>   {@code
+ *
+ *   OkHttpClient client = new OkHttpClient.Builder()
+ *       .circuitBreaker(new CircuitBreaker.Builder()
+ *           .failureThreshold(5)
+ *           .openDuration(10, TimeUnit.SECONDS)
+ *           .build())
+ *       .build();
+ * }</pre>
+ *
+ * <p>State is tracked per host name. Share a circuit breaker between clients that call the same
+ * hosts by sharing the client or passing the same instance to each.
+ */
+public final class CircuitBreaker {
+  final RealCircuitBreaker delegate;
+
+  CircuitBreaker(Builder builder) {
+    this.delegate = new RealCircuitBreaker(builder.retryRatio, builder.maxRetries,
+        builder.minBackoffNanos, builder.maxBackoffNanos, builder.failureThreshold,
+        builder.openDurationNanos);
+  }
+
+  /** Returns the state of the circuit to {@code host}. */
+  public State state(String host) {
+    return delegate.state(host);
+  }
+
+  public enum State {
+    /** Calls are made as usual. */
+    CLOSED,
+
+    /** Calls fail immediately. */
+    OPEN,
+
+    /** A single trial call is being made. Other calls fail immediately until it completes. */
+    HALF_OPEN,
+  }
+
+  public static final class Builder {
+    double retryRatio = 0.2;
+    int maxRetries = 10;
+    long minBackoffNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    long maxBackoffNanos = TimeUnit.SECONDS.toNanos(2);
+    int failureThreshold = 5;
+    long openDurationNanos = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Sets the retries that each call to a host earns. The default is 0.2, which permits one retry
+     * for every five calls.
+     */
+    public Builder retryRatio(double retryRatio) {
+      if (!(retryRatio >= 0.0 && retryRatio <= 1.0)) {
+        throw new IllegalArgumentException("retryRatio must be in [0, 1]: " + retryRatio);
+      }
+      this.retryRatio = retryRatio;
+      return this;
+    }
+
+    /** Sets how many unspent retries each host may accumulate. The default is 10. */
+    public Builder maxRetries(int maxRetries) {
+      if (maxRetries < 0) throw new IllegalArgumentException("maxRetries < 0: " + maxRetries);
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /**
+     * Sets the range of the backoff before a retry. A call's first retry is made immediately, as
+     * most recover from a stale pooled connection. The second waits a random duration of up to
+     * {@code min}, and each further retry doubles that bound, up to {@code max}. The defaults are
+     * 50 milliseconds and 2 seconds.
+     */
+    public Builder backoff(long min, long max, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (min < 0) throw new IllegalArgumentException("min < 0");
+      if (max < min) throw new IllegalArgumentException("max < min");
+      this.minBackoffNanos = unit.toNanos(min);
+      this.maxBackoffNanos = unit.toNanos(max);
+      return this;
+    }
+
+    /** Sets how many consecutive failures open a host's circuit. The default is 5. */
+    public Builder failureThreshold(int failureThreshold) {
+      if (failureThreshold < 1) {
+        throw new IllegalArgumentException("failureThreshold < 1: " + failureThreshold);
+      }
+      this.failureThreshold = failureThreshold;
+      return this;
+    }
+
+    /**
+     * Sets how long a circuit stays open before a trial call is let through. The default is 10
+     * seconds.
+     */
+    public Builder openDuration(long openDuration, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit == null");
+      if (openDuration < 0) throw new IllegalArgumentException("openDuration < 0");
+      this.openDurationNanos = unit.toNanos(openDuration);
+      return this;
+    }
+
+    public CircuitBreaker build() {
+      return new CircuitBreaker(this);
+    }
+  }
+}
@@ -30,14 +30,45 @@ public final class ConnectionPool {
   /**
    * Create a new connection pool with tuning parameters appropriate for a single-user application.
    * The tuning parameters in this pool are subject to change in future OkHttp releases. Currently
-   * this pool holds up to 5 idle connections which will be evicted after 5 minutes of inactivity.
+   * this pool holds up to 5 idle connections which will be evicted after 5 minutes of inactivity,
+   * and opens up to 4 HTTP/2 connections to each address.
    */
   public ConnectionPool() {
     this(5, 5, TimeUnit.MINUTES);
   }
 
   public ConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit) {
-    this.delegate = new RealConnectionPool(maxIdleConnections, keepAliveDuration, timeUnit);
+    this(maxIdleConnections, keepAliveDuration, timeUnit, 4);
+  }
+
+  /**
+   * Create a new connection pool that opens up to {@code maxHttp2ConnectionsPerAddress} HTTP/2
+   * connections to each address. Another connection is only opened when every existing one has
+   * reached the concurrent stream limit set by the server. Once this many are open, calls wait for
+   * a stream to be released instead.
+   */
+  public ConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit,
+      int maxHttp2ConnectionsPerAddress) {
+    this(maxIdleConnections, keepAliveDuration, timeUnit, maxHttp2ConnectionsPerAddress,
+        Integer.MAX_VALUE, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Create a new connection pool that holds at most {@code maxConnectionsPerAddress} connections to
+   * each address and {@code maxConnections} in total, counting both idle connections and those in
+   * use. Calls that need a new connection when the pool is full wait in the order they arrived
+   * until a connection can be reused or opened, for up to the {@linkplain
+   * OkHttpClient.Builder#connectTimeout connect timeout}. If only idle connections stand in the
+   * way, the one that has been idle longest is closed to make room. Time spent waiting is reported
+   * to {@link EventListener#connectionPoolWaited}.
+   *
+   * <p>Routes raced by {@linkplain OkHttpClient.Builder#fastFallback fast fallback} count as a
+   * single connection while they connect.
+   */
+  public ConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit,
+      int maxHttp2ConnectionsPerAddress, int maxConnectionsPerAddress, int maxConnections) {
+    this.delegate = new RealConnectionPool(maxIdleConnections, keepAliveDuration, timeUnit,
+        maxHttp2ConnectionsPerAddress, maxConnectionsPerAddress, maxConnections);
   }
 
   /** Returns the number of idle connections in the pool. */
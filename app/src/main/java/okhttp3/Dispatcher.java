@@ -15,16 +15,25 @@
  */
 package okhttp3;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.annotation.Nullable;
 import okhttp3.RealCall.AsyncCall;
 import okhttp3.internal.Util;
@@ -35,37 +44,125 @@ import okhttp3.internal.Util;
  * <p>Each dispatcher uses an {@link ExecutorService} to run calls internally. If you supply your
  * own executor, it should be able to run {@linkplain #getMaxRequests the configured maximum} number
  * of calls concurrently.
+ *
+ * <p>Ready calls are queued per host, and each host tracks its own count of running calls. Hosts
+ * that have ready calls and spare capacity wait in a shared run queue, so admitting a call costs
+ * the same no matter how many calls are queued or running. Calls to the same host run in the order
+ * they were enqueued; hosts take turns when the dispatcher is at {@linkplain #getMaxRequests
+ * capacity}.
+ *
+ * <p>By default every host may run up to {@linkplain #getMaxRequestsPerHost a fixed number} of
+ * calls. With {@linkplain #setAdaptiveMaxRequestsPerHost adaptive limits}, each host's limit is
+ * instead raised while its calls respond promptly and lowered when they slow down or fail.
+ *
+ * <p>Each async call's time in the queue is reported to {@link EventListener#dispatcherQueueStart}
+ * and {@link EventListener#dispatcherQueueEnd}. When overloaded, a dispatcher can {@linkplain
+ * #setMaxQueueWait shed} calls that have waited too long rather than run them late.
  */
 public final class Dispatcher {
-  private int maxRequests = 64;
-  private int maxRequestsPerHost = 5;
-  private @Nullable Runnable idleCallback;
+  /** How often every queued call is checked for shedding, at most. */
+  private static final long SHED_SWEEP_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+  /**
+   * Sweeps the queues of dispatchers that shed calls while none of their calls finish. Its thread
+   * exits after a minute without work.
+   */
+  private static final ScheduledThreadPoolExecutor shedTimer = newShedTimer();
+
+  private volatile int maxRequests = 64;
+  private volatile int maxRequestsPerHost = 5;
+  private volatile boolean adaptiveMaxRequestsPerHost;
+  private volatile long maxQueueWaitNanos;
+  private volatile boolean shedCallsPastTimeout;
+  private volatile @Nullable Runnable idleCallback;
+
+  /** True to run calls on virtual threads when the runtime supports them. */
+  private final boolean virtualThreads;
 
   /** Executes calls. Created lazily. */
-  private @Nullable ExecutorService executorService;
+  private volatile @Nullable ExecutorService executorService;
+
+  /** Per-host queues of ready calls, keyed by host name. Idle hosts are removed. */
+  private final ConcurrentHashMap<String, HostCalls> hostCalls = new ConcurrentHashMap<>();
+
+  /** Learned per-host limits, keyed by host name. These outlive idle hosts' queues. */
+  private final ConcurrentHashMap<String, AdaptiveLimit> adaptiveLimits = new ConcurrentHashMap<>();
+
+  /** Hosts that have ready calls and capacity to run them, in the order they'll be served. */
+  private final Queue<HostCalls> runnableHosts = new ConcurrentLinkedQueue<>();
 
-  /** Ready async calls in the order they'll be run. */
-  private final Deque<AsyncCall> readyAsyncCalls = new ArrayDeque<>();
+  /** Ready async calls in the order they were enqueued. */
+  private final Set<AsyncCall> readyAsyncCalls =
+      new ConcurrentSkipListSet<>(Comparator.comparingLong(call -> call.sequence));
+
+  /** The size of {@link #readyAsyncCalls}, which a skip list can't report in constant time. */
+  private final AtomicInteger readyAsyncCount = new AtomicInteger();
+
+  /** Orders {@link #readyAsyncCalls}. */
+  private final AtomicLong nextSequence = new AtomicLong();
 
   /** Running asynchronous calls. Includes canceled calls that haven't finished yet. */
-  private final Deque<AsyncCall> runningAsyncCalls = new ArrayDeque<>();
+  private final Set<AsyncCall> runningAsyncCalls = ConcurrentHashMap.newKeySet();
 
   /** Running synchronous calls. Includes canceled calls that haven't finished yet. */
-  private final Deque<RealCall> runningSyncCalls = new ArrayDeque<>();
+  private final Set<RealCall> runningSyncCalls = ConcurrentHashMap.newKeySet();
+
+  /** The number of async calls admitted to run. Only incremented by the promoting thread. */
+  private final AtomicInteger runningAsyncCount = new AtomicInteger();
+
+  /** Non-zero while a thread is promoting calls; counts requests to promote again. */
+  private final AtomicInteger promoteRequests = new AtomicInteger();
+
+  /** The number of queued calls failed without running. */
+  private final AtomicLong shedCallsCount = new AtomicLong();
+
+  /** When every ready call was last checked for shedding. Only used by the promoting thread. */
+  private long lastShedSweepNanos;
+
+  /** True while a sweep is scheduled on {@link #shedTimer}. */
+  private final AtomicBoolean shedSweepScheduled = new AtomicBoolean();
 
   public Dispatcher(ExecutorService executorService) {
     this.executorService = executorService;
+    this.virtualThreads = false;
   }
 
   public Dispatcher() {
+    this.virtualThreads = false;
   }
 
-  public synchronized ExecutorService executorService() {
-    if (executorService == null) {
-      executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
-          new SynchronousQueue<>(), Util.threadFactory("OkHttp Dispatcher", false));
+  private Dispatcher(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  /**
+   * Returns a dispatcher that runs each asynchronous call on its own virtual thread. Calls that
+   * block on socket reads then park a virtual thread rather than an OS thread, so it's practical to
+   * {@linkplain #setMaxRequests raise the limits} to thousands of concurrent calls.
+   *
+   * <p>Virtual threads require Java 21 or newer. On older runtimes, including Android, the returned
+   * dispatcher uses the same executor as {@link #Dispatcher()}.
+   */
+  public static Dispatcher virtualThreads() {
+    return new Dispatcher(true);
+  }
+
+  public ExecutorService executorService() {
+    ExecutorService result = executorService;
+    if (result == null) {
+      synchronized (this) {
+        result = executorService;
+        if (result == null && virtualThreads) {
+          executorService = result = Util.virtualThreadExecutor("OkHttp Dispatcher");
+        }
+        if (result == null) {
+          executorService = result = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+              TimeUnit.SECONDS, new SynchronousQueue<>(),
+              Util.threadFactory("OkHttp Dispatcher", false));
+        }
+      }
     }
-    return executorService;
+    return result;
   }
 
   /**
@@ -79,13 +176,11 @@ public final class Dispatcher {
     if (maxRequests < 1) {
       throw new IllegalArgumentException("max < 1: " + maxRequests);
     }
-    synchronized (this) {
-      this.maxRequests = maxRequests;
-    }
+    this.maxRequests = maxRequests;
     promoteAndExecute();
   }
 
-  public synchronized int getMaxRequests() {
+  public int getMaxRequests() {
     return maxRequests;
   }
 
@@ -104,16 +199,93 @@ public final class Dispatcher {
     if (maxRequestsPerHost < 1) {
       throw new IllegalArgumentException("max < 1: " + maxRequestsPerHost);
     }
-    synchronized (this) {
-      this.maxRequestsPerHost = maxRequestsPerHost;
+    this.maxRequestsPerHost = maxRequestsPerHost;
+    for (HostCalls host : hostCalls.values()) {
+      scheduleIfRunnable(host);
     }
     promoteAndExecute();
   }
 
-  public synchronized int getMaxRequestsPerHost() {
+  public int getMaxRequestsPerHost() {
     return maxRequestsPerHost;
   }
 
+  /**
+   * Configure this dispatcher to learn each host's limit from how its calls perform, rather than
+   * applying {@link #getMaxRequestsPerHost} to every host. Disabled by default.
+   *
+   * <p>A host's limit starts at {@link #getMaxRequestsPerHost}. It grows by about one call for
+   * each round of calls that responds within twice the host's fastest response time, while
+   * that limit is in use. It shrinks by 10% when a response is slower than that, and halves when a
+   * call fails or the host responds with 429 or 503. Limits stay between 1 and {@link
+   * #getMaxRequests}. Response time is measured until the response headers arrive.
+   *
+   * <p>Hosts keep their current limit when this is changed, until they next become idle.
+   */
+  public void setAdaptiveMaxRequestsPerHost(boolean adaptiveMaxRequestsPerHost) {
+    this.adaptiveMaxRequestsPerHost = adaptiveMaxRequestsPerHost;
+    if (!adaptiveMaxRequestsPerHost) adaptiveLimits.clear();
+  }
+
+  public boolean isAdaptiveMaxRequestsPerHost() {
+    return adaptiveMaxRequestsPerHost;
+  }
+
+  /**
+   * Returns the number of calls to {@code host} that may run concurrently. This is the {@linkplain
+   * #setAdaptiveMaxRequestsPerHost learned limit} of a host that has one, and otherwise {@link
+   * #getMaxRequestsPerHost}.
+   */
+  public int getMaxRequestsPerHost(String host) {
+    HostCalls hostCalls = this.hostCalls.get(host);
+    if (hostCalls != null) return maxRequestsPerHost(hostCalls);
+    AdaptiveLimit limit = adaptiveMaxRequestsPerHost ? adaptiveLimits.get(host) : null;
+    return limit != null ? limit.limit : maxRequestsPerHost;
+  }
+
+  /**
+   * Fail async calls that wait in this dispatcher's queue for longer than {@code maxQueueWait},
+   * rather than run them late. Zero, the default, lets calls wait indefinitely.
+   *
+   * <p>Shed calls fail with an {@link java.io.InterruptedIOException} and are never sent. Queued
+   * calls are checked every 50 ms while any are waiting, and as calls are enqueued and finish, so
+   * a call may wait somewhat longer than this before it fails.
+   */
+  public void setMaxQueueWait(long maxQueueWait, TimeUnit unit) {
+    if (maxQueueWait < 0) throw new IllegalArgumentException("maxQueueWait < 0: " + maxQueueWait);
+    if (unit == null) throw new NullPointerException("unit == null");
+    this.maxQueueWaitNanos = unit.toNanos(maxQueueWait);
+    promoteAndExecute();
+  }
+
+  /** Returns the longest a call may wait in the queue, or 0 if calls may wait indefinitely. */
+  public long getMaxQueueWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxQueueWaitNanos);
+  }
+
+  /**
+   * Configure this dispatcher to fail queued async calls that can no longer complete within their
+   * {@linkplain Call#timeout() call timeout}. Disabled by default.
+   *
+   * <p>A call is shed once its time in the queue plus its host's fastest response time reaches its
+   * timeout. Fastest response times are only known for hosts with {@linkplain
+   * #setAdaptiveMaxRequestsPerHost adaptive limits}; calls to other hosts are shed once their
+   * timeout has elapsed in the queue. Calls without a timeout are never shed by this policy.
+   */
+  public void setShedCallsPastTimeout(boolean shedCallsPastTimeout) {
+    this.shedCallsPastTimeout = shedCallsPastTimeout;
+    promoteAndExecute();
+  }
+
+  public boolean isShedCallsPastTimeout() {
+    return shedCallsPastTimeout;
+  }
+
+  /** Returns the number of queued calls this dispatcher has failed without running. */
+  public long shedCallsCount() {
+    return shedCallsCount.get();
+  }
+
   /**
    * Set a callback to be invoked each time the dispatcher becomes idle (when the number of running
    * calls returns to zero).
@@ -126,39 +298,43 @@ public final class Dispatcher {
    * means that if you are doing synchronous calls the network layer will not truly be idle until
    * every returned {@link Response} has been closed.
    */
-  public synchronized void setIdleCallback(@Nullable Runnable idleCallback) {
+  public void setIdleCallback(@Nullable Runnable idleCallback) {
     this.idleCallback = idleCallback;
   }
 
   void enqueue(AsyncCall call) {
-    synchronized (this) {
-      readyAsyncCalls.add(call);
-
-      // Mutate the AsyncCall so that it shares the AtomicInteger of an existing running call to
-      // the same host.
-      if (!call.get().forWebSocket) {
-        AsyncCall existingCall = findExistingCallWithHost(call.host());
-        if (existingCall != null) call.reuseCallsPerHostFrom(existingCall);
-      }
+    call.sequence = nextSequence.getAndIncrement();
+    readyAsyncCalls.add(call);
+    readyAsyncCount.incrementAndGet();
+
+    // Assign the call's host before it joins the host's queue, where another thread may take it.
+    HostCalls host;
+    if (call.get().forWebSocket) {
+      // Web sockets don't count against the per-host limit. Give each its own unshared queue.
+      host = new HostCalls(call.host(), false, null);
+      call.hostCalls = host;
+      host.ready.add(call);
+    } else {
+      // Add the call inside compute() so an idle host can't be removed out from under it.
+      host = hostCalls.compute(call.host(), (name, existing) -> {
+        HostCalls result = existing != null
+            ? existing
+            : new HostCalls(name, true, adaptiveLimit(name));
+        call.hostCalls = result;
+        result.ready.add(call);
+        return result;
+      });
     }
-    promoteAndExecute();
-  }
 
-  @Nullable private AsyncCall findExistingCallWithHost(String host) {
-    for (AsyncCall existingCall : runningAsyncCalls) {
-      if (existingCall.host().equals(host)) return existingCall;
-    }
-    for (AsyncCall existingCall : readyAsyncCalls) {
-      if (existingCall.host().equals(host)) return existingCall;
-    }
-    return null;
+    scheduleIfRunnable(host);
+    promoteAndExecute();
   }
 
   /**
    * Cancel all calls currently enqueued or executing. Includes calls executed both {@linkplain
    * Call#execute() synchronously} and {@linkplain Call#enqueue asynchronously}.
    */
-  public synchronized void cancelAll() {
+  public void cancelAll() {
     for (AsyncCall call : readyAsyncCalls) {
       call.get().cancel();
     }
@@ -172,73 +348,252 @@ public final class Dispatcher {
     }
   }
 
+  /** Returns the learned limit for {@code host}, or null if limits aren't adaptive. */
+  private @Nullable AdaptiveLimit adaptiveLimit(String host) {
+    if (!adaptiveMaxRequestsPerHost) return null;
+    AdaptiveLimit result = adaptiveLimits.get(host);
+    if (result == null) {
+      if (adaptiveLimits.size() >= AdaptiveLimit.MAX_HOSTS) {
+        // Forget an arbitrary host. Its queue keeps using its limit until it becomes idle.
+        for (String evicted : adaptiveLimits.keySet()) {
+          adaptiveLimits.remove(evicted);
+          break;
+        }
+      }
+      result = adaptiveLimits.computeIfAbsent(host, name -> new AdaptiveLimit(maxRequestsPerHost));
+    }
+    return result;
+  }
+
+  private int maxRequestsPerHost(HostCalls host) {
+    AdaptiveLimit limit = host.adaptiveLimit;
+    return limit != null ? limit.limit : maxRequestsPerHost;
+  }
+
+  /** Offers {@code host} to the run queue if it has ready calls and spare capacity. */
+  private void scheduleIfRunnable(HostCalls host) {
+    if (!host.ready.isEmpty()
+        && (!host.limited || host.running.get() < maxRequestsPerHost(host))
+        && host.scheduled.compareAndSet(false, true)) {
+      runnableHosts.add(host);
+    }
+  }
+
   /**
    * Promotes eligible calls from {@link #readyAsyncCalls} to {@link #runningAsyncCalls} and runs
    * them on the executor service. Must not be called with synchronization because executing calls
    * can call into user code.
    *
+   * <p>Only one thread promotes at a time. A thread that finds another one promoting records its
+   * request and returns immediately; the promoting thread loops until no requests are left.
+   *
    * @return true if the dispatcher is currently running calls.
    */
   private boolean promoteAndExecute() {
+    return promoteAndExecute(false);
+  }
+
+  /**
+   * @param callFinished true if a call just finished. If the dispatcher is then idle, the idle
+   *     callback runs. It also runs if calls were shed and none are left running.
+   */
+  private boolean promoteAndExecute(boolean callFinished) {
     assert (!Thread.holdsLock(this));
+    Runnable idleCallback = this.idleCallback;
+
+    boolean shedAny = false;
+    if (promoteRequests.getAndIncrement() == 0) {
+      List<AsyncCall> executableCalls = new ArrayList<>();
+      List<AsyncCall> shedCalls = new ArrayList<>();
+      int missed = 1;
+      while (true) {
+        promoteReadyCalls(executableCalls, shedCalls);
+        missed = promoteRequests.addAndGet(-missed);
+        if (missed == 0) break;
+      }
 
-    List<AsyncCall> executableCalls = new ArrayList<>();
-    boolean isRunning;
-    synchronized (this) {
-      for (Iterator<AsyncCall> i = readyAsyncCalls.iterator(); i.hasNext(); ) {
-        AsyncCall asyncCall = i.next();
+      for (int i = 0, size = executableCalls.size(); i < size; i++) {
+        AsyncCall asyncCall = executableCalls.get(i);
+        asyncCall.executeOn(executorService());
+      }
 
-        if (runningAsyncCalls.size() >= maxRequests) break; // Max capacity.
-        if (asyncCall.callsPerHost().get() >= maxRequestsPerHost) continue; // Host max capacity.
+      for (int i = 0, size = shedCalls.size(); i < size; i++) {
+        shedCalls.get(i).shed();
+      }
+      shedAny = !shedCalls.isEmpty();
 
-        i.remove();
-        asyncCall.callsPerHost().incrementAndGet();
-        executableCalls.add(asyncCall);
-        runningAsyncCalls.add(asyncCall);
+      if ((maxQueueWaitNanos != 0L || shedCallsPastTimeout) && readyAsyncCount.get() > 0) {
+        scheduleShedSweep();
       }
-      isRunning = runningCallsCount() > 0;
     }
 
-    for (int i = 0, size = executableCalls.size(); i < size; i++) {
-      AsyncCall asyncCall = executableCalls.get(i);
-      asyncCall.executeOn(executorService());
+    boolean isRunning = runningCallsCount() > 0;
+    if (!isRunning && (callFinished || shedAny) && idleCallback != null) {
+      idleCallback.run();
     }
-
     return isRunning;
   }
 
+  /**
+   * Sweeps the ready calls for shedding in a little while. Calls queued behind running calls that
+   * don't finish would otherwise wait until another call is enqueued.
+   */
+  private void scheduleShedSweep() {
+    if (!shedSweepScheduled.compareAndSet(false, true)) return;
+    try {
+      shedTimer.schedule(() -> {
+        shedSweepScheduled.set(false);
+        promoteAndExecute();
+      }, SHED_SWEEP_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      shedSweepScheduled.set(false);
+    }
+  }
+
+  private static ScheduledThreadPoolExecutor newShedTimer() {
+    ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1,
+        Util.threadFactory("OkHttp Dispatcher Shed Timer", true));
+    result.setKeepAliveTime(60, TimeUnit.SECONDS);
+    result.allowCoreThreadTimeOut(true);
+    return result;
+  }
+
+  /**
+   * Moves calls from the run queue to {@code executableCalls}, and calls that have waited too long
+   * to {@code shedCalls}. Called by one thread at a time.
+   */
+  private void promoteReadyCalls(List<AsyncCall> executableCalls, List<AsyncCall> shedCalls) {
+    boolean shedding = maxQueueWaitNanos != 0L || shedCallsPastTimeout;
+    long now = shedding ? System.nanoTime() : 0L;
+    if (shedding && now - lastShedSweepNanos >= SHED_SWEEP_INTERVAL_NANOS) {
+      // Calls behind a saturated dispatcher or host aren't polled, so look for them periodically.
+      lastShedSweepNanos = now;
+      for (AsyncCall call : readyAsyncCalls) {
+        HostCalls host = call.hostCalls;
+        if (host == null) continue; // Still being enqueued.
+        if (shouldShed(call, now) && host.ready.remove(call)) {
+          shed(call, shedCalls);
+          removeIfIdle(host);
+        }
+      }
+    }
+
+    while (runningAsyncCount.get() < maxRequests) {
+      HostCalls host = runnableHosts.poll();
+      if (host == null) break; // No runnable hosts.
+
+      // Reserve a slot before taking the call so the host never looks idle while we hold it.
+      int running = host.running.incrementAndGet();
+      AsyncCall asyncCall = host.limited && running > maxRequestsPerHost(host)
+          ? null // Host max capacity.
+          : pollReadyCall(host, shedding, now, shedCalls);
+      if (asyncCall == null) {
+        host.running.decrementAndGet();
+        if (shedding) removeIfIdle(host); // Its remaining calls may have been shed.
+        host.scheduled.set(false);
+        scheduleIfRunnable(host); // Recheck in case a call was enqueued or finished meanwhile.
+        continue;
+      }
+
+      runningAsyncCount.incrementAndGet();
+      removeReady(asyncCall);
+      runningAsyncCalls.add(asyncCall);
+      executableCalls.add(asyncCall);
+
+      // Send the host to the back of the run queue so other hosts get a turn.
+      host.scheduled.set(false);
+      scheduleIfRunnable(host);
+    }
+  }
+
+  /** Returns the next call of {@code host} to run, shedding any that have waited too long. */
+  private @Nullable AsyncCall pollReadyCall(
+      HostCalls host, boolean shedding, long now, List<AsyncCall> shedCalls) {
+    while (true) {
+      AsyncCall call = host.ready.poll();
+      if (call == null || !shedding || !shouldShed(call, now)) return call;
+      shed(call, shedCalls);
+    }
+  }
+
+  /** Returns true if {@code call} has waited in the queue too long to be worth running. */
+  private boolean shouldShed(AsyncCall call, long now) {
+    long waitedNanos = now - call.enqueuedAtNanos;
+    long maxQueueWaitNanos = this.maxQueueWaitNanos;
+    if (maxQueueWaitNanos != 0L && waitedNanos >= maxQueueWaitNanos) return true;
+    if (!shedCallsPastTimeout) return false;
+
+    long timeoutNanos = call.get().timeout().timeoutNanos();
+    if (timeoutNanos == 0L) return false;
+    AdaptiveLimit limit = call.hostCalls.adaptiveLimit;
+    long fastestResponseNanos = limit != null ? limit.fastestResponseNanos() : 0L;
+    return waitedNanos + fastestResponseNanos >= timeoutNanos;
+  }
+
+  /** Takes {@code call}, already removed from its host's queue, out of the ready calls. */
+  private void shed(AsyncCall call, List<AsyncCall> shedCalls) {
+    removeReady(call);
+    shedCallsCount.incrementAndGet();
+    shedCalls.add(call);
+  }
+
+  private void removeReady(AsyncCall call) {
+    if (readyAsyncCalls.remove(call)) readyAsyncCount.decrementAndGet();
+  }
+
+  private void removeIfIdle(HostCalls host) {
+    if (!host.limited) return;
+    hostCalls.computeIfPresent(host.name, (name, existing) ->
+        existing == host && existing.isIdle() ? null : existing);
+  }
+
   /** Used by {@code Call#execute} to signal it is in-flight. */
-  synchronized void executed(RealCall call) {
+  void executed(RealCall call) {
     runningSyncCalls.add(call);
   }
 
+  /**
+   * Used by {@code AsyncCall#run} to report how long {@code call} took to respond, or that it
+   * failed if {@code response} is null. Canceled calls aren't reported.
+   */
+  void responded(AsyncCall call, long tookNanos, @Nullable Response response) {
+    HostCalls host = call.hostCalls;
+    AdaptiveLimit limit = host.adaptiveLimit;
+    if (limit == null) return;
+
+    int inFlight = host.running.get();
+    if (response == null || response.code() == 429 || response.code() == 503) {
+      limit.overloaded();
+    } else {
+      limit.responded(tookNanos, inFlight, maxRequests);
+    }
+  }
+
   /** Used by {@code AsyncCall#run} to signal completion. */
   void finished(AsyncCall call) {
-    call.callsPerHost().decrementAndGet();
-    finished(runningAsyncCalls, call);
+    if (!runningAsyncCalls.remove(call)) throw new AssertionError("Call wasn't in-flight!");
+    runningAsyncCount.decrementAndGet();
+
+    HostCalls host = call.hostCalls;
+    host.running.decrementAndGet();
+    removeIfIdle(host);
+    scheduleIfRunnable(host);
+
+    finished();
   }
 
   /** Used by {@code Call#execute} to signal completion. */
   void finished(RealCall call) {
-    finished(runningSyncCalls, call);
+    if (!runningSyncCalls.remove(call)) throw new AssertionError("Call wasn't in-flight!");
+    finished();
   }
 
-  private <T> void finished(Deque<T> calls, T call) {
-    Runnable idleCallback;
-    synchronized (this) {
-      if (!calls.remove(call)) throw new AssertionError("Call wasn't in-flight!");
-      idleCallback = this.idleCallback;
-    }
-
-    boolean isRunning = promoteAndExecute();
-
-    if (!isRunning && idleCallback != null) {
-      idleCallback.run();
-    }
+  private void finished() {
+    promoteAndExecute(true);
   }
 
   /** Returns a snapshot of the calls currently awaiting execution. */
-  public synchronized List<Call> queuedCalls() {
+  public List<Call> queuedCalls() {
     List<Call> result = new ArrayList<>();
     for (AsyncCall asyncCall : readyAsyncCalls) {
       result.add(asyncCall.get());
@@ -247,7 +602,7 @@ public final class Dispatcher {
   }
 
   /** Returns a snapshot of the calls currently being executed. */
-  public synchronized List<Call> runningCalls() {
+  public List<Call> runningCalls() {
     List<Call> result = new ArrayList<>();
     result.addAll(runningSyncCalls);
     for (AsyncCall asyncCall : runningAsyncCalls) {
@@ -256,11 +611,153 @@ public final class Dispatcher {
     return Collections.unmodifiableList(result);
   }
 
-  public synchronized int queuedCallsCount() {
-    return readyAsyncCalls.size();
+  public int queuedCallsCount() {
+    return readyAsyncCount.get();
   }
 
-  public synchronized int runningCallsCount() {
-    return runningAsyncCalls.size() + runningSyncCalls.size();
+  public int runningCallsCount() {
+    return runningAsyncCount.get() + runningSyncCalls.size();
+  }
+
+  /** Ready calls and the running call count for a single host. */
+  static final class HostCalls {
+    final String name;
+
+    /** False for web sockets, which don't count against {@link #maxRequestsPerHost}. */
+    final boolean limited;
+
+    /** Ready calls in the order they'll be run. */
+    final Queue<AsyncCall> ready = new ConcurrentLinkedQueue<>();
+
+    /** Calls admitted to run, plus at most one slot reserved by the promoting thread. */
+    final AtomicInteger running = new AtomicInteger();
+
+    /** True while this host is in {@link #runnableHosts}. */
+    final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** This host's learned limit, or null to use {@link #maxRequestsPerHost}. */
+    final @Nullable AdaptiveLimit adaptiveLimit;
+
+    HostCalls(String name, boolean limited, @Nullable AdaptiveLimit adaptiveLimit) {
+      this.name = name;
+      this.limited = limited;
+      this.adaptiveLimit = adaptiveLimit;
+    }
+
+    boolean isIdle() {
+      return running.get() == 0 && ready.isEmpty();
+    }
+  }
+
+  /**
+   * A host's concurrency limit, adjusted by additive increase and multiplicative decrease. Slow
+   * responses are treated like losses, as TCP Vegas does with delay: a response much slower than
+   * the recent fastest one suggests requests are queueing at the host.
+   */
+  static final class AdaptiveLimit {
+    /** Hosts beyond this many are forgotten. */
+    static final int MAX_HOSTS = 1024;
+
+    /** Responses slower than this multiple of the fastest recent response shrink the limit. */
+    private static final long LATENCY_TOLERANCE = 2L;
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    /**
+     * The baseline is the fastest response among the last one or two windows of this many. Older
+     * responses are forgotten, so a host that becomes slower for good gets a new baseline.
+     */
+    static final int BASELINE_WINDOW = 100;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** The limit, rounded down. */
+    volatile int limit;
+
+    /** The limit, including fractional growth. Guarded by lock. */
+    private double estimate;
+
+    /** Responses to ignore before the limit may shrink again. Guarded by lock. */
+    private int samplesUntilDecrease;
+
+    /** The fastest response of the current window, and of the one before it. Guarded by lock. */
+    private long windowFastestNanos = Long.MAX_VALUE;
+    private long previousWindowFastestNanos = Long.MAX_VALUE;
+
+    /** Responses in the current window. Guarded by lock. */
+    private int windowSize;
+
+    AdaptiveLimit(int initialLimit) {
+      this.estimate = initialLimit;
+      this.limit = initialLimit;
+    }
+
+    void responded(long tookNanos, int inFlight, int maxLimit) {
+      lock.lock();
+      try {
+        windowFastestNanos = Math.min(windowFastestNanos, tookNanos);
+        if (++windowSize == BASELINE_WINDOW) {
+          previousWindowFastestNanos = windowFastestNanos;
+          windowFastestNanos = Long.MAX_VALUE;
+          windowSize = 0;
+        }
+
+        if (tookNanos > baselineNanos() * LATENCY_TOLERANCE) {
+          if (limit == 1) {
+            // Calls can't be queueing behind each other, so the host has become slower.
+            windowFastestNanos = tookNanos;
+            previousWindowFastestNanos = tookNanos;
+            windowSize = 0;
+            return;
+          }
+          decrease(BACKOFF_RATIO);
+        } else if (inFlight * 2 >= limit) {
+          // Only grow a limit that's in use, or it could grow without bound while idle.
+          if (samplesUntilDecrease > 0) samplesUntilDecrease--;
+          estimate = Math.min(maxLimit, estimate + 1.0 / estimate);
+          limit = (int) estimate;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Returns the host's fastest recent response time, or 0 if none has been measured. */
+    long fastestResponseNanos() {
+      lock.lock();
+      try {
+        long result = baselineNanos();
+        return result != Long.MAX_VALUE ? result : 0L;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private long baselineNanos() {
+      return Math.min(windowFastestNanos, previousWindowFastestNanos);
+    }
+
+    void overloaded() {
+      lock.lock();
+      try {
+        decrease(0.5);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Shrinks the limit unless it shrank within the last round of calls. Calls that were already
+     * running when it shrank shouldn't shrink it again.
+     */
+    private void decrease(double ratio) {
+      if (samplesUntilDecrease > 0) {
+        samplesUntilDecrease--;
+        return;
+      }
+      estimate = Math.max(1.0, estimate * ratio);
+      limit = (int) estimate;
+      samplesUntilDecrease = limit;
+    }
   }
 }
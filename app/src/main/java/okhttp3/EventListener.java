@@ -68,6 +68,25 @@ public abstract class EventListener {
   public void callStart(Call call) {
   }
 
+  /**
+   * Invoked when an {@linkplain Call#enqueue asynchronous call} starts waiting in its client's
+   * {@link Dispatcher} queue for a thread to run on.
+   *
+   * <p>This method is invoked after {@link #callStart(Call)}.
+   */
+  public void dispatcherQueueStart(Call call) {
+  }
+
+  /**
+   * Invoked when an asynchronous call leaves its dispatcher's queue, either to start running or
+   * because the dispatcher {@linkplain Dispatcher#setMaxQueueWait shed} it. A shed call then fails
+   * without making any requests.
+   *
+   * <p>This method is always invoked after {@link #dispatcherQueueStart(Call)}.
+   */
+  public void dispatcherQueueEnd(Call call) {
+  }
+
   /**
    * Invoked just prior to a DNS lookup. See {@link Dns#lookup(String)}.
    *
@@ -146,6 +165,18 @@ public abstract class EventListener {
       @Nullable Protocol protocol, IOException ioe) {
   }
 
+  /**
+   * Invoked after the {@code call} waited for the {@link ConnectionPool} because it was at a limit:
+   * either every HTTP/2 connection to {@code address} was at its stream limit, or the pool had as
+   * many connections as it permits. {@code waitNanos} is how long the call waited, whether or not
+   * it then got a connection.
+   *
+   * <p>This can be invoked more than 1 time for a single {@link Call}. For example, if the response
+   * to the {@link Call#request()} is a redirect to a different address, or a connection is retried.
+   */
+  public void connectionPoolWaited(Call call, Address address, long waitNanos) {
+  }
+
   /**
    * Invoked after a connection has been acquired for the {@code call}.
    *
@@ -291,6 +322,15 @@ public abstract class EventListener {
   public void callFailed(Call call, IOException ioe) {
   }
 
+  /**
+   * Invoked when the client's {@link CircuitBreaker} changes the state of the circuit to {@code
+   * host}. {@code call} is the call whose request or result caused the change.
+   *
+   * <p>This method is invoked between {@link #callStart(Call)} and the end of the call.
+   */
+  public void circuitStateChanged(Call call, String host, CircuitBreaker.State state) {
+  }
+
   public interface Factory {
     /**
      * Creates an instance of the {@link EventListener} for a particular {@link Call}. The returned
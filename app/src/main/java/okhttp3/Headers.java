@@ -50,19 +50,28 @@ import okhttp3.internal.http.HttpDate;
  * <p>Instances of this class are immutable. Use {@link Builder} to create instances.
  */
 public final class Headers {
+  /** Headers with at least this many fields are indexed by name when they're first queried. */
+  private static final int INDEX_THRESHOLD = 16;
+
   private final String[] namesAndValues;
 
+  /** A hash index of the field names, or null if it isn't built yet or these headers are small. */
+  private @Nullable Index index;
+
   Headers(Builder builder) {
     this.namesAndValues = builder.namesAndValues.toArray(new String[builder.namesAndValues.size()]);
   }
 
-  private Headers(String[] namesAndValues) {
+  Headers(String[] namesAndValues) {
     this.namesAndValues = namesAndValues;
   }
 
   /** Returns the last value corresponding to the specified field, or null. */
   public @Nullable String get(String name) {
-    return get(namesAndValues, name);
+    Index index = index();
+    if (index == null) return get(namesAndValues, name);
+    int i = index.last(namesAndValues, name);
+    return i != -1 ? value(i) : null;
   }
 
   /**
@@ -110,6 +119,17 @@ public final class Headers {
 
   /** Returns an immutable list of the header values for {@code name}. */
   public List<String> values(String name) {
+    Index index = index();
+    if (index != null) {
+      int last = index.last(namesAndValues, name);
+      if (last == -1) return Collections.emptyList();
+      int count = 0;
+      for (int i = last; i != -1; i = index.previous[i]) count++;
+      String[] values = new String[count];
+      for (int i = last; i != -1; i = index.previous[i]) values[--count] = value(i);
+      return Collections.unmodifiableList(Arrays.asList(values));
+    }
+
     List<String> result = null;
     for (int i = 0, size = size(); i < size; i++) {
       if (name.equalsIgnoreCase(name(i))) {
@@ -202,6 +222,20 @@ public final class Headers {
     return result;
   }
 
+  /**
+   * Returns the index of these headers, building it if necessary. Racing threads may each build
+   * one; they're equivalent and safely published because all of their fields are final.
+   */
+  private @Nullable Index index() {
+    if (namesAndValues.length < INDEX_THRESHOLD * 2) return null;
+    Index result = index;
+    if (result == null) {
+      result = new Index(namesAndValues);
+      index = result;
+    }
+    return result;
+  }
+
   private static @Nullable String get(String[] namesAndValues, String name) {
     for (int i = namesAndValues.length - 2; i >= 0; i -= 2) {
       if (name.equalsIgnoreCase(namesAndValues[i])) {
@@ -287,6 +321,59 @@ public final class Headers {
     }
   }
 
+  /**
+   * An open-addressed hash table from case-insensitive field names to the position of their last
+   * field. Earlier fields with the same name are chained through {@link #previous}.
+   */
+  private static final class Index {
+    /** Field positions plus one, so that zero marks an empty slot. */
+    final int[] slots;
+
+    /** The position of the previous field with the same name, or -1 if there is none. */
+    final int[] previous;
+
+    Index(String[] namesAndValues) {
+      int size = namesAndValues.length / 2;
+      slots = new int[Integer.highestOneBit(size) * 4];
+      previous = new int[size];
+      int mask = slots.length - 1;
+      for (int i = 0; i < size; i++) {
+        String name = namesAndValues[i * 2];
+        int slot = hash(name) & mask;
+        while (slots[slot] != 0 && !name.equalsIgnoreCase(namesAndValues[(slots[slot] - 1) * 2])) {
+          slot = (slot + 1) & mask;
+        }
+        previous[i] = slots[slot] - 1;
+        slots[slot] = i + 1;
+      }
+    }
+
+    /** Returns the position of the last field named {@code name}, or -1 if there is none. */
+    int last(String[] namesAndValues, String name) {
+      int mask = slots.length - 1;
+      for (int slot = hash(name) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+        int i = slots[slot] - 1;
+        if (name.equalsIgnoreCase(namesAndValues[i * 2])) return i;
+      }
+      return -1;
+    }
+
+    /** A hash that agrees with {@link String#equalsIgnoreCase}. */
+    static int hash(String name) {
+      int result = 0;
+      for (int i = 0, length = name.length(); i < length; i++) {
+        char c = name.charAt(i);
+        if (c >= 'A' && c <= 'Z') {
+          c += 'a' - 'A';
+        } else if (c >= 0x80) {
+          c = Character.toLowerCase(Character.toUpperCase(c));
+        }
+        result = 31 * result + c;
+      }
+      return result ^ (result >>> 16);
+    }
+  }
+
   public static final class Builder {
     final List<String> namesAndValues = new ArrayList<>(20);
 
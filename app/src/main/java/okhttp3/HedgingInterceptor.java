@@ -0,0 +1,552 @@
+/*
+ * Copyright (C) 2019 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import okhttp3.internal.Util;
+
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * An application interceptor that cuts tail latency by hedging. When a call takes longer than most
+ * recent calls to the same host, it sends a duplicate request, uses whichever response arrives
+ * first and cancels the other.
+ *
+ * <p>Only GET, HEAD and OPTIONS requests are hedged. The delay before hedging is a percentile of
+ * the host's recent response times, measured to the response headers. Calls to a host aren't
+ * hedged until enough of its calls have completed to estimate that percentile.
+ *
+ * <p>A budget caps the extra load. Each eligible call earns a fraction of a hedge, and each hedge
+ * spends a whole one. With the default budget of 10%, at most about one call in ten is hedged,
+ * even if a host slows down entirely.
+ *
+ * <p>While a call may be hedged, its original request is made on the calling thread, and the
+ * duplicate is made on a background thread only once the delay has passed. Each continues the
+ * call's chain from the interceptor after this one: interceptors added before this one see the call
+ * once, and those added after it see each request. Canceling the call cancels both requests.
+ *
+ * <p>Hedging changes the events a call reports. The call's event listener sees the original
+ * request's events, from DNS to the response body, as events of the call. The duplicate request's
+ * events aren't reported, so connections and responses used only by a winning duplicate don't
+ * appear. The call reports {@link EventListener#callEnd callEnd} when the response headers are
+ * returned, rather than when the response body is closed.
+ *
+ * <pre>   {@code
+ *
+ *   OkHttpClient client = new OkHttpClient.Builder()
+ *       .addInterceptor(new HedgingInterceptor.Builder()
+ *           .percentile(95.0)
+ *           .budgetPercent(10)
+ *           .build())
+ *       .build();
+ * }</pre>
+ */
+public final class HedgingInterceptor implements Interceptor {
+  /** Runs duplicate requests. Threads are only kept while duplicates are running. */
+  private static final Executor executor = new ThreadPoolExecutor(0 /* corePoolSize */,
+      Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
+      new SynchronousQueue<>(), Util.threadFactory("OkHttp Hedging", true));
+
+  /** Sends duplicate requests once their delay has passed. */
+  private static final ScheduledThreadPoolExecutor timer = newTimer();
+
+  /** The number of recent response times that each host's percentile is computed from. */
+  private static final int WINDOW = 128;
+
+  /** The percentile is recomputed after this many new response times. */
+  private static final int RECOMPUTE_INTERVAL = 16;
+
+  /** Hosts beyond this many aren't tracked, and their calls aren't hedged. */
+  private static final int MAX_HOSTS = 256;
+
+  /** One hedge, in thousandths. */
+  private static final long HEDGE_COST = 1000L;
+
+  final double percentile;
+  final int minSamples;
+  final long minDelayNanos;
+  final long budgetEarnedPerCall;
+  final long maxBudget;
+
+  private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+  /** The hedges that may be sent now, in thousandths of a hedge. */
+  private final AtomicLong budget = new AtomicLong();
+
+  private final AtomicInteger hedgeCount = new AtomicInteger();
+  private final AtomicInteger hedgeWinCount = new AtomicInteger();
+
+  HedgingInterceptor(Builder builder) {
+    this.percentile = builder.percentile;
+    this.minSamples = builder.minSamples;
+    this.minDelayNanos = builder.minDelayNanos;
+    this.budgetEarnedPerCall = builder.budgetPercent * HEDGE_COST / 100;
+    this.maxBudget = builder.maxBurst * HEDGE_COST;
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    if (!isHedgeable(request) || !(chain.call() instanceof RealCall)) {
+      return chain.proceed(request);
+    }
+
+    Host host = host(request.url().host());
+    if (host == null) return chain.proceed(request);
+    earnBudget();
+
+    long hedgeDelayNanos = host.hedgeDelayNanos;
+    if (hedgeDelayNanos == -1L || budget.get() < HEDGE_COST) {
+      long start = System.nanoTime();
+      Response response = chain.proceed(request);
+      host.record(System.nanoTime() - start);
+      return response;
+    }
+
+    return race(chain, request, host, hedgeDelayNanos);
+  }
+
+  /** Returns the number of duplicate requests that were sent. */
+  public int hedgeCount() {
+    return hedgeCount.get();
+  }
+
+  /** Returns the number of calls whose duplicate request responded first. */
+  public int hedgeWinCount() {
+    return hedgeWinCount.get();
+  }
+
+  private boolean isHedgeable(Request request) {
+    String method = request.method();
+    return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS");
+  }
+
+  private @Nullable Host host(String hostname) {
+    Host result = hosts.get(hostname);
+    if (result == null && hosts.size() < MAX_HOSTS) {
+      result = hosts.computeIfAbsent(hostname, name -> new Host());
+    }
+    return result;
+  }
+
+  private void earnBudget() {
+    for (long current; (current = budget.get()) < maxBudget; ) {
+      if (budget.compareAndSet(current, Math.min(maxBudget, current + budgetEarnedPerCall))) return;
+    }
+  }
+
+  private boolean spendBudget() {
+    for (long current; (current = budget.get()) >= HEDGE_COST; ) {
+      if (budget.compareAndSet(current, current - HEDGE_COST)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Executes {@code request} on this thread, and again on a background thread if it hasn't
+   * responded after {@code hedgeDelayNanos}. Returns the first response.
+   */
+  private Response race(Chain chain, Request request, Host host, long hedgeDelayNanos)
+      throws IOException {
+    RealCall call = (RealCall) chain.call();
+    Race race = new Race(call);
+    Attempt primary = new Attempt(race,
+        newAttemptCall(chain, request, new PrimaryEventListener(call, call.eventListener())));
+    race.attempts[race.attemptCount++] = primary;
+    race.running++;
+    ScheduledFuture<?> hedgeTimer = timer.schedule(() -> {
+      Attempt hedge = race.startHedge(newAttemptCall(chain, request, EventListener.NONE));
+      if (hedge == null) return;
+      executor.execute(() -> {
+        String oldName = Thread.currentThread().getName();
+        Thread.currentThread().setName("OkHttp Hedging " + request.url().redact());
+        try {
+          hedge.run();
+        } finally {
+          Thread.currentThread().setName(oldName);
+        }
+      });
+    }, hedgeDelayNanos, TimeUnit.NANOSECONDS);
+
+    long start = System.nanoTime();
+    primary.run();
+    hedgeTimer.cancel(false);
+
+    Attempt hedge;
+    race.lock.lock();
+    try {
+      race.open = false; // Too late to hedge.
+      while (race.winner == null && race.running > 0) {
+        race.settled.await();
+      }
+      hedge = race.attemptCount > 1 ? race.attempts[1] : null;
+    } catch (InterruptedException e) {
+      race.cancelLosers();
+      throw new InterruptedIOException();
+    } finally {
+      race.lock.unlock();
+    }
+
+    Attempt winner = race.winner;
+    if (winner == null) {
+      // Every attempt failed. Report the original request's failure.
+      if (hedge != null && hedge.failure != null) primary.failure.addSuppressed(hedge.failure);
+      throw rethrow(primary.failure);
+    }
+
+    if (winner == primary) {
+      host.record(winner.elapsedNanos);
+    } else {
+      // The original request hadn't responded. Record how long it took so far, which keeps the
+      // percentile from forgetting slow responses because they were canceled.
+      host.record(System.nanoTime() - start);
+      hedgeWinCount.incrementAndGet();
+    }
+    return winner.response;
+  }
+
+  /** Returns a call that continues {@code chain} after this interceptor. */
+  private RealCall newAttemptCall(Chain chain, Request request, EventListener eventListener) {
+    OkHttpClient client = ((RealCall) chain.call()).client;
+    RealCall result = RealCall.newRealCall(client, request, eventListener);
+    result.resumeAfter(this, chain);
+    result.timeout().timeout(0L, TimeUnit.NANOSECONDS); // The call's own timeout cancels it.
+    return result;
+  }
+
+  private static IOException rethrow(Throwable failure) {
+    if (failure instanceof IOException) return (IOException) failure;
+    if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+    if (failure instanceof Error) throw (Error) failure;
+    return new IOException(failure);
+  }
+
+  private static ScheduledThreadPoolExecutor newTimer() {
+    ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1,
+        Util.threadFactory("OkHttp Hedging Timer", true));
+    result.setKeepAliveTime(60, TimeUnit.SECONDS);
+    result.allowCoreThreadTimeOut(true);
+    result.setRemoveOnCancelPolicy(true);
+    return result;
+  }
+
+  /** The recent response times of one host. */
+  final class Host {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long[] samples = new long[WINDOW];
+    private int sampleCount;
+    private int next;
+
+    /** How long to wait before hedging, or -1 if there aren't enough samples. */
+    volatile long hedgeDelayNanos = -1L;
+
+    void record(long nanos) {
+      lock.lock();
+      try {
+        samples[next] = nanos;
+        next = (next + 1) % WINDOW;
+        if (sampleCount < WINDOW) sampleCount++;
+        if (sampleCount < minSamples) return;
+        if (hedgeDelayNanos != -1L && next % RECOMPUTE_INTERVAL != 0) return;
+
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(sampleCount * percentile / 100.0) - 1;
+        hedgeDelayNanos = Math.max(minDelayNanos, sorted[Math.max(0, rank)]);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /** Attempts of one call. The first to respond wins; the others are canceled. */
+  final class Race {
+    final RealCall call;
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition settled = lock.newCondition();
+    final Attempt[] attempts = new Attempt[2];
+    int attemptCount;
+    int running;
+    @Nullable Attempt winner;
+
+    /** False once the original request is done; a duplicate is no longer sent after that. */
+    boolean open = true;
+
+    Race(RealCall call) {
+      this.call = call;
+    }
+
+    /** Returns the duplicate attempt to run, or null if it isn't needed or the budget is spent. */
+    @Nullable Attempt startHedge(RealCall attemptCall) {
+      lock.lock();
+      try {
+        if (!open || winner != null || !spendBudget()) return null;
+        hedgeCount.incrementAndGet();
+        Attempt attempt = new Attempt(this, attemptCall);
+        attempts[attemptCount++] = attempt;
+        running++;
+        return attempt;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void cancelLosers() {
+      Attempt[] toCancel;
+      Attempt keep;
+      lock.lock();
+      try {
+        toCancel = Arrays.copyOf(attempts, attemptCount);
+        keep = winner;
+      } finally {
+        lock.unlock();
+      }
+      for (Attempt attempt : toCancel) {
+        if (attempt != keep) attempt.call.cancel();
+      }
+    }
+  }
+
+  static final class Attempt implements Runnable {
+    final Race race;
+    final RealCall call;
+    @Nullable Response response;
+    @Nullable Throwable failure;
+    long elapsedNanos;
+
+    Attempt(Race race, RealCall call) {
+      this.race = race;
+      this.call = call;
+    }
+
+    @Override public void run() {
+      Response result = null;
+      Throwable error = null;
+      long start = System.nanoTime();
+      race.call.addAttempt(call);
+      try {
+        result = call.execute();
+      } catch (Throwable t) {
+        error = t;
+      } finally {
+        race.call.removeAttempt(call);
+      }
+
+      boolean lost;
+      boolean won = false;
+      race.lock.lock();
+      try {
+        response = result;
+        failure = error;
+        elapsedNanos = System.nanoTime() - start;
+        lost = result != null && race.winner != null;
+        if (result != null && race.winner == null) {
+          race.winner = this;
+          won = true;
+        }
+        race.running--;
+        race.settled.signalAll();
+      } finally {
+        race.lock.unlock();
+      }
+      if (lost) closeQuietly(result);
+      if (won) race.cancelLosers();
+    }
+  }
+
+  /**
+   * Reports the original request's events to the call's event listener as events of the call. The
+   * call reports its own start and end.
+   */
+  static final class PrimaryEventListener extends EventListener {
+    private final Call call;
+    private final EventListener delegate;
+
+    PrimaryEventListener(Call call, EventListener delegate) {
+      this.call = call;
+      this.delegate = delegate;
+    }
+
+    @Override public void dnsStart(Call attempt, String domainName) {
+      delegate.dnsStart(call, domainName);
+    }
+
+    @Override public void dnsEnd(
+        Call attempt, String domainName, List<InetAddress> inetAddressList) {
+      delegate.dnsEnd(call, domainName, inetAddressList);
+    }
+
+    @Override public void connectStart(
+        Call attempt, InetSocketAddress inetSocketAddress, Proxy proxy) {
+      delegate.connectStart(call, inetSocketAddress, proxy);
+    }
+
+    @Override public void secureConnectStart(Call attempt) {
+      delegate.secureConnectStart(call);
+    }
+
+    @Override public void secureConnectEnd(Call attempt, @Nullable Handshake handshake) {
+      delegate.secureConnectEnd(call, handshake);
+    }
+
+    @Override public void connectEnd(Call attempt, InetSocketAddress inetSocketAddress,
+        Proxy proxy, @Nullable Protocol protocol) {
+      delegate.connectEnd(call, inetSocketAddress, proxy, protocol);
+    }
+
+    @Override public void connectFailed(Call attempt, InetSocketAddress inetSocketAddress,
+        Proxy proxy, @Nullable Protocol protocol, IOException ioe) {
+      delegate.connectFailed(call, inetSocketAddress, proxy, protocol, ioe);
+    }
+
+    @Override public void connectionPoolWaited(Call attempt, Address address, long waitNanos) {
+      delegate.connectionPoolWaited(call, address, waitNanos);
+    }
+
+    @Override public void connectionAcquired(Call attempt, Connection connection) {
+      delegate.connectionAcquired(call, connection);
+    }
+
+    @Override public void connectionReleased(Call attempt, Connection connection) {
+      delegate.connectionReleased(call, connection);
+    }
+
+    @Override public void requestHeadersStart(Call attempt) {
+      delegate.requestHeadersStart(call);
+    }
+
+    @Override public void requestHeadersEnd(Call attempt, Request request) {
+      delegate.requestHeadersEnd(call, request);
+    }
+
+    @Override public void requestBodyStart(Call attempt) {
+      delegate.requestBodyStart(call);
+    }
+
+    @Override public void requestBodyEnd(Call attempt, long byteCount) {
+      delegate.requestBodyEnd(call, byteCount);
+    }
+
+    @Override public void requestFailed(Call attempt, IOException ioe) {
+      delegate.requestFailed(call, ioe);
+    }
+
+    @Override public void responseHeadersStart(Call attempt) {
+      delegate.responseHeadersStart(call);
+    }
+
+    @Override public void responseHeadersEnd(Call attempt, Response response) {
+      delegate.responseHeadersEnd(call, response);
+    }
+
+    @Override public void responseBodyStart(Call attempt) {
+      delegate.responseBodyStart(call);
+    }
+
+    @Override public void responseBodyEnd(Call attempt, long byteCount) {
+      delegate.responseBodyEnd(call, byteCount);
+    }
+
+    @Override public void responseFailed(Call attempt, IOException ioe) {
+      delegate.responseFailed(call, ioe);
+    }
+
+    @Override public void circuitStateChanged(
+        Call attempt, String host, CircuitBreaker.State state) {
+      delegate.circuitStateChanged(call, host, state);
+    }
+  }
+
+  public static final class Builder {
+    double percentile = 95.0;
+    int minSamples = 20;
+    long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(10);
+    long budgetPercent = 10;
+    long maxBurst = 10;
+
+    /**
+     * Sets the percentile of a host's recent response times after which a call is hedged. The
+     * default is 95, which hedges the slowest 5% of calls, budget permitting.
+     */
+    public Builder percentile(double percentile) {
+      if (!(percentile > 0.0 && percentile < 100.0)) {
+        throw new IllegalArgumentException("percentile must be in (0, 100): " + percentile);
+      }
+      this.percentile = percentile;
+      return this;
+    }
+
+    /**
+     * Sets how many calls to a host must complete before its calls are hedged. The default is 20.
+     */
+    public Builder minSamples(int minSamples) {
+      if (minSamples < 1 || minSamples > WINDOW) {
+        throw new IllegalArgumentException("minSamples must be in [1, " + WINDOW + "]");
+      }
+      this.minSamples = minSamples;
+      return this;
+    }
+
+    /** Sets the shortest delay before hedging a call. The default is 10 milliseconds. */
+    public Builder minDelay(long minDelay, TimeUnit unit) {
+      if (minDelay < 0) throw new IllegalArgumentException("minDelay < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.minDelayNanos = unit.toNanos(minDelay);
+      return this;
+    }
+
+    /**
+     * Sets the most hedges to send, as a percentage of eligible calls. The default is 10. Unused
+     * budget accumulates for bursts of up to {@link #maxBurst} hedges.
+     */
+    public Builder budgetPercent(int budgetPercent) {
+      if (budgetPercent < 0 || budgetPercent > 100) {
+        throw new IllegalArgumentException("budgetPercent must be in [0, 100]: " + budgetPercent);
+      }
+      this.budgetPercent = budgetPercent;
+      return this;
+    }
+
+    /** Sets how many hedges may be sent in a burst. The default is 10. */
+    public Builder maxBurst(int maxBurst) {
+      if (maxBurst < 1) throw new IllegalArgumentException("maxBurst < 1: " + maxBurst);
+      this.maxBurst = maxBurst;
+      return this;
+    }
+
+    public HedgingInterceptor build() {
+      return new HedgingInterceptor(this);
+    }
+  }
+}
@@ -28,6 +28,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import javax.annotation.Nullable;
+import okhttp3.internal.ParseCache;
 import okhttp3.internal.Util;
 import okhttp3.internal.publicsuffix.PublicSuffixDatabase;
 import okio.Buffer;
@@ -302,6 +303,9 @@ public final class HttpUrl {
   static final String FRAGMENT_ENCODE_SET = "";
   static final String FRAGMENT_ENCODE_SET_URI = " \"#<>\\^`{|}";
 
+  /** Recently canonicalized hosts, so that URLs for the same host share one host string. */
+  private static final ParseCache<String> HOSTS = new ParseCache<>(256);
+
   /** Either "http" or "https". */
   final String scheme;
 
@@ -324,6 +328,12 @@ public final class HttpUrl {
    */
   private final List<String> pathSegments;
 
+  /**
+   * The encoded path segments. This is {@link #pathSegments} unless a segment is percent-encoded.
+   * Links resolved against this URL copy these rather than re-parsing the path.
+   */
+  private final List<String> encodedPathSegments;
+
   /**
    * Alternating, decoded query names and values, or null for no query. Names may be empty or
    * non-empty, but never null. Values are null if the name has no corresponding '=' separator, or
@@ -338,19 +348,27 @@ public final class HttpUrl {
   private final String url;
 
   HttpUrl(Builder builder) {
+    this(builder, builder.toString());
+  }
+
+  /** Creates a URL whose canonical form {@code url} was already computed from {@code builder}. */
+  private HttpUrl(Builder builder, String url) {
     this.scheme = builder.scheme;
     this.username = percentDecode(builder.encodedUsername, false);
     this.password = percentDecode(builder.encodedPassword, false);
     this.host = builder.host;
     this.port = builder.effectivePort();
     this.pathSegments = percentDecode(builder.encodedPathSegments, false);
+    this.encodedPathSegments = pathSegments.equals(builder.encodedPathSegments)
+        ? pathSegments
+        : Collections.unmodifiableList(new ArrayList<>(builder.encodedPathSegments));
     this.queryNamesAndValues = builder.encodedQueryNamesAndValues != null
         ? percentDecode(builder.encodedQueryNamesAndValues, true)
         : null;
     this.fragment = builder.encodedFragment != null
         ? percentDecode(builder.encodedFragment, false)
         : null;
-    this.url = builder.toString();
+    this.url = url;
   }
 
   /** Returns this URL as a {@link URL java.net.URL}. */
@@ -569,16 +587,7 @@ public final class HttpUrl {
    * </table>
    */
   public List<String> encodedPathSegments() {
-    int pathStart = url.indexOf('/', scheme.length() + 3);
-    int pathEnd = delimiterOffset(url, pathStart, url.length(), "?#");
-    List<String> result = new ArrayList<>();
-    for (int i = pathStart; i < pathEnd; ) {
-      i++; // Skip the '/'.
-      int segmentEnd = delimiterOffset(url, i, pathEnd, '/');
-      result.add(url.substring(i, segmentEnd));
-      i = segmentEnd;
-    }
-    return result;
+    return new ArrayList<>(encodedPathSegments);
   }
 
   /**
@@ -879,7 +888,7 @@ public final class HttpUrl {
     // If we're set to a default port, unset it in case of a scheme change.
     result.port = port != defaultPort(scheme) ? port : -1;
     result.encodedPathSegments.clear();
-    result.encodedPathSegments.addAll(encodedPathSegments());
+    result.encodedPathSegments.addAll(encodedPathSegments);
     result.encodedQuery(encodedQuery());
     result.encodedFragment = encodedFragment();
     return result;
@@ -915,7 +924,9 @@ public final class HttpUrl {
    * @throws IllegalArgumentException If {@code url} is not a well-formed HTTP or HTTPS URL.
    */
   public static HttpUrl get(String url) {
-    return new Builder().parse(null, url).build();
+    Builder builder = new Builder().parse(null, url);
+    // Most URLs are already canonical. Use them as-is rather than rebuilding an equal string.
+    return builder.rendersAs(url) ? new HttpUrl(builder, url) : builder.build();
   }
 
   /**
@@ -1308,6 +1319,56 @@ public final class HttpUrl {
       return result.toString();
     }
 
+    /**
+     * Returns true if {@link #toString} would return {@code s}. This compares each component in
+     * place and takes shortcuts only by returning false for rare components.
+     */
+    boolean rendersAs(String s) {
+      if (scheme == null || host == null) return false;
+      if (!encodedUsername.isEmpty() || !encodedPassword.isEmpty()) return false;
+      if (host.indexOf(':') != -1) return false; // IPv6 hosts are written in square braces.
+
+      int pos = 0;
+      if (!s.startsWith(scheme, pos) || !s.startsWith("://", pos += scheme.length())) return false;
+      if (!s.startsWith(host, pos += 3)) return false;
+      pos += host.length();
+
+      int effectivePort = effectivePort();
+      if (effectivePort != defaultPort(scheme)) {
+        String portString = ":" + effectivePort;
+        if (!s.startsWith(portString, pos)) return false;
+        pos += portString.length();
+      }
+
+      for (int i = 0, size = encodedPathSegments.size(); i < size; i++) {
+        String segment = encodedPathSegments.get(i);
+        if (!s.startsWith("/", pos) || !s.startsWith(segment, pos + 1)) return false;
+        pos += 1 + segment.length();
+      }
+
+      if (encodedQueryNamesAndValues != null) {
+        if (!s.startsWith("?", pos++)) return false;
+        for (int i = 0, size = encodedQueryNamesAndValues.size(); i < size; i += 2) {
+          String name = encodedQueryNamesAndValues.get(i);
+          String value = encodedQueryNamesAndValues.get(i + 1);
+          if (i > 0 && !s.startsWith("&", pos++)) return false;
+          if (!s.startsWith(name, pos)) return false;
+          pos += name.length();
+          if (value != null) {
+            if (!s.startsWith("=", pos) || !s.startsWith(value, pos + 1)) return false;
+            pos += 1 + value.length();
+          }
+        }
+      }
+
+      if (encodedFragment != null) {
+        if (!s.startsWith("#", pos) || !s.startsWith(encodedFragment, pos + 1)) return false;
+        pos += 1 + encodedFragment.length();
+      }
+
+      return pos == s.length();
+    }
+
     static final String INVALID_HOST = "Invalid URL host";
 
     Builder parse(@Nullable HttpUrl base, String input) {
@@ -1413,7 +1474,7 @@ public final class HttpUrl {
         this.host = base.host;
         this.port = base.port;
         this.encodedPathSegments.clear();
-        this.encodedPathSegments.addAll(base.encodedPathSegments());
+        this.encodedPathSegments.addAll(base.encodedPathSegments);
         if (pos == limit || input.charAt(pos) == '#') {
           encodedQuery(base.encodedQuery());
         }
@@ -1587,7 +1648,12 @@ public final class HttpUrl {
       // Start by percent decoding the host. The WHATWG spec suggests doing this only after we've
       // checked for IPv6 square braces. But Chrome does it first, and that's more lenient.
       String percentDecoded = percentDecode(input, pos, limit, false);
-      return Util.canonicalizeHost(percentDecoded);
+      String result = HOSTS.get(percentDecoded);
+      if (result == null) {
+        result = Util.canonicalizeHost(percentDecoded);
+        if (result != null) HOSTS.put(percentDecoded, result);
+      }
+      return result;
     }
 
     private static int parsePort(String input, int pos, int limit) {
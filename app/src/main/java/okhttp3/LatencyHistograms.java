@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2019 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link EventListener.Factory} that records how long each phase of a call takes, so that slow
+ * calls can be traced to DNS, connecting, TLS, queueing or the server. Durations are kept in
+ * histograms for all hosts and for each host.
+ *
+ * <p>Recording doesn't allocate or lock. Each histogram is a fixed array of counters in buckets
+ * that are about 6% wide, like an HDR histogram with 16 sub-buckets per power of two. Durations are
+ * recorded with microsecond resolution. Per-host histograms are kept for up to {@value #MAX_HOSTS}
+ * hosts; calls to further hosts are only recorded for all hosts.
+ *
+ * <pre>   {@code
+ *
+ *   LatencyHistograms histograms = new LatencyHistograms();
+ *   OkHttpClient client = new OkHttpClient.Builder()
+ *       .eventListenerFactory(histograms)
+ *       .build();
+ *   ...
+ *   LatencyHistograms.Snapshot ttfb = histograms.snapshot(LatencyHistograms.Phase.SERVER);
+ *   long p99 = ttfb.valueAtPercentile(99.0, TimeUnit.MILLISECONDS);
+ * }</pre>
+ */
+public final class LatencyHistograms implements EventListener.Factory {
+  /** Hosts beyond this many are only recorded in the histograms for all hosts. */
+  static final int MAX_HOSTS = 64;
+
+  static final AtomicIntegerFieldUpdater<Listener> CONNECTS_IN_FLIGHT =
+      AtomicIntegerFieldUpdater.newUpdater(Listener.class, "connectsInFlight");
+  static final AtomicLongFieldUpdater<Listener> SECURE_CONNECT_START =
+      AtomicLongFieldUpdater.newUpdater(Listener.class, "secureConnectStartNanos");
+
+  private final PhaseHistograms allHosts = new PhaseHistograms();
+  private final ConcurrentHashMap<String, PhaseHistograms> hosts = new ConcurrentHashMap<>();
+
+  @Override public EventListener create(Call call) {
+    return new Listener(hostHistograms(call.request().url().host()));
+  }
+
+  /** Returns the durations of {@code phase} recorded for all hosts. */
+  public Snapshot snapshot(Phase phase) {
+    return allHosts.get(phase).snapshot();
+  }
+
+  /** Returns the durations of {@code phase} recorded for {@code host}. */
+  public Snapshot snapshot(String host, Phase phase) {
+    PhaseHistograms histograms = hosts.get(host);
+    return histograms != null ? histograms.get(phase).snapshot() : Snapshot.EMPTY;
+  }
+
+  /** Returns the hosts that have their own histograms. */
+  public List<String> hosts() {
+    return Collections.unmodifiableList(new ArrayList<>(hosts.keySet()));
+  }
+
+  /**
+   * Clears every histogram. Durations recorded while this runs may be kept or cleared. To scrape
+   * intervals, take snapshots and then reset.
+   */
+  public void reset() {
+    allHosts.reset();
+    for (PhaseHistograms histograms : hosts.values()) {
+      histograms.reset();
+    }
+  }
+
+  private @Nullable PhaseHistograms hostHistograms(String host) {
+    PhaseHistograms result = hosts.get(host);
+    if (result == null && hosts.size() < MAX_HOSTS) {
+      result = hosts.computeIfAbsent(host, name -> new PhaseHistograms());
+    }
+    return result;
+  }
+
+  /** The parts of a call that are timed. */
+  public enum Phase {
+    /** From the start of the call to its end or failure, including reading the response body. */
+    CALL,
+
+    /** Asynchronous calls waiting in the dispatcher's queue for a thread to run on. */
+    DISPATCHER_QUEUE,
+
+    /**
+     * From the start of the call until it has a connection. This includes waiting in the
+     * dispatcher's queue, and any DNS lookup and connect.
+     */
+    CONNECTION_ACQUIRE,
+
+    /** Waiting for a connection because the connection pool was at a limit. */
+    CONNECTION_POOL_WAIT,
+
+    /** DNS lookups. */
+    DNS,
+
+    /** Connects, including TLS handshakes. Raced connects are timed from the first start. */
+    CONNECT,
+
+    /** TLS handshakes. */
+    SECURE_CONNECT,
+
+    /**
+     * From the end of sending a request until its response headers have been read. This is about
+     * the time to first byte.
+     */
+    SERVER,
+
+    /** From the start of a response body to its end. */
+    RESPONSE_BODY,
+  }
+
+  /** An immutable copy of a histogram. */
+  public static final class Snapshot {
+    static final Snapshot EMPTY = new Snapshot(new long[Histogram.BUCKET_COUNT], 0L, 0L, 0L);
+
+    private final long[] counts;
+    private final long count;
+    private final long sumMicros;
+    private final long maxMicros;
+
+    Snapshot(long[] counts, long count, long sumMicros, long maxMicros) {
+      this.counts = counts;
+      this.count = count;
+      this.sumMicros = sumMicros;
+      this.maxMicros = maxMicros;
+    }
+
+    /** Returns the number of durations recorded. */
+    public long count() {
+      return count;
+    }
+
+    public long mean(TimeUnit unit) {
+      return count != 0L ? unit.convert(sumMicros / count, TimeUnit.MICROSECONDS) : 0L;
+    }
+
+    public long max(TimeUnit unit) {
+      return unit.convert(maxMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Returns the duration that {@code percentile} percent of recorded durations don't exceed, to
+     * within the width of its bucket. Returns 0 if no durations were recorded.
+     */
+    public long valueAtPercentile(double percentile, TimeUnit unit) {
+      if (!(percentile >= 0.0 && percentile <= 100.0)) {
+        throw new IllegalArgumentException("percentile must be in [0, 100]: " + percentile);
+      }
+      if (count == 0L) return 0L;
+
+      long rank = Math.max(1L, (long) Math.ceil(count * percentile / 100.0));
+      long seen = 0L;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          long micros = Math.min(maxMicros, Histogram.highestValue(i));
+          return unit.convert(micros, TimeUnit.MICROSECONDS);
+        }
+      }
+      return unit.convert(maxMicros, TimeUnit.MICROSECONDS);
+    }
+
+    @Override public String toString() {
+      return "Snapshot{count=" + count
+          + ", p50=" + valueAtPercentile(50.0, TimeUnit.MICROSECONDS)
+          + "us, p99=" + valueAtPercentile(99.0, TimeUnit.MICROSECONDS)
+          + "us, max=" + maxMicros
+          + "us}";
+    }
+  }
+
+  /** A histogram per phase. */
+  static final class PhaseHistograms {
+    private final Histogram[] histograms = new Histogram[Phase.values().length];
+
+    PhaseHistograms() {
+      for (int i = 0; i < histograms.length; i++) {
+        histograms[i] = new Histogram();
+      }
+    }
+
+    Histogram get(Phase phase) {
+      return histograms[phase.ordinal()];
+    }
+
+    void reset() {
+      for (Histogram histogram : histograms) {
+        histogram.reset();
+      }
+    }
+  }
+
+  /** Counts of durations in log-linear buckets. */
+  static final class Histogram {
+    /** Each power of two is split into 2^SUB_BUCKET_BITS buckets. */
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Durations of 2^(MAX_EXPONENT+1) microseconds, about 19 hours, or longer share a bucket. */
+    private static final int MAX_EXPONENT = 35;
+
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void record(long micros) {
+      if (micros < 0L) micros = 0L; // The clock can't go backwards, but be defensive.
+      counts.incrementAndGet(bucket(micros));
+      sumMicros.addAndGet(micros);
+      for (long max; micros > (max = maxMicros.get()); ) {
+        if (maxMicros.compareAndSet(max, micros)) break;
+      }
+    }
+
+    Snapshot snapshot() {
+      long[] copy = new long[BUCKET_COUNT];
+      long count = 0L;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        copy[i] = counts.get(i);
+        count += copy[i];
+      }
+      return new Snapshot(copy, count, sumMicros.get(), maxMicros.get());
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        counts.set(i, 0L);
+      }
+      sumMicros.set(0L);
+      maxMicros.set(0L);
+    }
+
+    static int bucket(long micros) {
+      if (micros < SUB_BUCKETS) return (int) micros;
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      if (exponent > MAX_EXPONENT) return BUCKET_COUNT - 1;
+      int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** Returns the largest duration that falls in {@code bucket}. */
+    static long highestValue(int bucket) {
+      if (bucket < SUB_BUCKETS) return bucket;
+      if (bucket == BUCKET_COUNT - 1) return Long.MAX_VALUE;
+      int shift = bucket / SUB_BUCKETS - 1;
+      long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+      return lowest + (1L << shift) - 1L;
+    }
+  }
+
+  /**
+   * Times the phases of one call. Connect events of raced routes may arrive concurrently on other
+   * threads; the remaining events arrive in sequence.
+   */
+  final class Listener extends EventListener {
+    private final @Nullable PhaseHistograms host;
+
+    private long callStartNanos;
+    private long queueStartNanos;
+    private long dnsStartNanos;
+    private long requestEndNanos;
+    private long responseBodyStartNanos;
+    private boolean connectionAcquired;
+
+    /** The start of the first of the connects in flight, or 0. */
+    volatile long connectStartNanos;
+    volatile int connectsInFlight;
+    volatile long secureConnectStartNanos;
+
+    Listener(@Nullable PhaseHistograms host) {
+      this.host = host;
+    }
+
+    @Override public void callStart(Call call) {
+      callStartNanos = System.nanoTime();
+    }
+
+    @Override public void dispatcherQueueStart(Call call) {
+      queueStartNanos = System.nanoTime();
+    }
+
+    @Override public void dispatcherQueueEnd(Call call) {
+      record(Phase.DISPATCHER_QUEUE, queueStartNanos);
+    }
+
+    @Override public void dnsStart(Call call, String domainName) {
+      dnsStartNanos = System.nanoTime();
+    }
+
+    @Override public void dnsEnd(
+        Call call, String domainName, List<InetAddress> inetAddressList) {
+      record(Phase.DNS, dnsStartNanos);
+    }
+
+    @Override public void connectStart(
+        Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+      long now = System.nanoTime();
+      if (CONNECTS_IN_FLIGHT.getAndIncrement(this) == 0) connectStartNanos = now;
+    }
+
+    @Override public void secureConnectStart(Call call) {
+      SECURE_CONNECT_START.compareAndSet(this, 0L, System.nanoTime());
+    }
+
+    @Override public void secureConnectEnd(Call call, @Nullable Handshake handshake) {
+      long start = SECURE_CONNECT_START.getAndSet(this, 0L);
+      if (start != 0L) record(Phase.SECURE_CONNECT, start);
+    }
+
+    @Override public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+        @Nullable Protocol protocol) {
+      record(Phase.CONNECT, connectStartNanos);
+      CONNECTS_IN_FLIGHT.decrementAndGet(this);
+    }
+
+    @Override public void connectFailed(Call call, InetSocketAddress inetSocketAddress,
+        Proxy proxy, @Nullable Protocol protocol, IOException ioe) {
+      SECURE_CONNECT_START.set(this, 0L);
+      CONNECTS_IN_FLIGHT.decrementAndGet(this);
+    }
+
+    @Override public void connectionPoolWaited(Call call, Address address, long waitNanos) {
+      long micros = waitNanos / 1000L;
+      allHosts.get(Phase.CONNECTION_POOL_WAIT).record(micros);
+      if (host != null) host.get(Phase.CONNECTION_POOL_WAIT).record(micros);
+    }
+
+    @Override public void connectionAcquired(Call call, Connection connection) {
+      if (connectionAcquired) return; // Only time the first connection of the call.
+      connectionAcquired = true;
+      record(Phase.CONNECTION_ACQUIRE, callStartNanos);
+    }
+
+    @Override public void requestHeadersEnd(Call call, Request request) {
+      requestEndNanos = System.nanoTime();
+    }
+
+    @Override public void requestBodyEnd(Call call, long byteCount) {
+      requestEndNanos = System.nanoTime();
+    }
+
+    @Override public void responseHeadersEnd(Call call, Response response) {
+      if (requestEndNanos != 0L) record(Phase.SERVER, requestEndNanos);
+      requestEndNanos = 0L;
+    }
+
+    @Override public void responseBodyStart(Call call) {
+      responseBodyStartNanos = System.nanoTime();
+    }
+
+    @Override public void responseBodyEnd(Call call, long byteCount) {
+      if (responseBodyStartNanos != 0L) record(Phase.RESPONSE_BODY, responseBodyStartNanos);
+      responseBodyStartNanos = 0L;
+    }
+
+    @Override public void callEnd(Call call) {
+      record(Phase.CALL, callStartNanos);
+    }
+
+    @Override public void callFailed(Call call, IOException ioe) {
+      record(Phase.CALL, callStartNanos);
+    }
+
+    private void record(Phase phase, long startNanos) {
+      long micros = (System.nanoTime() - startNanos) / 1000L;
+      allHosts.get(phase).record(micros);
+      if (host != null) host.get(phase).record(micros);
+    }
+  }
+}
@@ -20,6 +20,7 @@ import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.annotation.Nullable;
+import okhttp3.internal.ParseCache;
 
 /**
  * An <a href="http://tools.ietf.org/html/rfc2045">RFC 2045</a> Media Type, appropriate to describe
@@ -32,6 +33,9 @@ public final class MediaType {
   private static final Pattern PARAMETER = Pattern.compile(
       ";\\s*(?:" + TOKEN + "=(?:" + TOKEN + "|" + QUOTED + "))?");
 
+  /** Recently parsed media types. Most responses from a backend share a few Content-Types. */
+  private static final ParseCache<MediaType> CACHE = new ParseCache<>(64);
+
   private final String mediaType;
   private final String type;
   private final String subtype;
@@ -50,6 +54,15 @@ public final class MediaType {
    * @throws IllegalArgumentException if {@code string} is not a well-formed media type.
    */
   public static MediaType get(String string) {
+    MediaType result = CACHE.get(string);
+    if (result == null) {
+      result = create(string);
+      CACHE.put(string, result);
+    }
+    return result;
+  }
+
+  private static MediaType create(String string) {
     Matcher typeSubtype = TYPE_SUBTYPE.matcher(string);
     if (!typeSubtype.lookingAt()) {
       throw new IllegalArgumentException("No subtype found for: \"" + string + '"');
@@ -15,6 +15,7 @@
  */
 package okhttp3;
 
+import java.io.File;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.Socket;
@@ -37,8 +38,13 @@ import javax.net.ssl.X509TrustManager;
 import okhttp3.internal.Internal;
 import okhttp3.internal.Util;
 import okhttp3.internal.cache.InternalCache;
+import okhttp3.internal.cache2.CoalescingInterceptor;
 import okhttp3.internal.connection.Exchange;
 import okhttp3.internal.connection.RealConnectionPool;
+import okhttp3.internal.connection.Transmitter;
+import okhttp3.internal.http.RealCircuitBreaker;
+import okhttp3.internal.http1.NioHttp1Transport;
+import okhttp3.internal.http2.Http2Resources;
 import okhttp3.internal.platform.Platform;
 import okhttp3.internal.proxy.NullProxySelector;
 import okhttp3.internal.tls.CertificateChainCleaner;
@@ -137,10 +143,22 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
         builder.addLenient(name, value);
       }
 
+      @Override public Headers headers(String[] namesAndValues) {
+        return new Headers(namesAndValues);
+      }
+
       @Override public RealConnectionPool realConnectionPool(ConnectionPool connectionPool) {
         return connectionPool.delegate;
       }
 
+      @Override public RealCircuitBreaker realCircuitBreaker(CircuitBreaker circuitBreaker) {
+        return circuitBreaker.delegate;
+      }
+
+      @Override public Http2Resources http2Resources(OkHttpClient client) {
+        return client.http2Resources;
+      }
+
       @Override public boolean equalsNonHost(Address a, Address b) {
         return a.equalsNonHost(b);
       }
@@ -192,6 +210,16 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
   final boolean followSslRedirects;
   final boolean followRedirects;
   final boolean retryOnConnectionFailure;
+  final @Nullable CircuitBreaker circuitBreaker;
+  final boolean fastFallback;
+  final long http2ReceiveMemoryLimit;
+  final int http2EventLoopCount;
+  final Http2Resources http2Resources;
+  final boolean nonBlockingHttp1;
+  final @Nullable NioHttp1Transport nioTransport;
+  final boolean coalesceRequests;
+  final @Nullable File coalescingDirectory;
+  final @Nullable CoalescingInterceptor coalescingInterceptor;
   final int callTimeout;
   final int connectTimeout;
   final int readTimeout;
@@ -244,6 +272,13 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     this.followSslRedirects = builder.followSslRedirects;
     this.followRedirects = builder.followRedirects;
     this.retryOnConnectionFailure = builder.retryOnConnectionFailure;
+    this.circuitBreaker = builder.circuitBreaker;
+    this.fastFallback = builder.fastFallback;
+    this.http2ReceiveMemoryLimit = builder.http2ReceiveMemoryLimit;
+    this.http2EventLoopCount = builder.http2EventLoopCount;
+    this.http2Resources = builder.http2Resources != null
+        ? builder.http2Resources
+        : new Http2Resources(http2ReceiveMemoryLimit, http2EventLoopCount);
     this.callTimeout = builder.callTimeout;
     this.connectTimeout = builder.connectTimeout;
     this.readTimeout = builder.readTimeout;
@@ -256,6 +291,21 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     if (networkInterceptors.contains(null)) {
       throw new IllegalStateException("Null network interceptor: " + networkInterceptors);
     }
+
+    this.coalesceRequests = builder.coalesceRequests;
+    this.coalescingDirectory = builder.coalescingDirectory;
+    this.coalescingInterceptor = coalesceRequests
+        ? new CoalescingInterceptor(coalescingDirectory)
+        : null;
+
+    this.nonBlockingHttp1 = builder.nonBlockingHttp1;
+    this.nioTransport = nonBlockingHttp1
+        && interceptors.isEmpty()
+        && networkInterceptors.isEmpty()
+        && internalCache() == null
+        && !coalesceRequests
+        ? new NioHttp1Transport(this)
+        : null;
   }
 
   private static SSLSocketFactory newSslSocketFactory(X509TrustManager trustManager) {
@@ -360,6 +410,34 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     return retryOnConnectionFailure;
   }
 
+  public @Nullable CircuitBreaker circuitBreaker() {
+    return circuitBreaker;
+  }
+
+  public boolean fastFallback() {
+    return fastFallback;
+  }
+
+  public long http2ReceiveMemoryLimit() {
+    return http2ReceiveMemoryLimit;
+  }
+
+  public int http2EventLoopCount() {
+    return http2EventLoopCount;
+  }
+
+  public boolean nonBlockingHttp1() {
+    return nonBlockingHttp1;
+  }
+
+  public boolean coalesceRequests() {
+    return coalesceRequests;
+  }
+
+  public @Nullable File coalescingDirectory() {
+    return coalescingDirectory;
+  }
+
   public Dispatcher dispatcher() {
     return dispatcher;
   }
@@ -410,6 +488,29 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     return webSocket;
   }
 
+  /**
+   * Opens connections to the origin of {@code url} in the background until {@code connectionCount}
+   * of them are idle in the connection pool. Use this to pay for DNS, TCP and TLS before the first
+   * call to an origin. Connections opened this way are evicted like any other idle connection.
+   */
+  public void prewarmConnections(HttpUrl url, int connectionCount) {
+    if (connectionCount < 0) throw new IllegalArgumentException("connectionCount < 0");
+    connectionPool.delegate.prewarm(this, Transmitter.createAddress(this, url), connectionCount);
+  }
+
+  /**
+   * Keeps at least {@code minimumIdleConnections} idle connections to the origin of {@code url} in
+   * the connection pool. The pool won't evict idle connections below this count, and reconnects in
+   * the background when connections are closed. Set this to 0 to stop keeping connections warm.
+   */
+  public void setMinimumIdleConnections(HttpUrl url, int minimumIdleConnections) {
+    if (minimumIdleConnections < 0) {
+      throw new IllegalArgumentException("minimumIdleConnections < 0");
+    }
+    connectionPool.delegate.setMinimumIdleConnections(
+        this, Transmitter.createAddress(this, url), minimumIdleConnections);
+  }
+
   public Builder newBuilder() {
     return new Builder(this);
   }
@@ -438,6 +539,14 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     boolean followSslRedirects;
     boolean followRedirects;
     boolean retryOnConnectionFailure;
+    @Nullable CircuitBreaker circuitBreaker;
+    boolean fastFallback;
+    long http2ReceiveMemoryLimit;
+    int http2EventLoopCount;
+    @Nullable Http2Resources http2Resources;
+    boolean nonBlockingHttp1;
+    boolean coalesceRequests;
+    @Nullable File coalescingDirectory;
     int callTimeout;
     int connectTimeout;
     int readTimeout;
@@ -464,6 +573,8 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       followSslRedirects = true;
       followRedirects = true;
       retryOnConnectionFailure = true;
+      fastFallback = true;
+      http2ReceiveMemoryLimit = Http2Resources.DEFAULT_RECEIVE_MEMORY_LIMIT;
       callTimeout = 0;
       connectTimeout = 10_000;
       readTimeout = 10_000;
@@ -495,6 +606,14 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       this.followSslRedirects = okHttpClient.followSslRedirects;
       this.followRedirects = okHttpClient.followRedirects;
       this.retryOnConnectionFailure = okHttpClient.retryOnConnectionFailure;
+      this.circuitBreaker = okHttpClient.circuitBreaker;
+      this.fastFallback = okHttpClient.fastFallback;
+      this.http2ReceiveMemoryLimit = okHttpClient.http2ReceiveMemoryLimit;
+      this.http2EventLoopCount = okHttpClient.http2EventLoopCount;
+      this.http2Resources = okHttpClient.http2Resources;
+      this.nonBlockingHttp1 = okHttpClient.nonBlockingHttp1;
+      this.coalesceRequests = okHttpClient.coalesceRequests;
+      this.coalescingDirectory = okHttpClient.coalescingDirectory;
       this.callTimeout = okHttpClient.callTimeout;
       this.connectTimeout = okHttpClient.connectTimeout;
       this.readTimeout = okHttpClient.readTimeout;
@@ -881,6 +1000,118 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
       return this;
     }
 
+    /**
+     * Sets the circuit breaker that budgets this client's retries and fails calls to hosts that
+     * keep failing. By default there is none: connectivity failures are retried as long as there
+     * are routes to try, and calls are always attempted.
+     */
+    public Builder circuitBreaker(@Nullable CircuitBreaker circuitBreaker) {
+      this.circuitBreaker = circuitBreaker;
+      return this;
+    }
+
+    /**
+     * Configure this client to race connects to a host's IP addresses, as described by RFC 8305,
+     * "Happy Eyeballs". Attempts are started in turn, alternating between IPv6 and IPv4 addresses,
+     * each one either after a short delay or as soon as the previous attempt fails. The first to
+     * connect is used and the others are canceled. This avoids waiting out a full connect timeout
+     * on a broken path when another would work. Enabled by default.
+     *
+     * <p>When disabled routes are attempted one at a time.
+     */
+    public Builder fastFallback(boolean fastFallback) {
+      this.fastFallback = fastFallback;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of bytes this client's HTTP/2 connections buffer across all of their
+     * streams. Each stream's flow-control window grows to match its connection's bandwidth-delay
+     * product, but never beyond an equal share of this limit. Streams start with a 1 MiB window.
+     * The default limit is 64 MiB.
+     *
+     * <p>Clients derived from this one with {@link OkHttpClient#newBuilder()} share the limit, and
+     * the HTTP/2 event loops, unless either is changed.
+     */
+    public Builder http2ReceiveMemoryLimit(long byteCount) {
+      if (byteCount < 65_535L) {
+        throw new IllegalArgumentException("byteCount < 65535");
+      }
+      this.http2ReceiveMemoryLimit = byteCount;
+      this.http2Resources = null;
+      return this;
+    }
+
+    /**
+     * Makes this client's HTTP/2 connections share {@code threadCount} event-loop threads for the
+     * frames they write themselves: pings, window updates and resets. Zero, the default, gives
+     * each connection its own writer thread. This option only replaces those writer threads. Each
+     * connection still has its own reader thread, and streams write on the caller's thread.
+     *
+     * <p>A loop skips a connection while a stream is writing to it. If a loop's own write blocks
+     * because the peer has stopped reading, the write times out after 10 seconds and fails that
+     * connection. Until then, the loop's other connections wait.
+     */
+    public Builder http2EventLoopCount(int threadCount) {
+      if (threadCount < 0) throw new IllegalArgumentException("threadCount < 0: " + threadCount);
+      this.http2EventLoopCount = threadCount;
+      this.http2Resources = null;
+      return this;
+    }
+
+    /**
+     * Configure this client to carry asynchronous plaintext HTTP/1.1 calls on non-blocking sockets
+     * driven by a single selector thread. A call that is waiting for its response then holds no
+     * thread, which makes it practical to keep thousands of slow requests such as long polls in
+     * flight. Disabled by default.
+     *
+     * <p>Such calls count against the {@link Dispatcher}'s limits until their callback returns,
+     * so raise those limits to keep many in flight. Their response bodies are read into memory in
+     * full before the callback is invoked; a body larger than 16 MiB fails the call.
+     *
+     * <p>Synchronous calls, HTTPS calls, calls through a proxy or a custom {@link SocketFactory},
+     * and calls with a duplex body are made as usual. So are all calls of clients that follow
+     * redirects, have an {@linkplain #authenticator authenticator}, interceptors, a cache, or
+     * {@linkplain #coalesceRequests coalesced requests}. Disable {@linkplain #followRedirects
+     * redirects} to use this.
+     */
+    public Builder nonBlockingHttp1(boolean nonBlockingHttp1) {
+      this.nonBlockingHttp1 = nonBlockingHttp1;
+      return this;
+    }
+
+    /**
+     * Configure this client to share one network request among calls that make the same GET or
+     * HEAD request at the same time. The first such call makes the request, and the others wait
+     * for its response and read the same body as it arrives. This avoids a burst of identical
+     * requests when many threads want the same resource before the cache can serve it. Disabled
+     * by default.
+     *
+     * <p>Requests are shared only if their method, URL and headers are all the same, including
+     * headers added for cookies, compression and cache validation. A body is shared only if a
+     * second call made the request before its response headers arrived. It's then relayed through
+     * a temporary file in the {@linkplain #coalescingDirectory coalescing directory}, so each call
+     * may read at its own pace, and later calls join until it has been read in full. A response
+     * that no other call waited for is returned to its call as it is.
+     *
+     * <p>Canceling the call that made the request, or a failure reading its body, fails every call
+     * sharing that body. Interceptors added with {@link #addNetworkInterceptor} see only the
+     * request that was made.
+     */
+    public Builder coalesceRequests(boolean coalesceRequests) {
+      this.coalesceRequests = coalesceRequests;
+      return this;
+    }
+
+    /**
+     * Sets the directory where {@linkplain #coalesceRequests coalesced} response bodies are relayed
+     * through temporary files. Null, the default, uses the system's temporary directory.
+     */
+    public Builder coalescingDirectory(@Nullable File directory) {
+      this.coalescingDirectory = directory;
+      return this;
+    }
+
     /**
      * Sets the dispatcher used to set policy and execute asynchronous requests. Must not be null.
      */
@@ -19,9 +19,11 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 import okhttp3.internal.NamedRunnable;
 import okhttp3.internal.cache.CacheInterceptor;
 import okhttp3.internal.connection.ConnectInterceptor;
@@ -30,6 +32,7 @@ import okhttp3.internal.http.BridgeInterceptor;
 import okhttp3.internal.http.CallServerInterceptor;
 import okhttp3.internal.http.RealInterceptorChain;
 import okhttp3.internal.http.RetryAndFollowUpInterceptor;
+import okhttp3.internal.http1.NioHttp1Transport;
 import okhttp3.internal.platform.Platform;
 import okio.Timeout;
 
@@ -52,6 +55,19 @@ final class RealCall implements Call {
   // Guarded by this.
   private boolean executed;
 
+  /** True if this call is carried by the client's non-blocking transport. */
+  private volatile boolean nonBlocking;
+
+  /**
+   * If non-null, this call continues another call's chain: it skips the application interceptors up
+   * to and including this one, and uses {@link #resumeChain}'s timeouts.
+   */
+  private @Nullable Interceptor resumeAfter;
+  private @Nullable Interceptor.Chain resumeChain;
+
+  /** Calls that carry this call's request on its behalf. They're canceled with this call. */
+  private final Queue<Call> attempts = new ConcurrentLinkedQueue<>();
+
   private RealCall(OkHttpClient client, Request originalRequest, boolean forWebSocket) {
     this.client = client;
     this.originalRequest = originalRequest;
@@ -65,6 +81,14 @@ final class RealCall implements Call {
     return call;
   }
 
+  /** Returns a call that reports its events to {@code eventListener}, bypassing the factory. */
+  static RealCall newRealCall(
+      OkHttpClient client, Request originalRequest, EventListener eventListener) {
+    RealCall call = new RealCall(client, originalRequest, false);
+    call.transmitter = new Transmitter(client, call, eventListener);
+    return call;
+  }
+
   @Override public Request request() {
     return originalRequest;
   }
@@ -90,11 +114,19 @@ final class RealCall implements Call {
       executed = true;
     }
     transmitter.callStart();
-    client.dispatcher().enqueue(new AsyncCall(responseCallback));
+    NioHttp1Transport nioTransport = client.nioTransport;
+    nonBlocking = nioTransport != null && !forWebSocket && nioTransport.supports(originalRequest);
+    AsyncCall asyncCall = new AsyncCall(responseCallback);
+    transmitter.eventListener().dispatcherQueueStart(this);
+    client.dispatcher().enqueue(asyncCall);
   }
 
   @Override public void cancel() {
     transmitter.cancel();
+    if (nonBlocking) client.nioTransport.cancel(this);
+    for (Call attempt : attempts) {
+      attempt.cancel();
+    }
   }
 
   @Override public Timeout timeout() {
@@ -109,6 +141,23 @@ final class RealCall implements Call {
     return transmitter.isCanceled();
   }
 
+  EventListener eventListener() {
+    return transmitter.eventListener();
+  }
+
+  /**
+   * Makes {@code attempt} carry this call's request until it's removed. Canceling this call cancels
+   * it too.
+   */
+  void addAttempt(Call attempt) {
+    attempts.add(attempt);
+    if (isCanceled()) attempt.cancel();
+  }
+
+  void removeAttempt(Call attempt) {
+    attempts.remove(attempt);
+  }
+
   @SuppressWarnings("CloneDoesntCallSuperClone") // We are a final type & this saves clearing state.
   @Override public RealCall clone() {
     return RealCall.newRealCall(client, originalRequest, forWebSocket);
@@ -116,19 +165,19 @@ final class RealCall implements Call {
 
   final class AsyncCall extends NamedRunnable {
     private final Callback responseCallback;
-    private volatile AtomicInteger callsPerHost = new AtomicInteger(0);
+
+    /** The dispatcher's queue for this call's host. Assigned when the call is enqueued. */
+    volatile Dispatcher.HostCalls hostCalls;
+
+    final long enqueuedAtNanos;
+
+    /** Orders the dispatcher's ready calls. Assigned when the call is enqueued. */
+    long sequence;
 
     AsyncCall(Callback responseCallback) {
       super("OkHttp %s", redactedUrl());
       this.responseCallback = responseCallback;
-    }
-
-    AtomicInteger callsPerHost() {
-      return callsPerHost;
-    }
-
-    void reuseCallsPerHostFrom(AsyncCall other) {
-      this.callsPerHost = other.callsPerHost;
+      this.enqueuedAtNanos = System.nanoTime();
     }
 
     String host() {
@@ -156,6 +205,7 @@ final class RealCall implements Call {
       } catch (RejectedExecutionException e) {
         InterruptedIOException ioException = new InterruptedIOException("executor rejected");
         ioException.initCause(e);
+        transmitter.eventListener().dispatcherQueueEnd(RealCall.this);
         transmitter.noMoreExchanges(ioException);
         responseCallback.onFailure(RealCall.this, ioException);
       } finally {
@@ -165,11 +215,30 @@ final class RealCall implements Call {
       }
     }
 
+    /**
+     * Fails this call without running it. The dispatcher has already removed it from its queue, so
+     * it was never running.
+     */
+    void shed() {
+      InterruptedIOException ioException = new InterruptedIOException("dispatcher queue timeout");
+      transmitter.eventListener().dispatcherQueueEnd(RealCall.this);
+      transmitter.noMoreExchanges(ioException);
+      responseCallback.onFailure(RealCall.this, ioException);
+    }
+
     @Override protected void execute() {
+      transmitter.eventListener().dispatcherQueueEnd(RealCall.this);
+      if (nonBlocking) {
+        executeNonBlocking();
+        return;
+      }
+
       boolean signalledCallback = false;
       transmitter.timeoutEnter();
+      long startNanos = System.nanoTime();
       try {
         Response response = getResponseWithInterceptorChain();
+        client.dispatcher().responded(this, System.nanoTime() - startNanos, response);
         signalledCallback = true;
         responseCallback.onResponse(RealCall.this, response);
       } catch (IOException e) {
@@ -177,6 +246,9 @@ final class RealCall implements Call {
           // Do not signal the callback twice!
           Platform.get().log(INFO, "Callback failure for " + toLoggableString(), e);
         } else {
+          if (!isCanceled()) {
+            client.dispatcher().responded(this, System.nanoTime() - startNanos, null);
+          }
           responseCallback.onFailure(RealCall.this, e);
         }
       } catch (Throwable t) {
@@ -191,6 +263,35 @@ final class RealCall implements Call {
         client.dispatcher().finished(this);
       }
     }
+
+    /**
+     * Hands this call to the client's non-blocking transport. It keeps its place among the
+     * dispatcher's running calls until the transport delivers its outcome.
+     */
+    private void executeNonBlocking() {
+      long startNanos = System.nanoTime();
+      client.nioTransport.execute(RealCall.this, transmitter.eventListener(), new Callback() {
+        @Override public void onResponse(Call call, Response response) throws IOException {
+          try {
+            client.dispatcher().responded(AsyncCall.this, System.nanoTime() - startNanos, response);
+            responseCallback.onResponse(call, response);
+          } finally {
+            client.dispatcher().finished(AsyncCall.this);
+          }
+        }
+
+        @Override public void onFailure(Call call, IOException e) {
+          try {
+            if (!isCanceled()) {
+              client.dispatcher().responded(AsyncCall.this, System.nanoTime() - startNanos, null);
+            }
+            responseCallback.onFailure(call, e);
+          } finally {
+            client.dispatcher().finished(AsyncCall.this);
+          }
+        }
+      });
+    }
   }
 
   /**
@@ -207,22 +308,40 @@ final class RealCall implements Call {
     return originalRequest.url().redact();
   }
 
+  /**
+   * Makes this call continue {@code chain} from the interceptor after {@code interceptor}. Earlier
+   * application interceptors have already seen the request, so they don't see it again.
+   */
+  void resumeAfter(Interceptor interceptor, Interceptor.Chain chain) {
+    this.resumeAfter = interceptor;
+    this.resumeChain = chain;
+  }
+
   Response getResponseWithInterceptorChain() throws IOException {
     // Build a full stack of interceptors.
     List<Interceptor> interceptors = new ArrayList<>();
-    interceptors.addAll(client.interceptors());
+    List<Interceptor> applicationInterceptors = client.interceptors();
+    int resumeIndex = resumeAfter != null ? applicationInterceptors.indexOf(resumeAfter) + 1 : 0;
+    interceptors.addAll(
+        applicationInterceptors.subList(resumeIndex, applicationInterceptors.size()));
     interceptors.add(new RetryAndFollowUpInterceptor(client));
     interceptors.add(new BridgeInterceptor(client.cookieJar()));
     interceptors.add(new CacheInterceptor(client.internalCache()));
+    if (client.coalescingInterceptor != null && !forWebSocket) {
+      interceptors.add(client.coalescingInterceptor);
+    }
     interceptors.add(new ConnectInterceptor(client));
     if (!forWebSocket) {
       interceptors.addAll(client.networkInterceptors());
     }
     interceptors.add(new CallServerInterceptor(forWebSocket));
 
+    Interceptor.Chain timeouts = resumeChain;
     Interceptor.Chain chain = new RealInterceptorChain(interceptors, transmitter, null, 0,
-        originalRequest, this, client.connectTimeoutMillis(),
-        client.readTimeoutMillis(), client.writeTimeoutMillis());
+        originalRequest, this,
+        timeouts != null ? timeouts.connectTimeoutMillis() : client.connectTimeoutMillis(),
+        timeouts != null ? timeouts.readTimeoutMillis() : client.readTimeoutMillis(),
+        timeouts != null ? timeouts.writeTimeoutMillis() : client.writeTimeoutMillis());
 
     boolean calledNoMoreExchanges = false;
     try {
@@ -19,6 +19,7 @@ import javax.annotation.Nullable;
 import javax.net.ssl.SSLSocket;
 import okhttp3.Address;
 import okhttp3.Call;
+import okhttp3.CircuitBreaker;
 import okhttp3.ConnectionPool;
 import okhttp3.ConnectionSpec;
 import okhttp3.Headers;
@@ -27,6 +28,8 @@ import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.internal.connection.Exchange;
 import okhttp3.internal.connection.RealConnectionPool;
+import okhttp3.internal.http.RealCircuitBreaker;
+import okhttp3.internal.http2.Http2Resources;
 
 /**
  * Escalate internal APIs in {@code okhttp3} so they can be used from OkHttp's implementation
@@ -45,8 +48,15 @@ public abstract class Internal {
 
   public abstract void addLenient(Headers.Builder builder, String name, String value);
 
+  /** Returns headers that use {@code namesAndValues} without copying or validating it. */
+  public abstract Headers headers(String[] namesAndValues);
+
   public abstract RealConnectionPool realConnectionPool(ConnectionPool connectionPool);
 
+  public abstract RealCircuitBreaker realCircuitBreaker(CircuitBreaker circuitBreaker);
+
+  public abstract Http2Resources http2Resources(OkHttpClient client);
+
   public abstract boolean equalsNonHost(Address a, Address b);
 
   public abstract int code(Response.Builder responseBuilder);
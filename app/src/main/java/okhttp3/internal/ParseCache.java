@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2019 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal;
+
+import javax.annotation.Nullable;
+
+/**
+ * A fixed-size cache of immutable values parsed from header strings, so that values repeated
+ * across responses are parsed once and shared.
+ *
+ * <p>Each string hashes to a single slot, and putting a value replaces whatever was in its slot.
+ * The cache never grows and needs no locks: slots hold immutable entries, so a thread that races
+ * a writer sees either the old entry or the new one. Long strings aren't cached.
+ */
+public final class ParseCache<T> {
+  /** Strings longer than this are unlikely to repeat, and are too large to retain. */
+  private static final int MAX_KEY_LENGTH = 256;
+
+  private final Object[] entries;
+
+  /** Creates a cache with {@code size} slots. {@code size} must be a power of two. */
+  public ParseCache(int size) {
+    if (Integer.bitCount(size) != 1) throw new IllegalArgumentException("size: " + size);
+    this.entries = new Object[size];
+  }
+
+  /** Returns the value parsed from {@code key}, or null if it isn't cached. */
+  @SuppressWarnings("unchecked")
+  public @Nullable T get(String key) {
+    Entry<T> entry = (Entry<T>) entries[slot(key)];
+    return entry != null && entry.key.equals(key) ? entry.value : null;
+  }
+
+  public void put(String key, T value) {
+    if (key.length() > MAX_KEY_LENGTH) return;
+    entries[slot(key)] = new Entry<>(key, value);
+  }
+
+  private int slot(String key) {
+    int hash = key.hashCode();
+    return (hash ^ (hash >>> 16)) & (entries.length - 1);
+  }
+
+  private static final class Entry<T> {
+    final String key;
+    final T value;
+
+    Entry(String key, T value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+}
@@ -38,6 +38,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
@@ -242,6 +244,29 @@ public final class Util {
     };
   }
 
+  /**
+   * Returns an executor that runs each task on a new virtual thread, or null if this runtime doesn't
+   * have virtual threads. Virtual threads were added in Java 21; this uses reflection so that it
+   * links on older JVMs and on Android.
+   */
+  public static @Nullable ExecutorService virtualThreadExecutor(String name) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, name + " ", 0L);
+      ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory")
+          .invoke(builder);
+      return (ExecutorService) Executors.class
+          .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+          .invoke(null, threadFactory);
+    } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+      return null; // No virtual threads on this runtime.
+    } catch (InvocationTargetException e) {
+      return null; // Virtual threads are a preview feature that isn't enabled.
+    }
+  }
+
   /**
    * Returns an array containing only elements found in {@code first} and also in {@code
    * second}. The returned elements are in the same order as in {@code first}.
@@ -404,6 +429,8 @@ public final class Util {
       throw new AssertionError("Invalid IPv6 address: '" + host + "'");
     }
 
+    if (isCanonicalAsciiHostname(host)) return host;
+
     try {
       String result = IDN.toASCII(host).toLowerCase(Locale.US);
       if (result.isEmpty()) return null;
@@ -419,6 +446,26 @@ public final class Util {
     }
   }
 
+  /**
+   * Returns true if {@code host} is dot-separated labels of 1 to 63 lowercase ASCII letters, digits
+   * and hyphens. IDN.toASCII() returns such hosts unchanged, so they can skip it.
+   */
+  private static boolean isCanonicalAsciiHostname(String host) {
+    int labelLength = 0;
+    for (int i = 0, length = host.length(); i < length; i++) {
+      char c = host.charAt(i);
+      if (c == '.') {
+        if (labelLength == 0) return false;
+        labelLength = 0;
+      } else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-') {
+        if (++labelLength > 63) return false;
+      } else {
+        return false;
+      }
+    }
+    return labelLength != 0;
+  }
+
   private static boolean containsInvalidHostnameAsciiCodes(String hostnameAscii) {
     for (int i = 0; i < hostnameAscii.length(); i++) {
       char c = hostnameAscii.charAt(i);
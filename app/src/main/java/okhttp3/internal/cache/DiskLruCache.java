@@ -30,6 +30,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.annotation.Nullable;
@@ -151,7 +152,13 @@ public final class DiskLruCache implements Closeable, Flushable {
   int redundantOpCount;
   boolean hasJournalErrors;
 
-  // Must be read and written when synchronized on 'this'.
+  /**
+   * Guards the cache's state and journal. This is a lock rather than a monitor so that virtual
+   * threads doing file I/O while holding it don't pin their carrier threads.
+   */
+  final ReentrantLock lock = new ReentrantLock();
+
+  // Must be read and written while holding 'lock'.
   boolean initialized;
   boolean closed;
   boolean mostRecentTrimFailed;
@@ -168,7 +175,8 @@ public final class DiskLruCache implements Closeable, Flushable {
   private final Executor executor;
   private final Runnable cleanupRunnable = new Runnable() {
     public void run() {
-      synchronized (DiskLruCache.this) {
+      lock.lock();
+      try {
         if (!initialized | closed) {
           return; // Nothing to do
         }
@@ -188,6 +196,8 @@ public final class DiskLruCache implements Closeable, Flushable {
           mostRecentRebuildFailed = true;
           journalWriter = Okio.buffer(Okio.blackhole());
         }
+      } finally {
+        lock.unlock();
       }
     }
   };
@@ -205,47 +215,52 @@ public final class DiskLruCache implements Closeable, Flushable {
     this.executor = executor;
   }
 
-  public synchronized void initialize() throws IOException {
-    assert Thread.holdsLock(this);
+  public void initialize() throws IOException {
+    lock.lock();
+    try {
+      assert lock.isHeldByCurrentThread();
 
-    if (initialized) {
-      return; // Already initialized.
-    }
-
-    // If a bkp file exists, use it instead.
-    if (fileSystem.exists(journalFileBackup)) {
-      // If journal file also exists just delete backup file.
-      if (fileSystem.exists(journalFile)) {
-        fileSystem.delete(journalFileBackup);
-      } else {
-        fileSystem.rename(journalFileBackup, journalFile);
+      if (initialized) {
+        return; // Already initialized.
       }
-    }
 
-    // Prefer to pick up where we left off.
-    if (fileSystem.exists(journalFile)) {
-      try {
-        readJournal();
-        processJournal();
-        initialized = true;
-        return;
-      } catch (IOException journalIsCorrupt) {
-        Platform.get().log(WARN, "DiskLruCache " + directory + " is corrupt: "
-            + journalIsCorrupt.getMessage() + ", removing", journalIsCorrupt);
+      // If a bkp file exists, use it instead.
+      if (fileSystem.exists(journalFileBackup)) {
+        // If journal file also exists just delete backup file.
+        if (fileSystem.exists(journalFile)) {
+          fileSystem.delete(journalFileBackup);
+        } else {
+          fileSystem.rename(journalFileBackup, journalFile);
+        }
       }
 
-      // The cache is corrupted, attempt to delete the contents of the directory. This can throw and
-      // we'll let that propagate out as it likely means there is a severe filesystem problem.
-      try {
-        delete();
-      } finally {
-        closed = false;
+      // Prefer to pick up where we left off.
+      if (fileSystem.exists(journalFile)) {
+        try {
+          readJournal();
+          processJournal();
+          initialized = true;
+          return;
+        } catch (IOException journalIsCorrupt) {
+          Platform.get().log(WARN, "DiskLruCache " + directory + " is corrupt: "
+              + journalIsCorrupt.getMessage() + ", removing", journalIsCorrupt);
+        }
+
+        // The cache is corrupted, attempt to delete the contents of the directory. This can throw
+        // and we'll let that propagate out as it likely means there is a severe filesystem problem.
+        try {
+          delete();
+        } finally {
+          closed = false;
+        }
       }
-    }
 
-    rebuildJournal();
+      rebuildJournal();
 
-    initialized = true;
+      initialized = true;
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
@@ -312,7 +327,7 @@ public final class DiskLruCache implements Closeable, Flushable {
     Sink fileSink = fileSystem.appendingSink(journalFile);
     Sink faultHidingSink = new FaultHidingSink(fileSink) {
       @Override protected void onException(IOException e) {
-        assert (Thread.holdsLock(DiskLruCache.this));
+        assert (lock.isHeldByCurrentThread());
         hasJournalErrors = true;
       }
     };
@@ -385,65 +400,75 @@ public final class DiskLruCache implements Closeable, Flushable {
    * Creates a new journal that omits redundant information. This replaces the current journal if it
    * exists.
    */
-  synchronized void rebuildJournal() throws IOException {
-    if (journalWriter != null) {
-      journalWriter.close();
-    }
-
-    try (BufferedSink writer = Okio.buffer(fileSystem.sink(journalFileTmp))) {
-      writer.writeUtf8(MAGIC).writeByte('\n');
-      writer.writeUtf8(VERSION_1).writeByte('\n');
-      writer.writeDecimalLong(appVersion).writeByte('\n');
-      writer.writeDecimalLong(valueCount).writeByte('\n');
-      writer.writeByte('\n');
+  void rebuildJournal() throws IOException {
+    lock.lock();
+    try {
+      if (journalWriter != null) {
+        journalWriter.close();
+      }
 
-      for (Entry entry : lruEntries.values()) {
-        if (entry.currentEditor != null) {
-          writer.writeUtf8(DIRTY).writeByte(' ');
-          writer.writeUtf8(entry.key);
-          writer.writeByte('\n');
-        } else {
-          writer.writeUtf8(CLEAN).writeByte(' ');
-          writer.writeUtf8(entry.key);
-          entry.writeLengths(writer);
-          writer.writeByte('\n');
+      try (BufferedSink writer = Okio.buffer(fileSystem.sink(journalFileTmp))) {
+        writer.writeUtf8(MAGIC).writeByte('\n');
+        writer.writeUtf8(VERSION_1).writeByte('\n');
+        writer.writeDecimalLong(appVersion).writeByte('\n');
+        writer.writeDecimalLong(valueCount).writeByte('\n');
+        writer.writeByte('\n');
+
+        for (Entry entry : lruEntries.values()) {
+          if (entry.currentEditor != null) {
+            writer.writeUtf8(DIRTY).writeByte(' ');
+            writer.writeUtf8(entry.key);
+            writer.writeByte('\n');
+          } else {
+            writer.writeUtf8(CLEAN).writeByte(' ');
+            writer.writeUtf8(entry.key);
+            entry.writeLengths(writer);
+            writer.writeByte('\n');
+          }
         }
       }
-    }
 
-    if (fileSystem.exists(journalFile)) {
-      fileSystem.rename(journalFile, journalFileBackup);
+      if (fileSystem.exists(journalFile)) {
+        fileSystem.rename(journalFile, journalFileBackup);
+      }
+      fileSystem.rename(journalFileTmp, journalFile);
+      fileSystem.delete(journalFileBackup);
+
+      journalWriter = newJournalWriter();
+      hasJournalErrors = false;
+      mostRecentRebuildFailed = false;
+    } finally {
+      lock.unlock();
     }
-    fileSystem.rename(journalFileTmp, journalFile);
-    fileSystem.delete(journalFileBackup);
-
-    journalWriter = newJournalWriter();
-    hasJournalErrors = false;
-    mostRecentRebuildFailed = false;
   }
 
   /**
    * Returns a snapshot of the entry named {@code key}, or null if it doesn't exist is not currently
    * readable. If a value is returned, it is moved to the head of the LRU queue.
    */
-  public synchronized Snapshot get(String key) throws IOException {
-    initialize();
-
-    checkNotClosed();
-    validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (entry == null || !entry.readable) return null;
-
-    Snapshot snapshot = entry.snapshot();
-    if (snapshot == null) return null;
+  public Snapshot get(String key) throws IOException {
+    lock.lock();
+    try {
+      initialize();
+
+      checkNotClosed();
+      validateKey(key);
+      Entry entry = lruEntries.get(key);
+      if (entry == null || !entry.readable) return null;
+
+      Snapshot snapshot = entry.snapshot();
+      if (snapshot == null) return null;
+
+      redundantOpCount++;
+      journalWriter.writeUtf8(READ).writeByte(' ').writeUtf8(key).writeByte('\n');
+      if (journalRebuildRequired()) {
+        executor.execute(cleanupRunnable);
+      }
 
-    redundantOpCount++;
-    journalWriter.writeUtf8(READ).writeByte(' ').writeUtf8(key).writeByte('\n');
-    if (journalRebuildRequired()) {
-      executor.execute(cleanupRunnable);
+      return snapshot;
+    } finally {
+      lock.unlock();
     }
-
-    return snapshot;
   }
 
   /**
@@ -453,44 +478,49 @@ public final class DiskLruCache implements Closeable, Flushable {
     return edit(key, ANY_SEQUENCE_NUMBER);
   }
 
-  synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
-    initialize();
-
-    checkNotClosed();
-    validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
-        || entry.sequenceNumber != expectedSequenceNumber)) {
-      return null; // Snapshot is stale.
-    }
-    if (entry != null && entry.currentEditor != null) {
-      return null; // Another edit is in progress.
-    }
-    if (mostRecentTrimFailed || mostRecentRebuildFailed) {
-      // The OS has become our enemy! If the trim job failed, it means we are storing more data than
-      // requested by the user. Do not allow edits so we do not go over that limit any further. If
-      // the journal rebuild failed, the journal writer will not be active, meaning we will not be
-      // able to record the edit, causing file leaks. In both cases, we want to retry the clean up
-      // so we can get out of this state!
-      executor.execute(cleanupRunnable);
-      return null;
-    }
+  Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    lock.lock();
+    try {
+      initialize();
+
+      checkNotClosed();
+      validateKey(key);
+      Entry entry = lruEntries.get(key);
+      if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
+          || entry.sequenceNumber != expectedSequenceNumber)) {
+        return null; // Snapshot is stale.
+      }
+      if (entry != null && entry.currentEditor != null) {
+        return null; // Another edit is in progress.
+      }
+      if (mostRecentTrimFailed || mostRecentRebuildFailed) {
+        // The OS has become our enemy! If the trim job failed, it means we are storing more data
+        // than requested by the user. Do not allow edits so we do not go over that limit any
+        // further. If the journal rebuild failed, the journal writer will not be active, meaning we
+        // will not be able to record the edit, causing file leaks. In both cases, we want to retry
+        // the clean up so we can get out of this state!
+        executor.execute(cleanupRunnable);
+        return null;
+      }
 
-    // Flush the journal before creating files to prevent file leaks.
-    journalWriter.writeUtf8(DIRTY).writeByte(' ').writeUtf8(key).writeByte('\n');
-    journalWriter.flush();
+      // Flush the journal before creating files to prevent file leaks.
+      journalWriter.writeUtf8(DIRTY).writeByte(' ').writeUtf8(key).writeByte('\n');
+      journalWriter.flush();
 
-    if (hasJournalErrors) {
-      return null; // Don't edit; the journal can't be written.
-    }
+      if (hasJournalErrors) {
+        return null; // Don't edit; the journal can't be written.
+      }
 
-    if (entry == null) {
-      entry = new Entry(key);
-      lruEntries.put(key, entry);
+      if (entry == null) {
+        entry = new Entry(key);
+        lruEntries.put(key, entry);
+      }
+      Editor editor = new Editor(entry);
+      entry.currentEditor = editor;
+      return editor;
+    } finally {
+      lock.unlock();
     }
-    Editor editor = new Editor(entry);
-    entry.currentEditor = editor;
-    return editor;
   }
 
   /** Returns the directory where this cache stores its data. */
@@ -501,18 +531,28 @@ public final class DiskLruCache implements Closeable, Flushable {
   /**
    * Returns the maximum number of bytes that this cache should use to store its data.
    */
-  public synchronized long getMaxSize() {
-    return maxSize;
+  public long getMaxSize() {
+    lock.lock();
+    try {
+      return maxSize;
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
    * Changes the maximum number of bytes the cache can store and queues a job to trim the existing
    * store, if necessary.
    */
-  public synchronized void setMaxSize(long maxSize) {
-    this.maxSize = maxSize;
-    if (initialized) {
-      executor.execute(cleanupRunnable);
+  public void setMaxSize(long maxSize) {
+    lock.lock();
+    try {
+      this.maxSize = maxSize;
+      if (initialized) {
+        executor.execute(cleanupRunnable);
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -520,68 +560,79 @@ public final class DiskLruCache implements Closeable, Flushable {
    * Returns the number of bytes currently being used to store the values in this cache. This may be
    * greater than the max size if a background deletion is pending.
    */
-  public synchronized long size() throws IOException {
-    initialize();
-    return size;
+  public long size() throws IOException {
+    lock.lock();
+    try {
+      initialize();
+      return size;
+    } finally {
+      lock.unlock();
+    }
   }
 
-  synchronized void completeEdit(Editor editor, boolean success) throws IOException {
-    Entry entry = editor.entry;
-    if (entry.currentEditor != editor) {
-      throw new IllegalStateException();
-    }
+  void completeEdit(Editor editor, boolean success) throws IOException {
+    lock.lock();
+    try {
+      Entry entry = editor.entry;
+      if (entry.currentEditor != editor) {
+        throw new IllegalStateException();
+      }
 
-    // If this edit is creating the entry for the first time, every index must have a value.
-    if (success && !entry.readable) {
-      for (int i = 0; i < valueCount; i++) {
-        if (!editor.written[i]) {
-          editor.abort();
-          throw new IllegalStateException("Newly created entry didn't create value for index " + i);
+      // If this edit is creating the entry for the first time, every index must have a value.
+      if (success && !entry.readable) {
+        for (int i = 0; i < valueCount; i++) {
+          if (!editor.written[i]) {
+            editor.abort();
+            throw new IllegalStateException(
+                "Newly created entry didn't create value for index " + i);
+          }
+          if (!fileSystem.exists(entry.dirtyFiles[i])) {
+            editor.abort();
+            return;
+          }
         }
-        if (!fileSystem.exists(entry.dirtyFiles[i])) {
-          editor.abort();
-          return;
+      }
+
+      for (int i = 0; i < valueCount; i++) {
+        File dirty = entry.dirtyFiles[i];
+        if (success) {
+          if (fileSystem.exists(dirty)) {
+            File clean = entry.cleanFiles[i];
+            fileSystem.rename(dirty, clean);
+            long oldLength = entry.lengths[i];
+            long newLength = fileSystem.size(clean);
+            entry.lengths[i] = newLength;
+            size = size - oldLength + newLength;
+          }
+        } else {
+          fileSystem.delete(dirty);
         }
       }
-    }
 
-    for (int i = 0; i < valueCount; i++) {
-      File dirty = entry.dirtyFiles[i];
-      if (success) {
-        if (fileSystem.exists(dirty)) {
-          File clean = entry.cleanFiles[i];
-          fileSystem.rename(dirty, clean);
-          long oldLength = entry.lengths[i];
-          long newLength = fileSystem.size(clean);
-          entry.lengths[i] = newLength;
-          size = size - oldLength + newLength;
+      redundantOpCount++;
+      entry.currentEditor = null;
+      if (entry.readable | success) {
+        entry.readable = true;
+        journalWriter.writeUtf8(CLEAN).writeByte(' ');
+        journalWriter.writeUtf8(entry.key);
+        entry.writeLengths(journalWriter);
+        journalWriter.writeByte('\n');
+        if (success) {
+          entry.sequenceNumber = nextSequenceNumber++;
         }
       } else {
-        fileSystem.delete(dirty);
+        lruEntries.remove(entry.key);
+        journalWriter.writeUtf8(REMOVE).writeByte(' ');
+        journalWriter.writeUtf8(entry.key);
+        journalWriter.writeByte('\n');
       }
-    }
+      journalWriter.flush();
 
-    redundantOpCount++;
-    entry.currentEditor = null;
-    if (entry.readable | success) {
-      entry.readable = true;
-      journalWriter.writeUtf8(CLEAN).writeByte(' ');
-      journalWriter.writeUtf8(entry.key);
-      entry.writeLengths(journalWriter);
-      journalWriter.writeByte('\n');
-      if (success) {
-        entry.sequenceNumber = nextSequenceNumber++;
+      if (size > maxSize || journalRebuildRequired()) {
+        executor.execute(cleanupRunnable);
       }
-    } else {
-      lruEntries.remove(entry.key);
-      journalWriter.writeUtf8(REMOVE).writeByte(' ');
-      journalWriter.writeUtf8(entry.key);
-      journalWriter.writeByte('\n');
-    }
-    journalWriter.flush();
-
-    if (size > maxSize || journalRebuildRequired()) {
-      executor.execute(cleanupRunnable);
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -601,16 +652,21 @@ public final class DiskLruCache implements Closeable, Flushable {
    *
    * @return true if an entry was removed.
    */
-  public synchronized boolean remove(String key) throws IOException {
-    initialize();
-
-    checkNotClosed();
-    validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (entry == null) return false;
-    boolean removed = removeEntry(entry);
-    if (removed && size <= maxSize) mostRecentTrimFailed = false;
-    return removed;
+  public boolean remove(String key) throws IOException {
+    lock.lock();
+    try {
+      initialize();
+
+      checkNotClosed();
+      validateKey(key);
+      Entry entry = lruEntries.get(key);
+      if (entry == null) return false;
+      boolean removed = removeEntry(entry);
+      if (removed && size <= maxSize) mostRecentTrimFailed = false;
+      return removed;
+    } finally {
+      lock.unlock();
+    }
   }
 
   boolean removeEntry(Entry entry) throws IOException {
@@ -636,41 +692,61 @@ public final class DiskLruCache implements Closeable, Flushable {
   }
 
   /** Returns true if this cache has been closed. */
-  public synchronized boolean isClosed() {
-    return closed;
+  public boolean isClosed() {
+    lock.lock();
+    try {
+      return closed;
+    } finally {
+      lock.unlock();
+    }
   }
 
-  private synchronized void checkNotClosed() {
-    if (isClosed()) {
-      throw new IllegalStateException("cache is closed");
+  private void checkNotClosed() {
+    lock.lock();
+    try {
+      if (isClosed()) {
+        throw new IllegalStateException("cache is closed");
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
   /** Force buffered operations to the filesystem. */
-  @Override public synchronized void flush() throws IOException {
-    if (!initialized) return;
-
-    checkNotClosed();
-    trimToSize();
-    journalWriter.flush();
+  @Override public void flush() throws IOException {
+    lock.lock();
+    try {
+      if (!initialized) return;
+
+      checkNotClosed();
+      trimToSize();
+      journalWriter.flush();
+    } finally {
+      lock.unlock();
+    }
   }
 
   /** Closes this cache. Stored values will remain on the filesystem. */
-  @Override public synchronized void close() throws IOException {
-    if (!initialized || closed) {
-      closed = true;
-      return;
-    }
-    // Copying for safe iteration.
-    for (Entry entry : lruEntries.values().toArray(new Entry[lruEntries.size()])) {
-      if (entry.currentEditor != null) {
-        entry.currentEditor.abort();
+  @Override public void close() throws IOException {
+    lock.lock();
+    try {
+      if (!initialized || closed) {
+        closed = true;
+        return;
+      }
+      // Copying for safe iteration.
+      for (Entry entry : lruEntries.values().toArray(new Entry[lruEntries.size()])) {
+        if (entry.currentEditor != null) {
+          entry.currentEditor.abort();
+        }
       }
+      trimToSize();
+      journalWriter.close();
+      journalWriter = null;
+      closed = true;
+    } finally {
+      lock.unlock();
     }
-    trimToSize();
-    journalWriter.close();
-    journalWriter = null;
-    closed = true;
   }
 
   void trimToSize() throws IOException {
@@ -694,13 +770,18 @@ public final class DiskLruCache implements Closeable, Flushable {
    * Deletes all stored values from the cache. In-flight edits will complete normally but their
    * values will not be stored.
    */
-  public synchronized void evictAll() throws IOException {
-    initialize();
-    // Copying for safe iteration.
-    for (Entry entry : lruEntries.values().toArray(new Entry[lruEntries.size()])) {
-      removeEntry(entry);
+  public void evictAll() throws IOException {
+    lock.lock();
+    try {
+      initialize();
+      // Copying for safe iteration.
+      for (Entry entry : lruEntries.values().toArray(new Entry[lruEntries.size()])) {
+        removeEntry(entry);
+      }
+      mostRecentTrimFailed = false;
+    } finally {
+      lock.unlock();
     }
-    mostRecentTrimFailed = false;
   }
 
   private void validateKey(String key) {
@@ -726,57 +807,65 @@ public final class DiskLruCache implements Closeable, Flushable {
    *
    * <p>The returned iterator supports {@link Iterator#remove}.
    */
-  public synchronized Iterator<Snapshot> snapshots() throws IOException {
-    initialize();
-    return new Iterator<Snapshot>() {
-      /** Iterate a copy of the entries to defend against concurrent modification errors. */
-      final Iterator<Entry> delegate = new ArrayList<>(lruEntries.values()).iterator();
-
-      /** The snapshot to return from {@link #next}. Null if we haven't computed that yet. */
-      Snapshot nextSnapshot;
-
-      /** The snapshot to remove with {@link #remove}. Null if removal is illegal. */
-      Snapshot removeSnapshot;
-
-      @Override public boolean hasNext() {
-        if (nextSnapshot != null) return true;
-
-        synchronized (DiskLruCache.this) {
-          // If the cache is closed, truncate the iterator.
-          if (closed) return false;
-
-          while (delegate.hasNext()) {
-            Entry entry = delegate.next();
-            if (!entry.readable) continue; // Entry during edit.
-            Snapshot snapshot = entry.snapshot();
-            if (snapshot == null) continue; // Evicted since we copied the entries.
-            nextSnapshot = snapshot;
-            return true;
+  public Iterator<Snapshot> snapshots() throws IOException {
+    lock.lock();
+    try {
+      initialize();
+      return new Iterator<Snapshot>() {
+        /** Iterate a copy of the entries to defend against concurrent modification errors. */
+        final Iterator<Entry> delegate = new ArrayList<>(lruEntries.values()).iterator();
+
+        /** The snapshot to return from {@link #next}. Null if we haven't computed that yet. */
+        Snapshot nextSnapshot;
+
+        /** The snapshot to remove with {@link #remove}. Null if removal is illegal. */
+        Snapshot removeSnapshot;
+
+        @Override public boolean hasNext() {
+          if (nextSnapshot != null) return true;
+
+          lock.lock();
+          try {
+            // If the cache is closed, truncate the iterator.
+            if (closed) return false;
+
+            while (delegate.hasNext()) {
+              Entry entry = delegate.next();
+              if (!entry.readable) continue; // Entry during edit.
+              Snapshot snapshot = entry.snapshot();
+              if (snapshot == null) continue; // Evicted since we copied the entries.
+              nextSnapshot = snapshot;
+              return true;
+            }
+          } finally {
+            lock.unlock();
           }
-        }
 
-        return false;
-      }
+          return false;
+        }
 
-      @Override public Snapshot next() {
-        if (!hasNext()) throw new NoSuchElementException();
-        removeSnapshot = nextSnapshot;
-        nextSnapshot = null;
-        return removeSnapshot;
-      }
+        @Override public Snapshot next() {
+          if (!hasNext()) throw new NoSuchElementException();
+          removeSnapshot = nextSnapshot;
+          nextSnapshot = null;
+          return removeSnapshot;
+        }
 
-      @Override public void remove() {
-        if (removeSnapshot == null) throw new IllegalStateException("remove() before next()");
-        try {
-          DiskLruCache.this.remove(removeSnapshot.key);
-        } catch (IOException ignored) {
-          // Nothing useful to do here. We failed to remove from the cache. Most likely that's
-          // because we couldn't update the journal, but the cached entry will still be gone.
-        } finally {
-          removeSnapshot = null;
+        @Override public void remove() {
+          if (removeSnapshot == null) throw new IllegalStateException("remove() before next()");
+          try {
+            DiskLruCache.this.remove(removeSnapshot.key);
+          } catch (IOException ignored) {
+            // Nothing useful to do here. We failed to remove from the cache. Most likely that's
+            // because we couldn't update the journal, but the cached entry will still be gone.
+          } finally {
+            removeSnapshot = null;
+          }
         }
-      }
-    };
+      };
+    } finally {
+      lock.unlock();
+    }
   }
 
   /** A snapshot of the values for an entry. */
@@ -857,7 +946,8 @@ public final class DiskLruCache implements Closeable, Flushable {
      * been committed.
      */
     public Source newSource(int index) {
-      synchronized (DiskLruCache.this) {
+      lock.lock();
+      try {
         if (done) {
           throw new IllegalStateException();
         }
@@ -869,6 +959,8 @@ public final class DiskLruCache implements Closeable, Flushable {
         } catch (FileNotFoundException e) {
           return null;
         }
+      } finally {
+        lock.unlock();
       }
     }
 
@@ -878,7 +970,8 @@ public final class DiskLruCache implements Closeable, Flushable {
      * when {@link #commit} is called. The returned output stream does not throw IOExceptions.
      */
     public Sink newSink(int index) {
-      synchronized (DiskLruCache.this) {
+      lock.lock();
+      try {
         if (done) {
           throw new IllegalStateException();
         }
@@ -897,11 +990,16 @@ public final class DiskLruCache implements Closeable, Flushable {
         }
         return new FaultHidingSink(sink) {
           @Override protected void onException(IOException e) {
-            synchronized (DiskLruCache.this) {
+            lock.lock();
+            try {
               detach();
+            } finally {
+              lock.unlock();
             }
           }
         };
+      } finally {
+        lock.unlock();
       }
     }
 
@@ -910,7 +1008,8 @@ public final class DiskLruCache implements Closeable, Flushable {
      * may be started on the same key.
      */
     public void commit() throws IOException {
-      synchronized (DiskLruCache.this) {
+      lock.lock();
+      try {
         if (done) {
           throw new IllegalStateException();
         }
@@ -918,6 +1017,8 @@ public final class DiskLruCache implements Closeable, Flushable {
           completeEdit(this, true);
         }
         done = true;
+      } finally {
+        lock.unlock();
       }
     }
 
@@ -926,7 +1027,8 @@ public final class DiskLruCache implements Closeable, Flushable {
      * key.
      */
     public void abort() throws IOException {
-      synchronized (DiskLruCache.this) {
+      lock.lock();
+      try {
         if (done) {
           throw new IllegalStateException();
         }
@@ -934,17 +1036,22 @@ public final class DiskLruCache implements Closeable, Flushable {
           completeEdit(this, false);
         }
         done = true;
+      } finally {
+        lock.unlock();
       }
     }
 
     public void abortUnlessCommitted() {
-      synchronized (DiskLruCache.this) {
+      lock.lock();
+      try {
         if (!done && entry.currentEditor == this) {
           try {
             completeEdit(this, false);
           } catch (IOException ignored) {
           }
         }
+      } finally {
+        lock.unlock();
       }
     }
   }
@@ -1017,7 +1124,7 @@ public final class DiskLruCache implements Closeable, Flushable {
      * different edits.
      */
     Snapshot snapshot() {
-      if (!Thread.holdsLock(DiskLruCache.this)) throw new AssertionError();
+      if (!lock.isHeldByCurrentThread()) throw new AssertionError();
 
       Source[] sources = new Source[valueCount];
       long[] lengths = this.lengths.clone(); // Defensive copy since these can be zeroed out.
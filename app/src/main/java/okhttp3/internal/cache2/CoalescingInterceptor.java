@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2019 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.cache2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import okhttp3.Call;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.internal.http.RealResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * Shares one network request among calls that make identical requests at the same time. The first
+ * call to make a request leads: it goes to the network. Identical requests made before the
+ * leader's response headers arrive wait for them. If any did, the leader streams the response body
+ * through a {@link Relay} backed by a temporary file, and every call reads the body from the relay
+ * as it arrives. Calls that make the request while the relay is being filled join it too. If no
+ * call waited, the leader's response is returned as it is, and later calls make their own requests.
+ *
+ * <p>Only GET and HEAD requests are shared. Requests are identical if they have the same method,
+ * URL and headers. This runs after the cache and bridge interceptors, so those headers include
+ * cookies, credentials and conditions; responses can't vary by anything else.
+ *
+ * <p>Calls other than the leader get a response without the leader's exchange or handshake, so
+ * they can't act on its stream. If the leader fails before its response headers arrive, each
+ * waiting call makes its own request. Failures after that, including the leader's call being
+ * canceled, fail every reader of the body.
+ */
+public final class CoalescingInterceptor implements Interceptor {
+  /** The most recently read bytes kept in memory, so that readers keeping pace skip the file. */
+  private static final long BUFFER_MAX_SIZE = 64L * 1024L;
+
+  /** How often a waiting call checks whether it was canceled. */
+  private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition landed = lock.newCondition();
+
+  /** Requests whose response bodies can still be shared. Guarded by lock. */
+  private final Map<Key, Flight> flights = new HashMap<>();
+
+  /** Where relay files are created, or null for the system's temporary directory. */
+  private final @Nullable File directory;
+
+  public CoalescingInterceptor(@Nullable File directory) {
+    this.directory = directory;
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    String method = request.method();
+    if (!method.equals("GET") && !method.equals("HEAD")) return chain.proceed(request);
+
+    Key key = new Key(request);
+    Flight flight;
+    boolean leader = false;
+    lock.lock();
+    try {
+      flight = flights.get(key);
+      if (flight == null) {
+        flight = new Flight(key);
+        flights.put(key, flight);
+        leader = true;
+      } else if (!flight.landed) {
+        flight.waitingCalls++;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    if (leader) return lead(chain, flight);
+
+    Response response = follow(chain.call(), request, flight);
+    return response != null ? response : chain.proceed(request);
+  }
+
+  private Response lead(Chain chain, Flight flight) throws IOException {
+    Response response;
+    try {
+      response = chain.proceed(chain.request());
+    } catch (IOException | RuntimeException | Error e) {
+      land(flight, null, null);
+      throw e;
+    }
+
+    lock.lock();
+    try {
+      if (flight.waitingCalls == 0) {
+        // Nobody waited for this response. Don't copy its body for calls that may never come.
+        flight.landed = true;
+        remove(flight);
+        return response;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    ResponseBody body = response.body();
+    File file = null;
+    Relay relay;
+    try {
+      file = File.createTempFile("okhttp-relay", null, directory);
+      relay = Relay.share(file, new UpstreamSource(body.source(), flight), BUFFER_MAX_SIZE);
+    } catch (IOException e) {
+      // Without a file the body can't be shared. The leader reads it alone.
+      if (file != null) file.delete();
+      land(flight, null, null);
+      return response;
+    }
+
+    Shared shared = new Shared(relay, file, body.contentLength());
+    Source source = relay.newSource();
+    land(flight, withoutExchange(response), shared);
+    return withBody(response, shared, source, flight);
+  }
+
+  /**
+   * Returns the leader's response for {@code request}, or null if this call must make the request
+   * itself.
+   */
+  private @Nullable Response follow(Call call, Request request, Flight flight) throws IOException {
+    lock.lock();
+    try {
+      while (!flight.landed) {
+        if (call.isCanceled()) {
+          flight.waitingCalls--;
+          throw new IOException("Canceled");
+        }
+        landed.awaitNanos(POLL_NANOS);
+      }
+    } catch (InterruptedException e) {
+      flight.waitingCalls--;
+      throw new InterruptedIOException();
+    } finally {
+      lock.unlock();
+    }
+
+    Response headers = flight.headers;
+    Shared shared = flight.shared;
+    if (headers == null || shared == null) return null;
+
+    Source source = shared.relay.newSource();
+    if (source == null) return null; // Every reader closed the body before we could join.
+    Response response = headers.newBuilder()
+        .request(request)
+        .build();
+    return withBody(response, shared, source, flight);
+  }
+
+  private Response withBody(Response response, Shared shared, Source source, Flight flight) {
+    return response.newBuilder()
+        .body(new RealResponseBody(response.header("Content-Type"), shared.contentLength,
+            Okio.buffer(new DownstreamSource(source, flight))))
+        .build();
+  }
+
+  /**
+   * Returns the leader's response for other calls. It omits the leader's exchange, handshake and
+   * network response, which belong to the leader's call.
+   */
+  private static Response withoutExchange(Response response) {
+    return new Response.Builder()
+        .request(response.request())
+        .protocol(response.protocol())
+        .code(response.code())
+        .message(response.message())
+        .headers(response.headers())
+        .sentRequestAtMillis(response.sentRequestAtMillis())
+        .receivedResponseAtMillis(response.receivedResponseAtMillis())
+        .build();
+  }
+
+  /** Publishes the leader's response, or its absence, to waiting calls. */
+  private void land(Flight flight, @Nullable Response headers, @Nullable Shared shared) {
+    lock.lock();
+    try {
+      flight.headers = headers;
+      flight.shared = shared;
+      flight.landed = true;
+      if (shared == null) remove(flight);
+      landed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Stops new calls from joining {@code flight}. */
+  void remove(Flight flight) {
+    lock.lock();
+    try {
+      if (flights.get(flight.key) == flight) flights.remove(flight.key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  static final class Key {
+    final String method;
+    final HttpUrl url;
+    final Headers headers;
+
+    Key(Request request) {
+      this.method = request.method();
+      this.url = request.url();
+      this.headers = request.headers();
+    }
+
+    @Override public boolean equals(@Nullable Object other) {
+      return other instanceof Key
+          && ((Key) other).method.equals(method)
+          && ((Key) other).url.equals(url)
+          && ((Key) other).headers.equals(headers);
+    }
+
+    @Override public int hashCode() {
+      int result = 17;
+      result = 31 * result + method.hashCode();
+      result = 31 * result + url.hashCode();
+      result = 31 * result + headers.hashCode();
+      return result;
+    }
+  }
+
+  /** One request made on behalf of every call that made it meanwhile. */
+  static final class Flight {
+    final Key key;
+
+    /** The number of calls waiting for the leader's response headers. Guarded by lock. */
+    int waitingCalls;
+
+    /** True once the leader's response headers arrived or it failed. Guarded by lock. */
+    boolean landed;
+
+    /** The leader's response without its body. Null if it failed. Guarded by lock. */
+    @Nullable Response headers;
+
+    /** The leader's response body. Null if it isn't shared. Guarded by lock. */
+    @Nullable Shared shared;
+
+    Flight(Key key) {
+      this.key = key;
+    }
+  }
+
+  /** A response body shared through a relay backed by a temporary file. */
+  static final class Shared {
+    final Relay relay;
+    final File file;
+    final long contentLength;
+
+    Shared(Relay relay, File file, long contentLength) {
+      this.relay = relay;
+      this.file = file;
+      this.contentLength = contentLength;
+    }
+  }
+
+  /** The leader's network body. Once it's exhausted or fails, new calls make their own requests. */
+  final class UpstreamSource extends ForwardingSource {
+    private final Flight flight;
+
+    UpstreamSource(Source delegate, Flight flight) {
+      super(delegate);
+      this.flight = flight;
+    }
+
+    @Override public long read(Buffer sink, long byteCount) throws IOException {
+      boolean success = false;
+      try {
+        long result = super.read(sink, byteCount);
+        success = result != -1L;
+        return result;
+      } finally {
+        if (!success) remove(flight);
+      }
+    }
+  }
+
+  /** One call's view of the shared body. The last to close releases the network body and file. */
+  final class DownstreamSource extends ForwardingSource {
+    private final Flight flight;
+
+    DownstreamSource(Source delegate, Flight flight) {
+      super(delegate);
+      this.flight = flight;
+    }
+
+    @Override public void close() throws IOException {
+      super.close();
+      Shared shared = flight.shared;
+      if (shared == null || !shared.relay.isClosed()) return;
+
+      // No reader remains, so nothing else reads upstream. Close it if it wasn't exhausted.
+      remove(flight);
+      Source upstream = shared.relay.upstream;
+      if (upstream != null) closeQuietly(upstream);
+      shared.file.delete();
+    }
+  }
+}
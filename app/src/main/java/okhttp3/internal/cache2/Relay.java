@@ -87,6 +87,9 @@ final class Relay {
   /** User-supplied additional data persisted with the source data. */
   private final ByteString metadata;
 
+  /** False if {@link #file} is only scratch space, and needn't be readable after a crash. */
+  private final boolean durable;
+
   /**
    * The most recently read bytes from {@link #upstream}. This is a suffix of {@link #file}. Guarded
    * by this.
@@ -104,13 +107,14 @@ final class Relay {
   int sourceCount;
 
   private Relay(RandomAccessFile file, Source upstream, long upstreamPos, ByteString metadata,
-      long bufferMaxSize) {
+      long bufferMaxSize, boolean durable) {
     this.file = file;
     this.upstream = upstream;
     this.complete = upstream == null;
     this.upstreamPos = upstreamPos;
     this.metadata = metadata;
     this.bufferMaxSize = bufferMaxSize;
+    this.durable = durable;
   }
 
   /**
@@ -124,7 +128,7 @@ final class Relay {
   public static Relay edit(
       File file, Source upstream, ByteString metadata, long bufferMaxSize) throws IOException {
     RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
-    Relay result = new Relay(randomAccessFile, upstream, 0L, metadata, bufferMaxSize);
+    Relay result = new Relay(randomAccessFile, upstream, 0L, metadata, bufferMaxSize, true);
 
     // Write a dirty header. That way if we crash we won't attempt to recover this.
     randomAccessFile.setLength(0L);
@@ -133,6 +137,23 @@ final class Relay {
     return result;
   }
 
+  /**
+   * Creates a new relay that reads a live stream from {@code upstream}, using {@code file} only as
+   * scratch space to share that data with other sources. Unlike {@link #edit}, the file is never
+   * synced or committed, and can't be {@linkplain #read read} later.
+   *
+   * <p><strong>Warning:</strong> callers to this method must immediately call {@link #newSource} to
+   * create a source and close that when they're done. Otherwise a handle to {@code file} will be
+   * leaked.
+   */
+  public static Relay share(File file, Source upstream, long bufferMaxSize) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+    // Reserve the header so that upstream data lands where sources expect it.
+    randomAccessFile.setLength(FILE_HEADER_SIZE);
+    return new Relay(randomAccessFile, upstream, 0L, ByteString.EMPTY, bufferMaxSize, false);
+  }
+
   /**
    * Creates a relay that reads a recorded stream from {@code file}.
    *
@@ -158,7 +179,7 @@ final class Relay {
     ByteString metadata = metadataBuffer.readByteString();
 
     // Return the result.
-    return new Relay(randomAccessFile, null, upstreamSize, metadata, 0L);
+    return new Relay(randomAccessFile, null, upstreamSize, metadata, 0L, true);
   }
 
   private void writeHeader(
@@ -182,13 +203,15 @@ final class Relay {
   }
 
   void commit(long upstreamSize) throws IOException {
-    // Write metadata to the end of the file.
-    writeMetadata(upstreamSize);
-    file.getChannel().force(false);
-
-    // Once everything else is in place we can swap the dirty header for a clean one.
-    writeHeader(PREFIX_CLEAN, upstreamSize, metadata.size());
-    file.getChannel().force(false);
+    if (durable) {
+      // Write metadata to the end of the file.
+      writeMetadata(upstreamSize);
+      file.getChannel().force(false);
+
+      // Once everything else is in place we can swap the dirty header for a clean one.
+      writeHeader(PREFIX_CLEAN, upstreamSize, metadata.size());
+      file.getChannel().force(false);
+    }
 
     // This file is complete.
     synchronized (Relay.this) {
@@ -17,7 +17,10 @@ package okhttp3.internal.connection;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.Address;
 import okhttp3.Call;
@@ -27,6 +30,7 @@ import okhttp3.OkHttpClient;
 import okhttp3.Route;
 import okhttp3.internal.Util;
 import okhttp3.internal.http.ExchangeCodec;
+import okhttp3.internal.http2.Http2Resources;
 
 import static okhttp3.internal.Util.closeQuietly;
 
@@ -57,22 +61,34 @@ final class ExchangeFinder {
     private final RealConnectionPool connectionPool;
     private final Call call;
     private final EventListener eventListener;
+    private final boolean fastFallback;
+    private final Http2Resources http2Resources;
 
     private RouteSelector.Selection routeSelection;
 
     // State guarded by connectionPool.
     private final RouteSelector routeSelector;
     private RealConnection connectingConnection;
+    private FastFallbackConnector connectingRace;
     private boolean hasStreamFailure;
     private Route nextRouteToTry;
 
+    /** True while this finder holds the pool's permission to open a connection. */
+    private boolean connectReserved;
+
+    /** How long the last attempt to acquire a pooled connection waited, or -1. */
+    private long poolWaitNanos = -1L;
+
     ExchangeFinder(Transmitter transmitter, RealConnectionPool connectionPool,
-                   Address address, Call call, EventListener eventListener) {
+                   Address address, Call call, EventListener eventListener, boolean fastFallback,
+                   Http2Resources http2Resources) {
         this.transmitter = transmitter;
         this.connectionPool = connectionPool;
         this.address = address;
         this.call = call;
         this.eventListener = eventListener;
+        this.fastFallback = fastFallback;
+        this.http2Resources = http2Resources;
         this.routeSelector = new RouteSelector(
                 address, connectionPool.routeDatabase, call, eventListener);
     }
@@ -113,10 +129,13 @@ final class ExchangeFinder {
                     connectionRetryEnabled);
 
             // If this is a brand new connection, we can skip the extensive health checks.
-            synchronized (connectionPool) {
+            connectionPool.lock.lock();
+            try {
                 if (candidate.successCount == 0 && !candidate.isMultiplexed()) {
                     return candidate;
                 }
+            } finally {
+                connectionPool.lock.unlock();
             }
 
             // Do a (potentially slow) check to confirm that the pooled connection is still good. If it
@@ -141,7 +160,8 @@ final class ExchangeFinder {
         Route selectedRoute = null;
         RealConnection releasedConnection;
         Socket toClose;
-        synchronized (connectionPool) {
+        connectionPool.lock.lock();
+        try {
             if (transmitter.isCanceled()) throw new IOException("Canceled");
             hasStreamFailure = false; // This is a fresh attempt.
 
@@ -162,8 +182,7 @@ final class ExchangeFinder {
             if (result == null) {
                 // Attempt to get a connection from the pool.
                 /** zp add 2.transmitterAcquirePooledConnection */
-                if (connectionPool.transmitterAcquirePooledConnection(address,
-                        transmitter, null, false)) {
+                if (acquirePooledConnectionOrWait(connectTimeout)) {
                     foundPooledConnection = true;
                     result = transmitter.connection;
                 } else if (nextRouteToTry != null) {
@@ -173,9 +192,41 @@ final class ExchangeFinder {
                     selectedRoute = transmitter.connection.route();
                 }
             }
+        } finally {
+            connectionPool.lock.unlock();
+            if (poolWaitNanos != -1L) {
+                eventListener.connectionPoolWaited(call, address, poolWaitNanos);
+                poolWaitNanos = -1L;
+            }
         }
         closeQuietly(toClose);
 
+        try {
+            return connect(connectTimeout, readTimeout, writeTimeout, pingIntervalMillis,
+                    connectionRetryEnabled, releasedConnection, foundPooledConnection, result,
+                    selectedRoute);
+        } finally {
+            if (connectReserved) {
+                connectionPool.lock.lock();
+                try {
+                    releaseConnectReservation();
+                } finally {
+                    connectionPool.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Continues {@link #findConnection} once it has a connection or permission to open one. The
+     * reservation is released once the new connection is in the pool or no longer needed.
+     */
+    private RealConnection connect(int connectTimeout, int readTimeout, int writeTimeout,
+                                   int pingIntervalMillis, boolean connectionRetryEnabled,
+                                   RealConnection releasedConnection, boolean foundPooledConnection,
+                                   RealConnection result, Route selectedRoute) throws IOException {
+        List<Route> raceRoutes = null;
+        boolean countedHttp2Connect = false;
         if (releasedConnection != null) {
             eventListener.connectionReleased(call, releasedConnection);
         }
@@ -195,7 +246,8 @@ final class ExchangeFinder {
         }
 
         List<Route> routes = null;
-        synchronized (connectionPool) {
+        connectionPool.lock.lock();
+        try {
             if (transmitter.isCanceled()) throw new IOException("Canceled");
 
             if (newRouteSelection) {
@@ -207,19 +259,34 @@ final class ExchangeFinder {
                         address, transmitter, routes, false)) {
                     foundPooledConnection = true;
                     result = transmitter.connection;
+                    releaseConnectReservation();
                 }
             }
 
             if (!foundPooledConnection) {
-                if (selectedRoute == null) {
-                    selectedRoute = routeSelection.next();
+                countedHttp2Connect = connectionPool.http2ConnectStarted(address);
+                if (selectedRoute == null && fastFallback && routeSelection.remaining() > 1) {
+                    // Race the remaining routes of this selection against each other.
+                    raceRoutes = new ArrayList<>();
+                    while (routeSelection.hasNext()) {
+                        raceRoutes.add(routeSelection.next());
+                    }
+                    connectingRace = new FastFallbackConnector(
+                            connectionPool, raceRoutes, call, eventListener, http2Resources);
+                } else {
+                    if (selectedRoute == null) {
+                        selectedRoute = routeSelection.next();
+                    }
+
+                    // Create a connection and assign it to this allocation immediately. This makes
+                    // it possible for an asynchronous cancel() to interrupt the handshake we're
+                    // about to do.
+                    result = new RealConnection(connectionPool, selectedRoute, http2Resources);
+                    connectingConnection = result;
                 }
-
-                // Create a connection and assign it to this allocation immediately. This makes it possible
-                // for an asynchronous cancel() to interrupt the handshake we're about to do.
-                result = new RealConnection(connectionPool, selectedRoute);
-                connectingConnection = result;
             }
+        } finally {
+            connectionPool.lock.unlock();
         }
 
         // If we found a pooled connection on the 2nd time around, we're done.
@@ -230,13 +297,33 @@ final class ExchangeFinder {
 
         /** zp add 4.创建一个新的连接 */
         // Do TCP + TLS handshakes. This is a blocking operation.
-        result.connect(connectTimeout, readTimeout, writeTimeout, pingIntervalMillis,
-                connectionRetryEnabled, call, eventListener);
+        try {
+            if (raceRoutes != null) {
+                result = connectingRace.connect(connectTimeout, readTimeout, writeTimeout,
+                        pingIntervalMillis, connectionRetryEnabled);
+                selectedRoute = result.route();
+            } else {
+                result.connect(connectTimeout, readTimeout, writeTimeout, pingIntervalMillis,
+                        connectionRetryEnabled, call, eventListener);
+            }
+        } catch (IOException | RuntimeException e) {
+            connectionPool.lock.lock();
+            try {
+                connectingRace = null;
+                if (countedHttp2Connect) connectionPool.http2ConnectFinished(address);
+            } finally {
+                connectionPool.lock.unlock();
+            }
+            throw e;
+        }
         connectionPool.routeDatabase.connected(result.route());
 
         Socket socket = null;
-        synchronized (connectionPool) {
+        connectionPool.lock.lock();
+        try {
             connectingConnection = null;
+            connectingRace = null;
+            if (countedHttp2Connect) connectionPool.http2ConnectFinished(address);
             // Last attempt at connection coalescing, which only occurs if we attempted multiple
             // concurrent connections to the same host.
             /** zp add 5.transmitterAcquirePooledConnection */
@@ -254,6 +341,9 @@ final class ExchangeFinder {
                 connectionPool.put(result);
                 transmitter.acquireConnectionNoEvents(result);
             }
+            releaseConnectReservation();
+        } finally {
+            connectionPool.lock.unlock();
         }
         closeQuietly(socket);
 
@@ -261,15 +351,82 @@ final class ExchangeFinder {
         return result;
     }
 
+    /**
+     * Acquires a pooled connection to the address. If there is none but the address has as many
+     * HTTP/2 connections as permitted, this waits for one of them to release a stream. If the pool
+     * is at its connection limits, this queues behind other calls until a connection can be reused
+     * or opened. Returns false if a new connection should be made; the pool's permission to make it
+     * is then held.
+     */
+    private boolean acquirePooledConnectionOrWait(int connectTimeout) throws IOException {
+        assert (connectionPool.lock.isHeldByCurrentThread());
+        long waitNanos = connectTimeout != 0
+                ? TimeUnit.MILLISECONDS.toNanos(connectTimeout)
+                : Long.MAX_VALUE;
+        long waitStartNanos = 0L;
+        RealConnectionPool.ConnectWaiter waiter = null;
+        try {
+            while (true) {
+                // Calls already queued for this address get its connections first.
+                if ((waiter != null || !connectionPool.hasConnectWaiters(address))
+                        && connectionPool.transmitterAcquirePooledConnection(
+                        address, transmitter, null, false)) {
+                    return true;
+                }
+                if (waiter != null && connectionPool.takeConnectGrant(waiter)) {
+                    connectReserved = true;
+                    return false;
+                }
+                if (waiter == null && !connectionPool.http2ConnectionsSaturated(address)) {
+                    if (!connectionPool.hasConnectWaiters(address)
+                            && connectionPool.reserveConnect(address)) {
+                        connectReserved = true;
+                        return false;
+                    }
+                    waiter = connectionPool.newConnectWaiter(address);
+                }
+                if (waitNanos <= 0) {
+                    throw new SocketTimeoutException(waiter != null
+                            ? "timeout waiting for a connection"
+                            : "timeout waiting for an HTTP/2 stream");
+                }
+                if (waitStartNanos == 0L) waitStartNanos = System.nanoTime();
+                waitNanos = waiter != null
+                        ? connectionPool.awaitConnect(waiter, waitNanos)
+                        : connectionPool.awaitStream(waitNanos);
+                if (transmitter.isCanceled()) throw new IOException("Canceled");
+            }
+        } finally {
+            if (waiter != null) connectionPool.removeConnectWaiter(waiter);
+            if (waitStartNanos != 0L) poolWaitNanos = System.nanoTime() - waitStartNanos;
+        }
+    }
+
+    /** Releases the pool's permission to open a connection, if this finder holds it. */
+    private void releaseConnectReservation() {
+        assert (connectionPool.lock.isHeldByCurrentThread());
+        if (!connectReserved) return;
+        connectReserved = false;
+        connectionPool.releaseConnect(address);
+    }
+
     RealConnection connectingConnection() {
-        assert (Thread.holdsLock(connectionPool));
+        assert (connectionPool.lock.isHeldByCurrentThread());
         return connectingConnection;
     }
 
+    FastFallbackConnector connectingRace() {
+        assert (connectionPool.lock.isHeldByCurrentThread());
+        return connectingRace;
+    }
+
     void trackFailure() {
-        assert (!Thread.holdsLock(connectionPool));
-        synchronized (connectionPool) {
+        assert (!connectionPool.lock.isHeldByCurrentThread());
+        connectionPool.lock.lock();
+        try {
             hasStreamFailure = true; // Permit retries.
+        } finally {
+            connectionPool.lock.unlock();
         }
     }
 
@@ -277,8 +434,11 @@ final class ExchangeFinder {
      * Returns true if there is a failure that retrying might fix.
      */
     boolean hasStreamFailure() {
-        synchronized (connectionPool) {
+        connectionPool.lock.lock();
+        try {
             return hasStreamFailure;
+        } finally {
+            connectionPool.lock.unlock();
         }
     }
 
@@ -286,7 +446,8 @@ final class ExchangeFinder {
      * Returns true if a current route is still good or if there are routes we haven't tried yet.
      */
     boolean hasRouteToTry() {
-        synchronized (connectionPool) {
+        connectionPool.lock.lock();
+        try {
             if (nextRouteToTry != null) {
                 return true;
             }
@@ -297,6 +458,8 @@ final class ExchangeFinder {
             }
             return (routeSelection != null && routeSelection.hasNext())
                     || routeSelector.hasNext();
+        } finally {
+            connectionPool.lock.unlock();
         }
     }
 
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.connection;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Route;
+import okhttp3.internal.Util;
+import okhttp3.internal.http2.Http2Resources;
+
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * Races connects to a set of routes as described by RFC 8305, "Happy Eyeballs". Routes are ordered
+ * to alternate between IPv6 and IPv4 addresses. Each attempt starts {@link
+ * #CONNECTION_ATTEMPT_DELAY_MILLIS} after the previous one, or immediately once all attempts in
+ * flight have failed. The first connection to complete wins and the others are canceled.
+ *
+ * <p>Every attempt reports its own {@link EventListener#connectStart connectStart} and {@link
+ * EventListener#connectFailed connectFailed} events. These are delivered on the threads that make
+ * the attempts and may be concurrent.
+ */
+final class FastFallbackConnector {
+  /** How long an attempt has to itself before the next one starts. RFC 8305 recommends 250 ms. */
+  static final long CONNECTION_ATTEMPT_DELAY_MILLIS = 250L;
+
+  /** Runs the connect attempts. Threads are only kept while attempts are in flight. */
+  private static final Executor executor = new ThreadPoolExecutor(0 /* corePoolSize */,
+      Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
+      new SynchronousQueue<>(), Util.threadFactory("OkHttp Fast Fallback", true));
+
+  private final RealConnectionPool connectionPool;
+  private final List<Route> routes;
+  private final Call call;
+  private final EventListener eventListener;
+  private final Http2Resources http2Resources;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition condition = lock.newCondition();
+
+  // State guarded by lock.
+  private final List<RealConnection> connecting = new ArrayList<>();
+  private @Nullable RealConnection winner;
+  private @Nullable RouteException failure;
+  private int failedCount;
+  private boolean canceled;
+  private boolean done;
+
+  FastFallbackConnector(RealConnectionPool connectionPool, List<Route> routes, Call call,
+      EventListener eventListener, Http2Resources http2Resources) {
+    this.connectionPool = connectionPool;
+    this.http2Resources = http2Resources;
+    this.routes = interleave(routes);
+    this.call = call;
+    this.eventListener = eventListener;
+  }
+
+  /**
+   * Returns the first connection to complete. Throws a {@link RouteException} with every attempt's
+   * failure if none does.
+   */
+  RealConnection connect(int connectTimeout, int readTimeout, int writeTimeout,
+      int pingIntervalMillis, boolean connectionRetryEnabled) throws IOException {
+    long delayNanos = TimeUnit.MILLISECONDS.toNanos(CONNECTION_ATTEMPT_DELAY_MILLIS);
+    long nextAttemptAtNanos = 0L;
+    int started = 0;
+    RealConnection result = null;
+    List<RealConnection> losers;
+
+    lock.lock();
+    try {
+      while (true) {
+        if (canceled) throw new IOException("Canceled");
+        if (winner != null) {
+          result = winner;
+          return result;
+        }
+        if (failedCount == routes.size()) throw failure;
+
+        long now = System.nanoTime();
+        if (started < routes.size() && (started == failedCount || now >= nextAttemptAtNanos)) {
+          startAttempt(routes.get(started++), connectTimeout, readTimeout, writeTimeout,
+              pingIntervalMillis, connectionRetryEnabled);
+          nextAttemptAtNanos = now + delayNanos;
+        } else if (started < routes.size()) {
+          condition.awaitNanos(nextAttemptAtNanos - now);
+        } else {
+          condition.await();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted");
+    } finally {
+      done = true;
+      losers = new ArrayList<>(connecting);
+      losers.remove(result);
+      lock.unlock();
+
+      for (RealConnection loser : losers) {
+        loser.cancel();
+      }
+    }
+  }
+
+  /** Cancels every attempt in flight. This is safe to call from any thread. */
+  void cancel() {
+    List<RealConnection> toCancel;
+    lock.lock();
+    try {
+      canceled = true;
+      toCancel = new ArrayList<>(connecting);
+      condition.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    for (RealConnection connection : toCancel) {
+      connection.cancel();
+    }
+  }
+
+  private void startAttempt(Route route, int connectTimeout, int readTimeout, int writeTimeout,
+      int pingIntervalMillis, boolean connectionRetryEnabled) {
+    assert (lock.isHeldByCurrentThread());
+    RealConnection connection = new RealConnection(connectionPool, route, http2Resources);
+    connecting.add(connection);
+
+    executor.execute(() -> {
+      try {
+        connection.connect(connectTimeout, readTimeout, writeTimeout, pingIntervalMillis,
+            connectionRetryEnabled, call, eventListener);
+      } catch (RouteException e) {
+        attemptFailed(connection, e);
+        return;
+      } catch (RuntimeException | Error e) {
+        attemptFailed(connection, new RouteException(new IOException("connect failed", e)));
+        throw e;
+      }
+      attemptSucceeded(connection);
+    });
+  }
+
+  private void attemptFailed(RealConnection connection, RouteException e) {
+    lock.lock();
+    try {
+      connecting.remove(connection);
+      failedCount++;
+      if (failure == null) {
+        failure = e;
+      } else {
+        failure.addConnectException(e.getLastConnectException());
+      }
+
+      // Attempts that fail after the race is over were most likely canceled by it.
+      if (!done) {
+        connectionPool.connectFailed(connection.route(), e.getLastConnectException());
+      }
+      condition.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void attemptSucceeded(RealConnection connection) {
+    lock.lock();
+    try {
+      if (winner == null && !done && !canceled) {
+        winner = connection;
+        condition.signalAll();
+        return;
+      }
+      connecting.remove(connection);
+    } finally {
+      lock.unlock();
+    }
+
+    // Another attempt won. Discard this connection.
+    closeQuietly(connection.socket());
+  }
+
+  /**
+   * Returns {@code routes} reordered so IPv6 and IPv4 addresses alternate, starting with the family
+   * of the first route. Routes without a resolved address are left as they are.
+   */
+  static List<Route> interleave(List<Route> routes) {
+    List<Route> first = new ArrayList<>();
+    List<Route> second = new ArrayList<>();
+    Boolean firstIsIpv6 = null;
+    for (Route route : routes) {
+      InetAddress address = route.socketAddress().getAddress();
+      if (address == null) return routes;
+      boolean ipv6 = address instanceof Inet6Address;
+      if (firstIsIpv6 == null) firstIsIpv6 = ipv6;
+      (ipv6 == firstIsIpv6 ? first : second).add(route);
+    }
+
+    List<Route> result = new ArrayList<>(routes.size());
+    for (int i = 0; i < first.size() || i < second.size(); i++) {
+      if (i < first.size()) result.add(first.get(i));
+      if (i < second.size()) result.add(second.get(i));
+    }
+    return result;
+  }
+}
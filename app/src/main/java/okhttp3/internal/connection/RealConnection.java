@@ -58,6 +58,7 @@ import okhttp3.internal.http2.ConnectionShutdownException;
 import okhttp3.internal.http2.ErrorCode;
 import okhttp3.internal.http2.Http2Connection;
 import okhttp3.internal.http2.Http2ExchangeCodec;
+import okhttp3.internal.http2.Http2Resources;
 import okhttp3.internal.http2.Http2Stream;
 import okhttp3.internal.http2.StreamResetException;
 import okhttp3.internal.platform.Platform;
@@ -78,6 +79,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
 
   public final RealConnectionPool connectionPool;
   private final Route route;
+  private final Http2Resources http2Resources;
 
   // The fields below are initialized by connect() and never reassigned.
 
@@ -118,6 +120,9 @@ public final class RealConnection extends Http2Connection.Listener implements Co
    */
   private int allocationLimit = 1;
 
+  /** True once the peer's HTTP/2 settings have set {@link #allocationLimit}. */
+  private boolean settingsReceived;
+
   /** Current calls carried by this connection. */
   final List<Reference<Transmitter>> transmitters = new ArrayList<>();
 
@@ -125,15 +130,24 @@ public final class RealConnection extends Http2Connection.Listener implements Co
   long idleAtNanos = Long.MAX_VALUE;
 
   public RealConnection(RealConnectionPool connectionPool, Route route) {
+    this(connectionPool, route, new Http2Resources(Http2Resources.DEFAULT_RECEIVE_MEMORY_LIMIT, 0));
+  }
+
+  public RealConnection(
+      RealConnectionPool connectionPool, Route route, Http2Resources http2Resources) {
     this.connectionPool = connectionPool;
     this.route = route;
+    this.http2Resources = http2Resources;
   }
 
   /** Prevent further exchanges from being created on this connection. */
   public void noNewExchanges() {
-    assert (!Thread.holdsLock(connectionPool));
-    synchronized (connectionPool) {
+    assert (!connectionPool.lock.isHeldByCurrentThread());
+    connectionPool.lock.lock();
+    try {
       noNewExchanges = true;
+    } finally {
+      connectionPool.lock.unlock();
     }
   }
 
@@ -182,6 +196,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
     }
 
     while (true) {
+      long startNanos = System.nanoTime();
       try {
         if (route.requiresTunnel()) {
           /** zp add  http 转 https */
@@ -197,6 +212,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
         /** zp add 创建 https / http2  连接*/
         establishProtocol(connectionSpecSelector, pingIntervalMillis, call, eventListener);
         eventListener.connectEnd(call, route.socketAddress(), route.proxy(), protocol);
+        connectionPool.routeDatabase.connectLatency(route, System.nanoTime() - startNanos);
         break;
       } catch (IOException e) {
         closeQuietly(socket);
@@ -230,8 +246,11 @@ public final class RealConnection extends Http2Connection.Listener implements Co
     }
 
     if (http2Connection != null) {
-      synchronized (connectionPool) {
+      connectionPool.lock.lock();
+      try {
         allocationLimit = http2Connection.maxConcurrentStreams();
+      } finally {
+        connectionPool.lock.unlock();
       }
     }
   }
@@ -337,6 +356,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
         .socket(socket, route.address().url().host(), source, sink)
         .listener(this)
         .pingIntervalMillis(pingIntervalMillis)
+        .resources(http2Resources)
         .build();
     http2Connection.start();
   }
@@ -497,6 +517,20 @@ public final class RealConnection extends Http2Connection.Listener implements Co
    * {@code route} is the resolved route for a connection.
    * zp add 域名  端口 协议 代理配置  tls 等都要一样
    */
+  /** Returns the number of transmitters this connection can carry at once. */
+  int allocationLimit() {
+    return allocationLimit;
+  }
+
+  /**
+   * Limits this HTTP/2 connection to {@code limit} streams until the peer's settings arrive. The
+   * protocol permits unlimited streams before then, which would pile streams onto a new connection.
+   */
+  void assumeAllocationLimit(int limit) {
+    assert (connectionPool.lock.isHeldByCurrentThread());
+    if (!settingsReceived) allocationLimit = Math.min(allocationLimit, limit);
+  }
+
   boolean isEligible(Address address, @Nullable List<Route> routes) {
     // If this connection is not accepting new exchanges, we're done.
     if (transmitters.size() >= allocationLimit || noNewExchanges) return false;
@@ -650,8 +684,13 @@ public final class RealConnection extends Http2Connection.Listener implements Co
 
   /** When settings are received, adjust the allocation limit. */
   @Override public void onSettings(Http2Connection connection) {
-    synchronized (connectionPool) {
+    connectionPool.lock.lock();
+    try {
       allocationLimit = connection.maxConcurrentStreams();
+      settingsReceived = true;
+      connectionPool.wakeStreamWaiters();
+    } finally {
+      connectionPool.lock.unlock();
     }
   }
 
@@ -672,8 +711,9 @@ public final class RealConnection extends Http2Connection.Listener implements Co
    * being used for future exchanges.
    */
   void trackFailure(@Nullable IOException e) {
-    assert (!Thread.holdsLock(connectionPool));
-    synchronized (connectionPool) {
+    assert (!connectionPool.lock.isHeldByCurrentThread());
+    connectionPool.lock.lock();
+    try {
       if (e instanceof StreamResetException) {
         ErrorCode errorCode = ((StreamResetException) e).errorCode;
         if (errorCode == ErrorCode.REFUSED_STREAM) {
@@ -699,6 +739,8 @@ public final class RealConnection extends Http2Connection.Listener implements Co
           routeFailureCount++;
         }
       }
+    } finally {
+      connectionPool.lock.unlock();
     }
   }
 
@@ -17,26 +17,61 @@
 package okhttp3.internal.connection;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.net.Socket;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.annotation.Nullable;
 import okhttp3.Address;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
 import okhttp3.Route;
+import okhttp3.internal.Internal;
 import okhttp3.internal.Util;
 import okhttp3.internal.connection.Transmitter.TransmitterReference;
 import okhttp3.internal.platform.Platform;
+import okio.Timeout;
 
 import static okhttp3.internal.Util.closeQuietly;
 
+/**
+ * Pooled connections are indexed by their {@link Address}, and HTTP/2 connections on direct routes
+ * are also indexed by their remote socket address so they can be coalesced. Idle connections are
+ * kept in the order they became idle, which is the order they're evicted. Acquiring a connection
+ * and evicting one only look at connections that could be used, not at the whole pool.
+ *
+ * <p>New streams go to the least loaded HTTP/2 connection. An address gets additional HTTP/2
+ * connections while all of its connections are at their concurrent stream limit, up to a maximum.
+ * When load drops, surplus connections stop taking new streams and are closed once they're idle.
+ *
+ * <p>Addresses can be kept warm: the pool opens connections to them in the background, and the
+ * cleanup task won't evict their idle connections below a configured minimum.
+ *
+ * <p>The number of connections, idle or in use, can be capped for each address and in total. Each
+ * new connection reserves capacity before it connects. Calls that find the pool full wait in a
+ * single queue and are served in the order they arrived: a waiting call may reuse a connection that
+ * becomes available to its address, or is granted capacity when a connection closes or a connect
+ * fails. If only idle connections stand in the way, the one that has been idle longest is evicted.
+ */
 public final class RealConnectionPool {
   /**
    * Background threads are used to cleanup expired connections. There will be at most a single
@@ -50,47 +85,172 @@ public final class RealConnectionPool {
   /** The maximum number of idle connections for each address. */
   private final int maxIdleConnections;
   private final long keepAliveDurationNs;
+
+  /** The maximum number of HTTP/2 connections to open to each address. */
+  private final int maxHttp2ConnectionsPerAddress;
+
+  /** The maximum number of connections, idle or in use, to each address and in total. */
+  private final int maxConnectionsPerAddress;
+  private final int maxConnections;
+
+  /**
+   * Guards the pool and the connections in it. This is a lock rather than a monitor so that
+   * virtual threads contending for it don't pin their carrier threads.
+   */
+  final ReentrantLock lock = new ReentrantLock();
+
+  /** Signalled to wake the cleanup thread when a connection becomes idle. */
+  private final Condition cleanupCondition = lock.newCondition();
+
+  /** Signalled when an address's HTTP/2 connections may be able to take another stream. */
+  private final Condition streamCondition = lock.newCondition();
+
   private final Runnable cleanupRunnable = () -> {
     while (true) {
       long waitNanos = cleanup(System.nanoTime());
       if (waitNanos == -1) return;
       if (waitNanos > 0) {
-        long waitMillis = waitNanos / 1000000L;
-        waitNanos -= (waitMillis * 1000000L);
-        synchronized (RealConnectionPool.this) {
-          try {
-            RealConnectionPool.this.wait(waitMillis, (int) waitNanos);
-          } catch (InterruptedException ignored) {
-          }
+        lock.lock();
+        try {
+          cleanupCondition.awaitNanos(waitNanos);
+        } catch (InterruptedException ignored) {
+        } finally {
+          lock.unlock();
         }
       }
     }
   };
 
-  private final Deque<RealConnection> connections = new ArrayDeque<>();
+  /** All pooled connections, keyed by the address they were established for. */
+  private final Map<Address, List<RealConnection>> connectionsByAddress = new HashMap<>();
+
+  /** HTTP/2 connections on direct routes, keyed by remote socket address for coalescing. */
+  private final Map<InetSocketAddress, List<RealConnection>> http2ConnectionsBySocketAddress =
+      new HashMap<>();
+
+  /** Connections without transmitters, in the order they became idle. The first is the oldest. */
+  private final LinkedHashSet<RealConnection> idleConnections = new LinkedHashSet<>();
+
+  /**
+   * Receives references to transmitters that were garbage collected. If a reference is still held
+   * by its connection then the transmitter was leaked.
+   */
+  final ReferenceQueue<Transmitter> transmitterReferenceQueue = new ReferenceQueue<>();
+
+  /** Connects in flight to addresses that already have HTTP/2 connections. */
+  private final Map<Address, Integer> http2ConnectsInFlight = new HashMap<>();
+
+  /** Addresses whose idle connections are kept topped up. */
+  private final Map<Address, WarmAddress> warmAddresses = new HashMap<>();
+
+  /** Connects in flight that count towards the connection limits, keyed by address. */
+  private final Map<Address, Integer> reservedConnects = new HashMap<>();
+  private int reservedConnectCount;
+
+  /** Calls waiting for capacity to connect, in the order they arrived. */
+  private final ArrayDeque<ConnectWaiter> connectWaiters = new ArrayDeque<>();
+
+  /** True while granting capacity to waiters, which may evict connections. */
+  private boolean grantingConnects;
+
+  private int connectionCount;
   final RouteDatabase routeDatabase = new RouteDatabase();
   boolean cleanupRunning;
 
-  public RealConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit) {
+  public RealConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit,
+      int maxHttp2ConnectionsPerAddress, int maxConnectionsPerAddress, int maxConnections) {
     this.maxIdleConnections = maxIdleConnections;
     this.keepAliveDurationNs = timeUnit.toNanos(keepAliveDuration);
+    this.maxHttp2ConnectionsPerAddress = maxHttp2ConnectionsPerAddress;
+    this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    this.maxConnections = maxConnections;
 
     // Put a floor on the keep alive duration, otherwise cleanup will spin loop.
     if (keepAliveDuration <= 0) {
       throw new IllegalArgumentException("keepAliveDuration <= 0: " + keepAliveDuration);
     }
+    if (maxHttp2ConnectionsPerAddress <= 0) {
+      throw new IllegalArgumentException(
+          "maxHttp2ConnectionsPerAddress <= 0: " + maxHttp2ConnectionsPerAddress);
+    }
+    if (maxConnectionsPerAddress <= 0) {
+      throw new IllegalArgumentException(
+          "maxConnectionsPerAddress <= 0: " + maxConnectionsPerAddress);
+    }
+    if (maxConnections <= 0) {
+      throw new IllegalArgumentException("maxConnections <= 0: " + maxConnections);
+    }
   }
 
-  public synchronized int idleConnectionCount() {
-    int total = 0;
-    for (RealConnection connection : connections) {
-      if (connection.transmitters.isEmpty()) total++;
+  public int idleConnectionCount() {
+    lock.lock();
+    try {
+      return idleConnections.size();
+    } finally {
+      lock.unlock();
     }
-    return total;
   }
 
-  public synchronized int connectionCount() {
-    return connections.size();
+  public int connectionCount() {
+    lock.lock();
+    try {
+      return connectionCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Opens connections to {@code address} in the background until {@code connectionCount} of them
+   * are idle. Connections that are idle or already being opened count towards this number.
+   */
+  public void prewarm(OkHttpClient client, Address address, int connectionCount) {
+    lock.lock();
+    try {
+      WarmAddress warmAddress = warmAddresses.get(address);
+      if (warmAddress == null) {
+        // Track the connects so repeated calls don't open more. It's forgotten once they finish.
+        warmAddress = new WarmAddress(client, address);
+        warmAddresses.put(address, warmAddress);
+      }
+      connectInBackground(warmAddress, connectionCount);
+      forgetIfCold(warmAddress);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Keeps at least {@code minimumIdleConnections} idle connections to {@code address}. The cleanup
+   * task won't evict below this count and opens new connections when it is short. Zero stops
+   * keeping the address warm.
+   */
+  public void setMinimumIdleConnections(
+      OkHttpClient client, Address address, int minimumIdleConnections) {
+    lock.lock();
+    try {
+      WarmAddress warmAddress = warmAddresses.get(address);
+      if (minimumIdleConnections == 0) {
+        if (warmAddress != null) {
+          warmAddress.minimumIdleConnections = 0;
+          forgetIfCold(warmAddress);
+        }
+        return;
+      }
+      if (warmAddress == null) {
+        warmAddress = new WarmAddress(client, address);
+        warmAddresses.put(address, warmAddress);
+      }
+      warmAddress.client = client;
+      warmAddress.minimumIdleConnections = minimumIdleConnections;
+      connectInBackground(warmAddress, minimumIdleConnections);
+      if (!cleanupRunning) {
+        cleanupRunning = true;
+        executor.execute(cleanupRunnable);
+      }
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
@@ -103,25 +263,354 @@ public final class RealConnectionPool {
    */
   boolean transmitterAcquirePooledConnection(Address address, Transmitter transmitter,
       @Nullable List<Route> routes, boolean requireMultiplexed) {
-    assert (Thread.holdsLock(this));
-    for (RealConnection connection : connections) {
+    assert (lock.isHeldByCurrentThread());
+
+    // Prefer a connection that was established for this exact address.
+    if (acquireFrom(connectionsByAddress.get(address), address, transmitter, routes,
+        requireMultiplexed)) {
+      return true;
+    }
+
+    // Otherwise try to coalesce onto an HTTP/2 connection to one of the same IP addresses.
+    if (routes == null) return false;
+    for (int i = 0, size = routes.size(); i < size; i++) {
+      Route route = routes.get(i);
+      if (route.proxy().type() != Proxy.Type.DIRECT) continue;
+      if (acquireFrom(http2ConnectionsBySocketAddress.get(route.socketAddress()), address,
+          transmitter, routes, requireMultiplexed)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean acquireFrom(@Nullable List<RealConnection> candidates, Address address,
+      Transmitter transmitter, @Nullable List<Route> routes, boolean requireMultiplexed) {
+    if (candidates == null) return false;
+    RealConnection leastLoaded = null;
+    for (int i = 0, size = candidates.size(); i < size; i++) {
+      RealConnection connection = candidates.get(i);
       if (requireMultiplexed && !connection.isMultiplexed())
         continue;
       if (!connection.isEligible(address, routes))
         continue;
-      transmitter.acquireConnectionNoEvents(connection);
-      return true;
+      if (!connection.isMultiplexed()) {
+        leastLoaded = connection; // An eligible HTTP/1 connection is unused.
+        break;
+      }
+      if (leastLoaded == null
+          || connection.transmitters.size() < leastLoaded.transmitters.size()) {
+        leastLoaded = connection;
+      }
+    }
+    if (leastLoaded == null) return false;
+    transmitter.acquireConnectionNoEvents(leastLoaded);
+    return true;
+  }
+
+  /**
+   * Returns true if {@code address} has as many HTTP/2 connections as permitted and none of them
+   * can take another stream. Callers should wait for a stream rather than connect again.
+   */
+  boolean http2ConnectionsSaturated(Address address) {
+    assert (lock.isHeldByCurrentThread());
+    List<RealConnection> connections = connectionsByAddress.get(address);
+    if (connections == null) return false;
+    int open = 0;
+    for (int i = 0, size = connections.size(); i < size; i++) {
+      RealConnection connection = connections.get(i);
+      if (!connection.isMultiplexed() || connection.noNewExchanges) continue;
+      if (connection.transmitters.size() < connection.allocationLimit()) return false;
+      open++;
+    }
+    Integer connecting = http2ConnectsInFlight.get(address);
+    return open + (connecting != null ? connecting : 0) >= maxHttp2ConnectionsPerAddress;
+  }
+
+  /**
+   * Notify this pool that a connection to {@code address} is being made. Returns true if it counts
+   * towards the address's HTTP/2 connections, in which case {@link #http2ConnectFinished} must be
+   * called when it completes. Connects to addresses without HTTP/2 connections aren't counted.
+   */
+  boolean http2ConnectStarted(Address address) {
+    assert (lock.isHeldByCurrentThread());
+    List<RealConnection> connections = connectionsByAddress.get(address);
+    if (connections == null) return false;
+    for (int i = 0, size = connections.size(); i < size; i++) {
+      if (connections.get(i).isMultiplexed()) {
+        Integer connecting = http2ConnectsInFlight.get(address);
+        http2ConnectsInFlight.put(address, connecting != null ? connecting + 1 : 1);
+        return true;
+      }
     }
     return false;
   }
 
+  void http2ConnectFinished(Address address) {
+    assert (lock.isHeldByCurrentThread());
+    int connecting = http2ConnectsInFlight.get(address);
+    if (connecting == 1) {
+      http2ConnectsInFlight.remove(address);
+    } else {
+      http2ConnectsInFlight.put(address, connecting - 1);
+    }
+    streamCondition.signalAll();
+  }
+
+  /**
+   * Waits up to {@code nanos} for a stream to be released, a connection to be removed, or a call to
+   * be canceled. Returns the time left to wait.
+   */
+  long awaitStream(long nanos) throws InterruptedIOException {
+    assert (lock.isHeldByCurrentThread());
+    return await(streamCondition, nanos);
+  }
+
+  /** Wakes callers that are waiting for an HTTP/2 stream or for capacity to connect. */
+  void wakeStreamWaiters() {
+    assert (lock.isHeldByCurrentThread());
+    streamCondition.signalAll();
+    for (ConnectWaiter waiter : connectWaiters) {
+      waiter.condition.signal();
+    }
+  }
+
+  /** Returns true if calls are queued for capacity to connect to {@code address}. */
+  boolean hasConnectWaiters(Address address) {
+    assert (lock.isHeldByCurrentThread());
+    for (ConnectWaiter waiter : connectWaiters) {
+      if (waiter.address.equals(address)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Reserves capacity for a new connection to {@code address}, evicting an idle connection if the
+   * pool is full. Returns false if the connection limits don't permit another connection. A
+   * reservation must be released with {@link #releaseConnect} once the connect completes or fails.
+   */
+  boolean reserveConnect(Address address) {
+    assert (lock.isHeldByCurrentThread());
+    if (!canConnect(address, true)) return false;
+    reserve(address);
+    return true;
+  }
+
+  void releaseConnect(Address address) {
+    assert (lock.isHeldByCurrentThread());
+    int reserved = reservedConnects.get(address);
+    if (reserved == 1) {
+      reservedConnects.remove(address);
+    } else {
+      reservedConnects.put(address, reserved - 1);
+    }
+    reservedConnectCount--;
+    grantConnectWaiters();
+  }
+
+  /**
+   * Queues a call for capacity to connect to {@code address}. The caller must wait with {@link
+   * #awaitConnect} and call {@link #removeConnectWaiter} when it's done waiting.
+   */
+  ConnectWaiter newConnectWaiter(Address address) {
+    assert (lock.isHeldByCurrentThread());
+    ConnectWaiter waiter = new ConnectWaiter(address, lock.newCondition());
+    connectWaiters.add(waiter);
+    return waiter;
+  }
+
+  /**
+   * Waits up to {@code nanos} for {@code waiter} to be granted capacity to connect, for a connection
+   * to its address to become available, or for its call to be canceled. Returns the time left to
+   * wait.
+   */
+  long awaitConnect(ConnectWaiter waiter, long nanos) throws InterruptedIOException {
+    assert (lock.isHeldByCurrentThread());
+    return await(waiter.condition, nanos);
+  }
+
+  /**
+   * Returns true if {@code waiter} was granted capacity to connect, transferring that reservation to
+   * the caller.
+   */
+  boolean takeConnectGrant(ConnectWaiter waiter) {
+    assert (lock.isHeldByCurrentThread());
+    if (!waiter.granted) return false;
+    waiter.granted = false;
+    return true;
+  }
+
+  /** Dequeues {@code waiter}, releasing any capacity it was granted but didn't take. */
+  void removeConnectWaiter(ConnectWaiter waiter) {
+    assert (lock.isHeldByCurrentThread());
+    if (waiter.granted) {
+      waiter.granted = false;
+      releaseConnect(waiter.address);
+    } else {
+      connectWaiters.remove(waiter);
+    }
+  }
+
+  private long await(Condition condition, long nanos) throws InterruptedIOException {
+    try {
+      return condition.awaitNanos(nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted");
+    }
+  }
+
+  /**
+   * Returns true if the connection limits permit another connection to {@code address}. If {@code
+   * evict} is true, an idle connection may be evicted to make room.
+   */
+  private boolean canConnect(Address address, boolean evict) {
+    List<RealConnection> connections = connectionsByAddress.get(address);
+    Integer reserved = reservedConnects.get(address);
+    int addressCount = (connections != null ? connections.size() : 0)
+        + (reserved != null ? reserved : 0);
+    if (addressCount >= maxConnectionsPerAddress) return false;
+    if (connectionCount + reservedConnectCount < maxConnections) return true;
+    // Evicting may grant the room to a queued call, so check again.
+    return evict && evictLongestIdle() && connectionCount + reservedConnectCount < maxConnections;
+  }
+
+  private void reserve(Address address) {
+    Integer reserved = reservedConnects.get(address);
+    reservedConnects.put(address, reserved != null ? reserved + 1 : 1);
+    reservedConnectCount++;
+  }
+
+  /**
+   * Grants capacity to queued calls in the order they arrived. A call that its address's limit
+   * holds back doesn't hold back calls to other addresses.
+   */
+  private void grantConnectWaiters() {
+    if (grantingConnects || connectWaiters.isEmpty()) return;
+    grantingConnects = true;
+    try {
+      for (Iterator<ConnectWaiter> i = connectWaiters.iterator(); i.hasNext(); ) {
+        ConnectWaiter waiter = i.next();
+        if (!canConnect(waiter.address, true)) continue;
+        i.remove();
+        reserve(waiter.address);
+        waiter.granted = true;
+        waiter.condition.signal();
+      }
+    } finally {
+      grantingConnects = false;
+    }
+  }
+
+  /**
+   * Wakes the first call queued for {@code address}, which may be able to use one of its pooled
+   * connections. Returns false if no call is queued for it.
+   */
+  private boolean wakeConnectWaiter(Address address) {
+    for (ConnectWaiter waiter : connectWaiters) {
+      if (waiter.address.equals(address)) {
+        waiter.condition.signal();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Wakes every call queued for {@code address}, which may share a new HTTP/2 connection. */
+  private void wakeConnectWaiters(Address address) {
+    for (ConnectWaiter waiter : connectWaiters) {
+      if (waiter.address.equals(address)) waiter.condition.signal();
+    }
+  }
+
+  /**
+   * Evicts the connection that has been idle the longest to make room for a new one. Its socket is
+   * closed in the background as the pool's lock is held. Returns false if no connection is idle.
+   */
+  private boolean evictLongestIdle() {
+    if (idleConnections.isEmpty()) return false;
+    RealConnection connection = idleConnections.iterator().next();
+    connection.noNewExchanges = true;
+    remove(connection);
+    Socket socket = connection.socket();
+    executor.execute(() -> closeQuietly(socket));
+    return true;
+  }
+
+  /**
+   * Notify this pool that a stream on {@code connection} was released. If the address's other
+   * HTTP/2 connections could carry all of its streams at half their capacity, the least loaded
+   * connection stops taking new streams so it can be closed when it is idle.
+   */
+  void http2StreamReleased(RealConnection connection) {
+    assert (lock.isHeldByCurrentThread());
+    streamCondition.signalAll();
+    wakeConnectWaiter(connection.route().address());
+
+    List<RealConnection> connections = connectionsByAddress.get(connection.route().address());
+    if (connections == null || connections.size() < 2) return;
+    int open = 0;
+    long streams = 0L;
+    int capacity = Integer.MAX_VALUE;
+    RealConnection leastLoaded = null;
+    for (int i = 0, size = connections.size(); i < size; i++) {
+      RealConnection candidate = connections.get(i);
+      if (!candidate.isMultiplexed() || candidate.noNewExchanges) continue;
+      open++;
+      streams += candidate.transmitters.size();
+      capacity = Math.min(capacity, candidate.allocationLimit());
+      // Only drain connections that will be released later, so their release closes them.
+      if (candidate != connection && candidate.transmitters.isEmpty()) continue;
+      if (leastLoaded == null || candidate.transmitters.size() < leastLoaded.transmitters.size()) {
+        leastLoaded = candidate;
+      }
+    }
+    if (open > 1 && leastLoaded != null && streams <= (open - 1) * (long) capacity / 2) {
+      leastLoaded.noNewExchanges = true;
+    }
+  }
+
   void put(RealConnection connection) {
-    assert (Thread.holdsLock(this));
+    assert (lock.isHeldByCurrentThread());
     if (!cleanupRunning) {
       cleanupRunning = true;
       executor.execute(cleanupRunnable);
     }
-    connections.add(connection);
+    connectionCount++;
+    if (connection.isMultiplexed()) {
+      assumeSiblingAllocationLimit(connection);
+    }
+    index(connectionsByAddress, connection.route().address(), connection);
+    if (isCoalescable(connection)) {
+      index(http2ConnectionsBySocketAddress, connection.route().socketAddress(), connection);
+    }
+    if (connection.transmitters.isEmpty()) {
+      idleConnections.add(connection);
+    }
+    if (connection.isMultiplexed()) {
+      // Calls queued behind this connect may share it. Its settings may have arrived already.
+      streamCondition.signalAll();
+      wakeConnectWaiters(connection.route().address());
+    }
+  }
+
+  /** Applies the stream limit of the address's other HTTP/2 connections to {@code connection}. */
+  private void assumeSiblingAllocationLimit(RealConnection connection) {
+    List<RealConnection> siblings = connectionsByAddress.get(connection.route().address());
+    if (siblings == null) return;
+    for (int i = 0, size = siblings.size(); i < size; i++) {
+      RealConnection sibling = siblings.get(i);
+      if (sibling.isMultiplexed()) {
+        connection.assumeAllocationLimit(sibling.allocationLimit());
+        return;
+      }
+    }
+  }
+
+  /** Notify this pool that {@code connection} has acquired its first transmitter. */
+  void connectionBecameActive(RealConnection connection) {
+    assert (lock.isHeldByCurrentThread());
+    idleConnections.remove(connection);
   }
 
   /**
@@ -129,27 +618,32 @@ public final class RealConnectionPool {
    * been removed from the pool and should be closed.
    */
   boolean connectionBecameIdle(RealConnection connection) {
-    assert (Thread.holdsLock(this));
+    assert (lock.isHeldByCurrentThread());
     if (connection.noNewExchanges || maxIdleConnections == 0) {
-      connections.remove(connection);
+      remove(connection);
       return true;
     } else {
-      notifyAll(); // Awake the cleanup thread: we may have exceeded the idle connection limit.
+      idleConnections.add(connection);
+      // Awake the cleanup thread: we may have exceeded the idle connection limit.
+      cleanupCondition.signalAll();
+      // Offer the connection to a queued call, or evict it to make room for one.
+      if (!wakeConnectWaiter(connection.route().address())) grantConnectWaiters();
       return false;
     }
   }
 
   public void evictAll() {
     List<RealConnection> evictedConnections = new ArrayList<>();
-    synchronized (this) {
-      for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-        RealConnection connection = i.next();
-        if (connection.transmitters.isEmpty()) {
-          connection.noNewExchanges = true;
-          evictedConnections.add(connection);
-          i.remove();
-        }
+    lock.lock();
+    try {
+      evictedConnections.addAll(idleConnections);
+      for (int i = 0, size = evictedConnections.size(); i < size; i++) {
+        RealConnection connection = evictedConnections.get(i);
+        connection.noNewExchanges = true;
+        remove(connection);
       }
+    } finally {
+      lock.unlock();
     }
 
     for (RealConnection connection : evictedConnections) {
@@ -165,89 +659,292 @@ public final class RealConnectionPool {
    * -1 if no further cleanups are required.
    */
   long cleanup(long now) {
-    int inUseConnectionCount = 0;
-    int idleConnectionCount = 0;
-    RealConnection longestIdleConnection = null;
-    long longestIdleDurationNs = Long.MIN_VALUE;
+    RealConnection evictedConnection = null;
 
     // Find either a connection to evict, or the time that the next eviction is due.
-    synchronized (this) {
-      for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-        RealConnection connection = i.next();
+    lock.lock();
+    try {
+      pruneLeakedTransmitters(now);
+      topUpWarmAddresses();
 
-        // If the connection is in use, keep searching.
-        if (pruneAndGetAllocationCount(connection, now) > 0) {
-          inUseConnectionCount++;
+      // Connections kept warm are never evicted. Move them to the back as if they just became idle.
+      for (int i = 0, size = idleConnections.size(); i < size; i++) {
+        RealConnection longestIdleConnection = idleConnections.iterator().next();
+        long longestIdleDurationNs = now - longestIdleConnection.idleAtNanos;
+        if (longestIdleDurationNs < this.keepAliveDurationNs
+            && idleConnections.size() <= this.maxIdleConnections) {
+          // A connection will be ready to evict soon.
+          return keepAliveDurationNs - longestIdleDurationNs;
+        }
+        if (isKeptWarm(longestIdleConnection)) {
+          idleConnections.remove(longestIdleConnection);
+          longestIdleConnection.idleAtNanos = now;
+          idleConnections.add(longestIdleConnection);
           continue;
         }
 
-        idleConnectionCount++;
-
-        // If the connection is ready to be evicted, we're done.
-        long idleDurationNs = now - connection.idleAtNanos;
-        if (idleDurationNs > longestIdleDurationNs) {
-          longestIdleDurationNs = idleDurationNs;
-          longestIdleConnection = connection;
-        }
+        // We've found a connection to evict. Remove it from the pool, then close it below (outside
+        // of the lock).
+        remove(longestIdleConnection);
+        evictedConnection = longestIdleConnection;
+        break;
       }
 
-      if (longestIdleDurationNs >= this.keepAliveDurationNs
-          || idleConnectionCount > this.maxIdleConnections) {
-        // We've found a connection to evict. Remove it from the list, then close it below (outside
-        // of the synchronized block).
-        connections.remove(longestIdleConnection);
-      } else if (idleConnectionCount > 0) {
-        // A connection will be ready to evict soon.
-        return keepAliveDurationNs - longestIdleDurationNs;
-      } else if (inUseConnectionCount > 0) {
-        // All connections are in use. It'll be at least the keep alive duration 'til we run again.
-        return keepAliveDurationNs;
-      } else {
-        // No connections, idle or in use.
-        cleanupRunning = false;
-        return -1;
+      if (evictedConnection == null) {
+        if (connectionCount > 0 || !warmAddresses.isEmpty()) {
+          // All connections are in use or kept warm. It'll be at least the keep alive duration
+          // 'til we run again.
+          return keepAliveDurationNs;
+        } else {
+          // No connections, idle or in use.
+          cleanupRunning = false;
+          return -1;
+        }
       }
+    } finally {
+      lock.unlock();
     }
 
-    closeQuietly(longestIdleConnection.socket());
+    closeQuietly(evictedConnection.socket());
 
     // Cleanup again immediately.
     return 0;
   }
 
+  /** Returns true if evicting {@code connection} would leave its address short of idle ones. */
+  private boolean isKeptWarm(RealConnection connection) {
+    Address address = connection.route().address();
+    WarmAddress warmAddress = warmAddresses.get(address);
+    return warmAddress != null && idleCount(address) <= warmAddress.minimumIdleConnections;
+  }
+
+  private int idleCount(Address address) {
+    List<RealConnection> connections = connectionsByAddress.get(address);
+    if (connections == null) return 0;
+    int result = 0;
+    for (int i = 0, size = connections.size(); i < size; i++) {
+      if (connections.get(i).transmitters.isEmpty()) result++;
+    }
+    return result;
+  }
+
+  private void topUpWarmAddresses() {
+    assert (lock.isHeldByCurrentThread());
+    for (WarmAddress warmAddress : warmAddresses.values()) {
+      connectInBackground(warmAddress, warmAddress.minimumIdleConnections);
+    }
+  }
+
   /**
-   * Prunes any leaked transmitters and then returns the number of remaining live transmitters on
-   * {@code connection}. Transmitters are leaked if the connection is tracking them but the
-   * application code has abandoned them. Leak detection is imprecise and relies on garbage
-   * collection.
+   * Starts background connects to {@code warmAddress} until {@code idleConnectionCount} connections
+   * are either idle or being opened.
    */
-  private int pruneAndGetAllocationCount(RealConnection connection, long now) {
-    List<Reference<Transmitter>> references = connection.transmitters;
-    for (int i = 0; i < references.size(); ) {
-      Reference<Transmitter> reference = references.get(i);
+  private void connectInBackground(WarmAddress warmAddress, int idleConnectionCount) {
+    assert (lock.isHeldByCurrentThread());
+    int missing = idleConnectionCount - idleCount(warmAddress.address) - warmAddress.connecting;
+    for (int i = 0; i < missing; i++) {
+      // Warming never evicts connections or takes capacity that calls are waiting for.
+      if (!connectWaiters.isEmpty() || !canConnect(warmAddress.address, false)) return;
+      reserve(warmAddress.address);
+      warmAddress.connecting++;
+      executor.execute(() -> {
+        try {
+          connectIdle(warmAddress);
+        } finally {
+          lock.lock();
+          try {
+            warmAddress.connecting--;
+            releaseConnect(warmAddress.address);
+            forgetIfCold(warmAddress);
+          } finally {
+            lock.unlock();
+          }
+        }
+      });
+    }
+  }
 
-      if (reference.get() != null) {
-        i++;
-        continue;
+  /** Stops tracking {@code warmAddress} if it isn't kept warm and has no connects in flight. */
+  private void forgetIfCold(WarmAddress warmAddress) {
+    if (warmAddress.minimumIdleConnections == 0 && warmAddress.connecting == 0) {
+      warmAddresses.remove(warmAddress.address, warmAddress);
+    }
+  }
+
+  /**
+   * Opens a connection to {@code warmAddress} and adds it to the pool as idle. Routes are tried in
+   * the order the route selector offers them. Failures are dropped: the cleanup task will try again
+   * the next time it runs.
+   */
+  private void connectIdle(WarmAddress warmAddress) {
+    OkHttpClient client = warmAddress.client;
+    // Don't create a call with the client: its event listener factory would see a phantom call.
+    Call call = new PrewarmCall(new Request.Builder().url(warmAddress.address.url()).build());
+    RouteSelector routeSelector = new RouteSelector(
+        warmAddress.address, routeDatabase, call, EventListener.NONE);
+    try {
+      while (routeSelector.hasNext()) {
+        RouteSelector.Selection selection = routeSelector.next();
+        while (selection.hasNext()) {
+          Route route = selection.next();
+          RealConnection connection = new RealConnection(
+              this, route, Internal.instance.http2Resources(client));
+          try {
+            connection.connect(client.connectTimeoutMillis(), client.readTimeoutMillis(),
+                client.writeTimeoutMillis(), client.pingIntervalMillis(),
+                client.retryOnConnectionFailure(), call, EventListener.NONE);
+          } catch (RouteException e) {
+            connectFailed(route, e.getFirstConnectException());
+            continue;
+          }
+          routeDatabase.connected(route);
+
+          lock.lock();
+          try {
+            connection.idleAtNanos = System.nanoTime();
+            put(connection);
+          } finally {
+            lock.unlock();
+          }
+          return;
+        }
       }
+    } catch (IOException ignored) {
+      // Route selection failed, probably on DNS.
+    }
+  }
 
-      // We've discovered a leaked transmitter. This is an application bug.
+  /**
+   * Prunes transmitters that were garbage collected while still holding a connection. Transmitters
+   * are leaked if the connection is tracking them but the application code has abandoned them.
+   * Leak detection is imprecise and relies on garbage collection.
+   */
+  private void pruneLeakedTransmitters(long now) {
+    assert (lock.isHeldByCurrentThread());
+    for (Reference<? extends Transmitter> reference;
+        (reference = transmitterReferenceQueue.poll()) != null; ) {
       TransmitterReference transmitterRef = (TransmitterReference) reference;
+      RealConnection connection = transmitterRef.connection;
+      if (!connection.transmitters.remove(transmitterRef)) continue; // Released normally.
+
+      // We've discovered a leaked transmitter. This is an application bug.
       String message = "A connection to " + connection.route().address().url()
           + " was leaked. Did you forget to close a response body?";
       Platform.get().logCloseableLeak(message, transmitterRef.callStackTrace);
 
-      references.remove(i);
       connection.noNewExchanges = true;
 
       // If this was the last allocation, the connection is eligible for immediate eviction.
-      if (references.isEmpty()) {
+      if (connection.transmitters.isEmpty()) {
         connection.idleAtNanos = now - keepAliveDurationNs;
-        return 0;
+        if (connectionBecameIdle(connection)) {
+          closeQuietly(connection.socket());
+        }
       }
     }
+  }
+
+  private void remove(RealConnection connection) {
+    if (!unindex(connectionsByAddress, connection.route().address(), connection)) return;
+    connectionCount--;
+    if (isCoalescable(connection)) {
+      unindex(http2ConnectionsBySocketAddress, connection.route().socketAddress(), connection);
+    }
+    idleConnections.remove(connection);
+    if (connection.isMultiplexed()) streamCondition.signalAll();
+    // Wake the cleanup thread to replace connections that were kept warm.
+    if (warmAddresses.containsKey(connection.route().address())) cleanupCondition.signalAll();
+    grantConnectWaiters();
+  }
+
+  private static boolean isCoalescable(RealConnection connection) {
+    return connection.isMultiplexed() && connection.route().proxy().type() == Proxy.Type.DIRECT;
+  }
+
+  private static <K> void index(
+      Map<K, List<RealConnection>> index, K key, RealConnection connection) {
+    List<RealConnection> connections = index.get(key);
+    if (connections == null) {
+      connections = new ArrayList<>(2);
+      index.put(key, connections);
+    }
+    connections.add(connection);
+  }
+
+  private static <K> boolean unindex(
+      Map<K, List<RealConnection>> index, K key, RealConnection connection) {
+    List<RealConnection> connections = index.get(key);
+    if (connections == null || !connections.remove(connection)) return false;
+    if (connections.isEmpty()) index.remove(key);
+    return true;
+  }
+
+  /** An address that connections are opened to ahead of calls. Guarded by the pool's lock. */
+  static final class WarmAddress {
+    final Address address;
+    OkHttpClient client;
+    int minimumIdleConnections;
+    int connecting;
+
+    WarmAddress(OkHttpClient client, Address address) {
+      this.client = client;
+      this.address = address;
+    }
+  }
+
+  /** Stands in for a call while connecting ahead of calls. It can't be executed. */
+  static final class PrewarmCall implements Call {
+    private final Request request;
+
+    PrewarmCall(Request request) {
+      this.request = request;
+    }
+
+    @Override public Request request() {
+      return request;
+    }
+
+    @Override public Response execute() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public void enqueue(Callback responseCallback) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public void cancel() {
+    }
 
-    return references.size();
+    @Override public boolean isExecuted() {
+      return true;
+    }
+
+    @Override public boolean isCanceled() {
+      return false;
+    }
+
+    @Override public Timeout timeout() {
+      return Timeout.NONE;
+    }
+
+    @SuppressWarnings("CloneDoesntCallSuperClone") // Immutable.
+    @Override public Call clone() {
+      return this;
+    }
+  }
+
+  /** A call queued for capacity to connect. Guarded by the pool's lock. */
+  static final class ConnectWaiter {
+    final Address address;
+    final Condition condition;
+
+    /** True once capacity has been reserved for this call. */
+    boolean granted;
+
+    ConnectWaiter(Address address, Condition condition) {
+      this.address = address;
+      this.condition = condition;
+    }
   }
 
   /** Track a bad route in the route database. Other routes will be attempted first. */
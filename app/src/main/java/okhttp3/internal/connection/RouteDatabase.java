@@ -15,7 +15,13 @@
  */
 package okhttp3.internal.connection;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import okhttp3.Route;
 
@@ -24,10 +30,32 @@ import okhttp3.Route;
  * used so that OkHttp can learn from its mistakes: if there was a failure attempting to connect to
  * a specific IP address or proxy server, that failure is remembered and alternate routes are
  * preferred.
+ *
+ * <p>This also remembers how long it takes to connect to each route, including the TLS handshake,
+ * as a decaying average. Routes that connect faster are attempted first.
  */
 final class RouteDatabase {
+  /** The weight of each new latency sample in a route's average. */
+  static final double LATENCY_DECAY = 0.25;
+
+  /** How often a route other than the fastest is attempted first, so that its latency is current. */
+  static final double EXPLORATION_RATE = 0.05;
+
+  /** The maximum number of routes to remember latencies for. */
+  static final int MAX_LATENCIES = 1024;
+
   private final Set<Route> failedRoutes = new LinkedHashSet<>();
 
+  /** Average connect latency in nanos, least recently used first. */
+  private final Map<Route, Long> connectLatencies =
+      new LinkedHashMap<Route, Long>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<Route, Long> eldest) {
+          return size() > MAX_LATENCIES;
+        }
+      };
+
+  private final Random random = new Random();
+
   /** Records a failure connecting to {@code failedRoute}. */
   public synchronized void failed(Route failedRoute) {
     failedRoutes.add(failedRoute);
@@ -42,4 +70,41 @@ final class RouteDatabase {
   public synchronized boolean shouldPostpone(Route route) {
     return failedRoutes.contains(route);
   }
+
+  /** Records that connecting to {@code route}, including any TLS handshake, took {@code nanos}. */
+  public synchronized void connectLatency(Route route, long nanos) {
+    Long average = connectLatencies.get(route);
+    connectLatencies.put(route, average == null
+        ? nanos
+        : average + (long) ((nanos - average) * LATENCY_DECAY));
+  }
+
+  /** Returns the average connect latency of {@code route} in nanos, or -1 if it isn't known. */
+  public synchronized long averageConnectLatency(Route route) {
+    Long average = connectLatencies.get(route);
+    return average != null ? average : -1L;
+  }
+
+  /**
+   * Returns {@code routes} with the fastest first. Routes without a known latency come before all
+   * others so that they get measured, and otherwise keep their order. Occasionally a slower route
+   * is moved to the front instead so that its latency doesn't go stale.
+   */
+  public synchronized List<Route> fastestFirst(List<Route> routes) {
+    if (routes.size() < 2 || connectLatencies.isEmpty()) return routes;
+
+    List<Route> result = new ArrayList<>(routes);
+    Collections.sort(result, (a, b) -> Long.compare(latencyOrZero(a), latencyOrZero(b)));
+
+    if (latencyOrZero(result.get(0)) != 0L && random.nextDouble() < EXPLORATION_RATE) {
+      Route explored = result.remove(1 + random.nextInt(result.size() - 1));
+      result.add(0, explored);
+    }
+    return result;
+  }
+
+  private long latencyOrZero(Route route) {
+    Long average = connectLatencies.get(route);
+    return average != null ? average : 0L;
+  }
 }
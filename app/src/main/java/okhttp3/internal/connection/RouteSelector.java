@@ -102,7 +102,7 @@ final class RouteSelector {
       postponedRoutes.clear();
     }
 
-    return new Selection(routes);
+    return new Selection(routeDatabase.fastestFirst(routes));
   }
 
   /** Prepares the proxy servers to try. */
@@ -220,6 +220,11 @@ final class RouteSelector {
       return routes.get(nextRouteIndex++);
     }
 
+    /** Returns the number of routes that {@link #next()} has yet to return. */
+    public int remaining() {
+      return routes.size() - nextRouteIndex;
+    }
+
     public List<Route> getAll() {
       return new ArrayList<>(routes);
     }
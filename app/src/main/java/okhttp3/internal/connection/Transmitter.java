@@ -18,6 +18,7 @@ package okhttp3.internal.connection;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.net.Socket;
 import javax.annotation.Nullable;
@@ -58,11 +59,12 @@ public final class Transmitter {
   private final EventListener eventListener;
   private final AsyncTimeout timeout = new AsyncTimeout() {
     @Override protected void timedOut() {
-      cancel();
+      call.cancel(); // Cancels anything the call has started on its behalf, too.
     }
   };
 
   private @Nullable Object callStackTrace;
+  private long timeoutEnteredNanos;
 
   private Request request;
   private ExchangeFinder exchangeFinder;
@@ -77,10 +79,14 @@ public final class Transmitter {
   private boolean noMoreExchanges;
 
   public Transmitter(OkHttpClient client, Call call) {
+    this(client, call, client.eventListenerFactory().create(call));
+  }
+
+  public Transmitter(OkHttpClient client, Call call, EventListener eventListener) {
     this.client = client;
     this.connectionPool = Internal.instance.realConnectionPool(client.connectionPool());
     this.call = call;
-    this.eventListener = client.eventListenerFactory().create(call);
+    this.eventListener = eventListener;
     this.timeout.timeout(client.callTimeoutMillis(), MILLISECONDS);
   }
 
@@ -89,9 +95,17 @@ public final class Transmitter {
   }
 
   public void timeoutEnter() {
+    timeoutEnteredNanos = System.nanoTime();
     timeout.enter();
   }
 
+  /** Returns the time left before the call times out, or {@link Long#MAX_VALUE} if it can't. */
+  public long timeoutRemainingNanos() {
+    long timeoutNanos = timeout.timeoutNanos();
+    if (timeoutNanos == 0L || timeoutEarlyExit) return Long.MAX_VALUE;
+    return timeoutNanos - (System.nanoTime() - timeoutEnteredNanos);
+  }
+
   /**
    * Stops applying the timeout before the call is entirely complete. This is used for WebSockets
    * and duplex calls where the timeout only applies to the initial setup.
@@ -112,6 +126,10 @@ public final class Transmitter {
     return e;
   }
 
+  public EventListener eventListener() {
+    return eventListener;
+  }
+
   public void callStart() {
     this.callStackTrace = Platform.get().getStackTraceForCloseable("response.body().close()");
     eventListener.callStart(call);
@@ -135,11 +153,13 @@ public final class Transmitter {
     }
 
     this.request = request;
-    this.exchangeFinder = new ExchangeFinder(this, connectionPool, createAddress(request.url()),
-        call, eventListener);
+    this.exchangeFinder = new ExchangeFinder(this, connectionPool,
+        createAddress(client, request.url()), call, eventListener, client.fastFallback(),
+        Internal.instance.http2Resources(client));
   }
 
-  private Address createAddress(HttpUrl url) {
+  /** Returns the address that {@code client} uses for requests to {@code url}. */
+  public static Address createAddress(OkHttpClient client, HttpUrl url) {
     SSLSocketFactory sslSocketFactory = null;
     HostnameVerifier hostnameVerifier = null;
     CertificatePinner certificatePinner = null;
@@ -156,7 +176,8 @@ public final class Transmitter {
 
   /** Returns a new exchange to carry a new request and response. */
   Exchange newExchange(Interceptor.Chain chain, boolean doExtensiveHealthChecks) {
-    synchronized (connectionPool) {
+    connectionPool.lock.lock();
+    try {
       if (noMoreExchanges) {
         throw new IllegalStateException("released");
       }
@@ -164,26 +185,35 @@ public final class Transmitter {
         throw new IllegalStateException("cannot make a new request because the previous response "
             + "is still open: please call response.close()");
       }
+    } finally {
+      connectionPool.lock.unlock();
     }
 
     // zp add - coder & decoder 编码解码器 还有一个 可用的连接
     ExchangeCodec codec = exchangeFinder.find(client, chain, doExtensiveHealthChecks);
     Exchange result = new Exchange(this, call, eventListener, exchangeFinder, codec);
 
-    synchronized (connectionPool) {
+    connectionPool.lock.lock();
+    try {
       this.exchange = result;
       this.exchangeRequestDone = false;
       this.exchangeResponseDone = false;
       return result;
+    } finally {
+      connectionPool.lock.unlock();
     }
   }
 
   void acquireConnectionNoEvents(RealConnection connection) {
-    assert (Thread.holdsLock(connectionPool));
+    assert (connectionPool.lock.isHeldByCurrentThread());
 
     if (this.connection != null) throw new IllegalStateException();
     this.connection = connection;
-    connection.transmitters.add(new TransmitterReference(this, callStackTrace));
+    if (connection.transmitters.isEmpty()) {
+      connectionPool.connectionBecameActive(connection);
+    }
+    connection.transmitters.add(new TransmitterReference(
+        this, callStackTrace, connection, connectionPool.transmitterReferenceQueue));
   }
 
   /**
@@ -191,7 +221,7 @@ public final class Transmitter {
    * caller should close.
    */
   @Nullable Socket releaseConnectionNoEvents() {
-    assert (Thread.holdsLock(connectionPool));
+    assert (connectionPool.lock.isHeldByCurrentThread());
 
     int index = -1;
     for (int i = 0, size = this.connection.transmitters.size(); i < size; i++) {
@@ -208,6 +238,10 @@ public final class Transmitter {
     released.transmitters.remove(index);
     this.connection = null;
 
+    if (released.isMultiplexed()) {
+      connectionPool.http2StreamReleased(released);
+    }
+
     if (released.transmitters.isEmpty()) {
       released.idleAtNanos = System.nanoTime();
       if (connectionPool.connectionBecameIdle(released)) {
@@ -219,9 +253,12 @@ public final class Transmitter {
   }
 
   public void exchangeDoneDueToException() {
-    synchronized (connectionPool) {
+    connectionPool.lock.lock();
+    try {
       if (noMoreExchanges) throw new IllegalStateException();
       exchange = null;
+    } finally {
+      connectionPool.lock.unlock();
     }
   }
 
@@ -236,7 +273,8 @@ public final class Transmitter {
   @Nullable IOException exchangeMessageDone(
       Exchange exchange, boolean requestDone, boolean responseDone, @Nullable IOException e) {
     boolean exchangeDone = false;
-    synchronized (connectionPool) {
+    connectionPool.lock.lock();
+    try {
       if (exchange != this.exchange) {
         return e; // This exchange was detached violently!
       }
@@ -254,6 +292,8 @@ public final class Transmitter {
         this.exchange.connection().successCount++;
         this.exchange = null;
       }
+    } finally {
+      connectionPool.lock.unlock();
     }
     if (exchangeDone) {
       e = maybeReleaseConnection(e, false);
@@ -262,8 +302,11 @@ public final class Transmitter {
   }
 
   public @Nullable IOException noMoreExchanges(@Nullable IOException e) {
-    synchronized (connectionPool) {
+    connectionPool.lock.lock();
+    try {
       noMoreExchanges = true;
+    } finally {
+      connectionPool.lock.unlock();
     }
     return maybeReleaseConnection(e, false);
   }
@@ -281,7 +324,8 @@ public final class Transmitter {
     Socket socket;
     Connection releasedConnection;
     boolean callEnd;
-    synchronized (connectionPool) {
+    connectionPool.lock.lock();
+    try {
       if (force && exchange != null) {
         throw new IllegalStateException("cannot release connection while it is in use");
       }
@@ -291,6 +335,8 @@ public final class Transmitter {
           : null;
       if (this.connection != null) releasedConnection = null;
       callEnd = noMoreExchanges && exchange == null;
+    } finally {
+      connectionPool.lock.unlock();
     }
     closeQuietly(socket);
 
@@ -315,8 +361,11 @@ public final class Transmitter {
   }
 
   public boolean hasExchange() {
-    synchronized (connectionPool) {
+    connectionPool.lock.lock();
+    try {
       return exchange != null;
+    } finally {
+      connectionPool.lock.unlock();
     }
   }
 
@@ -332,23 +381,34 @@ public final class Transmitter {
   public void cancel() {
     Exchange exchangeToCancel;
     RealConnection connectionToCancel;
-    synchronized (connectionPool) {
+    FastFallbackConnector raceToCancel;
+    connectionPool.lock.lock();
+    try {
       canceled = true;
+      connectionPool.wakeStreamWaiters();
       exchangeToCancel = exchange;
+      raceToCancel = exchangeFinder != null ? exchangeFinder.connectingRace() : null;
       connectionToCancel = exchangeFinder != null && exchangeFinder.connectingConnection() != null
           ? exchangeFinder.connectingConnection()
           : connection;
+    } finally {
+      connectionPool.lock.unlock();
     }
     if (exchangeToCancel != null) {
       exchangeToCancel.cancel();
+    } else if (raceToCancel != null) {
+      raceToCancel.cancel();
     } else if (connectionToCancel != null) {
       connectionToCancel.cancel();
     }
   }
 
   public boolean isCanceled() {
-    synchronized (connectionPool) {
+    connectionPool.lock.lock();
+    try {
       return canceled;
+    } finally {
+      connectionPool.lock.unlock();
     }
   }
 
@@ -359,9 +419,14 @@ public final class Transmitter {
      */
     final Object callStackTrace;
 
-    TransmitterReference(Transmitter referent, Object callStackTrace) {
-      super(referent);
+    /** The connection that holds this reference. */
+    final RealConnection connection;
+
+    TransmitterReference(Transmitter referent, Object callStackTrace, RealConnection connection,
+        ReferenceQueue<Transmitter> queue) {
+      super(referent, queue);
       this.callStackTrace = callStackTrace;
+      this.connection = connection;
     }
   }
 }
@@ -46,6 +46,16 @@ public final class BridgeInterceptor implements Interceptor {
 
   @Override public Response intercept(Chain chain) throws IOException {
     Request userRequest = chain.request();
+
+    /* zp add proceed begin !!!!!!!!!!!!!!! */
+    Response networkResponse = chain.proceed(networkRequest(userRequest));
+    /* zp add proceed end !!!!!!!!!!!!!!! */
+
+    return userResponse(userRequest, networkResponse);
+  }
+
+  /** Returns the request to send on the network for {@code userRequest}. */
+  public Request networkRequest(Request userRequest) throws IOException {
     Request.Builder requestBuilder = userRequest.newBuilder();
 
     RequestBody body = userRequest.body();
@@ -75,9 +85,7 @@ public final class BridgeInterceptor implements Interceptor {
 
     // If we add an "Accept-Encoding: gzip" header field we're responsible for also decompressing
     // the transfer stream.
-    boolean transparentGzip = false;
-    if (userRequest.header("Accept-Encoding") == null && userRequest.header("Range") == null) {
-      transparentGzip = true;
+    if (transparentGzip(userRequest)) {
       requestBuilder.header("Accept-Encoding", "gzip");
     }
 
@@ -90,16 +98,20 @@ public final class BridgeInterceptor implements Interceptor {
       requestBuilder.header("User-Agent", Version.userAgent());
     }
 
-    /* zp add proceed begin !!!!!!!!!!!!!!! */
-    Response networkResponse = chain.proceed(requestBuilder.build());
-    /* zp add proceed end !!!!!!!!!!!!!!! */
+    return requestBuilder.build();
+  }
 
+  /**
+   * Returns the response to return to application code for {@code networkResponse}. This saves its
+   * cookies and decompresses its body if the network request asked for gzip on the user's behalf.
+   */
+  public Response userResponse(Request userRequest, Response networkResponse) {
     HttpHeaders.receiveHeaders(cookieJar, userRequest.url(), networkResponse.headers());
 
     Response.Builder responseBuilder = networkResponse.newBuilder()
         .request(userRequest);
 
-    if (transparentGzip
+    if (transparentGzip(userRequest)
         && "gzip".equalsIgnoreCase(networkResponse.header("Content-Encoding"))
         && HttpHeaders.hasBody(networkResponse)) {
       GzipSource responseBody = new GzipSource(networkResponse.body().source());
@@ -115,6 +127,10 @@ public final class BridgeInterceptor implements Interceptor {
     return responseBuilder.build();
   }
 
+  private boolean transparentGzip(Request userRequest) {
+    return userRequest.header("Accept-Encoding") == null && userRequest.header("Range") == null;
+  }
+
   /** Returns a 'Cookie' HTTP request header with all cookies, like {@code a=b; c=d}. */
   private String cookieHeader(List<Cookie> cookies) {
     StringBuilder cookieHeader = new StringBuilder();
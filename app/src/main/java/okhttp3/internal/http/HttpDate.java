@@ -30,6 +30,20 @@ public final class HttpDate {
   /** The last four-digit year: "Fri, 31 Dec 9999 23:59:59 GMT". */
   public static final long MAX_DATE = 253402300799999L;
 
+  /**
+   * "Sat, 01 Jan 1600 00:00:00 GMT". The fast path skips earlier dates, where DateFormat's
+   * Gregorian calendar switches to Julian dates.
+   */
+  private static final long MIN_FAST_DATE = -11676096000000L;
+
+  private static final String[] DAY_NAMES = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
+
+  private static final String[] MONTH_NAMES = {
+      "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+  /** The length of "Sun, 06 Nov 1994 08:49:37 GMT". */
+  private static final int IMF_FIXDATE_LENGTH = 29;
+
   /**
    * Most websites serve cookies in the blessed format. Eagerly create the parser to ensure such
    * cookies are on the fast path.
@@ -77,6 +91,11 @@ public final class HttpDate {
       return null;
     }
 
+    long fixdate = parseImfFixdate(value);
+    if (fixdate != -1L) {
+      return new Date(fixdate);
+    }
+
     ParsePosition position = new ParsePosition(0);
     Date result = STANDARD_DATE_FORMAT.get().parse(value, position);
     if (position.getIndex() == value.length()) {
@@ -111,7 +130,120 @@ public final class HttpDate {
 
   /** Returns the string for {@code value}. */
   public static String format(Date value) {
-    return STANDARD_DATE_FORMAT.get().format(value);
+    long millis = value.getTime();
+    if (millis < MIN_FAST_DATE || millis > MAX_DATE) {
+      return STANDARD_DATE_FORMAT.get().format(value);
+    }
+
+    long seconds = Math.floorDiv(millis, 1000L);
+    long days = Math.floorDiv(seconds, 86400L);
+    int secondOfDay = (int) (seconds - days * 86400L);
+
+    // Convert days since the epoch to a civil date.
+    // http://howardhinnant.github.io/date_algorithms.html
+    long z = days + 719468L;
+    long era = Math.floorDiv(z, 146097L);
+    int dayOfEra = (int) (z - era * 146097L);
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int shiftedMonth = (5 * dayOfYear + 2) / 153;
+    int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+    char[] result = new char[IMF_FIXDATE_LENGTH];
+    DAY_NAMES[(int) Math.floorMod(days + 4, 7L)].getChars(0, 3, result, 0); // 1970-01-01 was Thu.
+    result[3] = ',';
+    result[4] = ' ';
+    writeDigits(result, 5, 2, day);
+    result[7] = ' ';
+    MONTH_NAMES[month - 1].getChars(0, 3, result, 8);
+    result[11] = ' ';
+    writeDigits(result, 12, 4, year);
+    result[16] = ' ';
+    writeDigits(result, 17, 2, secondOfDay / 3600);
+    result[19] = ':';
+    writeDigits(result, 20, 2, secondOfDay / 60 % 60);
+    result[22] = ':';
+    writeDigits(result, 23, 2, secondOfDay % 60);
+    " GMT".getChars(0, 4, result, 25);
+    return new String(result);
+  }
+
+  /**
+   * Returns the milliseconds since the epoch for {@code value} if it is a valid IMF-fixdate like
+   * "Sun, 06 Nov 1994 08:49:37 GMT", or -1 if it is anything else. The day name isn't checked
+   * against the date, just as the DateFormat fallbacks don't check it.
+   */
+  private static long parseImfFixdate(String value) {
+    if (value.length() != IMF_FIXDATE_LENGTH
+        || value.charAt(3) != ','
+        || value.charAt(4) != ' '
+        || value.charAt(7) != ' '
+        || value.charAt(11) != ' '
+        || value.charAt(16) != ' '
+        || value.charAt(19) != ':'
+        || value.charAt(22) != ':'
+        || !value.startsWith(" GMT", 25)
+        || indexOf(DAY_NAMES, value, 0) == -1) {
+      return -1L;
+    }
+
+    int day = readDigits(value, 5, 2);
+    int month = indexOf(MONTH_NAMES, value, 8) + 1;
+    int year = readDigits(value, 12, 4);
+    int hour = readDigits(value, 17, 2);
+    int minute = readDigits(value, 20, 2);
+    int second = readDigits(value, 23, 2);
+    if ((hour | minute | second) < 0) return -1L; // A field has a non-digit.
+    if (month == 0 || year < 1600 || hour > 23 || minute > 59 || second > 59 || day < 1
+        || day > daysInMonth(year, month)) {
+      return -1L;
+    }
+
+    // Convert the civil date to days since the epoch.
+    // http://howardhinnant.github.io/date_algorithms.html
+    int y = month <= 2 ? year - 1 : year;
+    int era = y / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    long days = era * 146097L + dayOfEra - 719468L;
+
+    return ((days * 24 + hour) * 60 + minute) * 60_000L + second * 1000L;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    if (month == 2) {
+      return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+    }
+    return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+  }
+
+  /** Returns the index of the 3-letter name at {@code offset} in {@code value}, or -1. */
+  private static int indexOf(String[] names, String value, int offset) {
+    for (int i = 0; i < names.length; i++) {
+      if (value.startsWith(names[i], offset)) return i;
+    }
+    return -1;
+  }
+
+  /** Returns the decimal number in {@code value}, or -1 if it has a non-digit. */
+  private static int readDigits(String value, int offset, int count) {
+    int result = 0;
+    for (int i = offset; i < offset + count; i++) {
+      int digit = value.charAt(i) - '0';
+      if (digit < 0 || digit > 9) return -1;
+      result = result * 10 + digit;
+    }
+    return result;
+  }
+
+  private static void writeDigits(char[] result, int offset, int count, int value) {
+    for (int i = offset + count - 1; i >= offset; i--) {
+      result[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
   }
 
   private HttpDate() {
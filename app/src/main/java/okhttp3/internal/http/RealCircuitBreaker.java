@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2019 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import okhttp3.Call;
+import okhttp3.CircuitBreaker.State;
+import okhttp3.EventListener;
+
+/** Retry budgets and circuit states of hosts. */
+public final class RealCircuitBreaker {
+  /** Hosts beyond this many are forgotten. */
+  private static final int MAX_HOSTS = 1024;
+
+  /** One retry, in thousandths. */
+  private static final long RETRY_COST = 1000L;
+
+  private final long retryEarnedPerCall;
+  private final long maxRetryTokens;
+  private final long minBackoffNanos;
+  private final long maxBackoffNanos;
+  private final int failureThreshold;
+  private final long openDurationNanos;
+
+  private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+  public RealCircuitBreaker(double retryRatio, int maxRetries, long minBackoffNanos,
+      long maxBackoffNanos, int failureThreshold, long openDurationNanos) {
+    this.retryEarnedPerCall = (long) (retryRatio * RETRY_COST);
+    this.maxRetryTokens = maxRetries * RETRY_COST;
+    this.minBackoffNanos = minBackoffNanos;
+    this.maxBackoffNanos = maxBackoffNanos;
+    this.failureThreshold = failureThreshold;
+    this.openDurationNanos = openDurationNanos;
+  }
+
+  public State state(String hostname) {
+    Host host = hosts.get(hostname);
+    if (host == null) return State.CLOSED;
+    host.lock.lock();
+    try {
+      return host.state;
+    } finally {
+      host.lock.unlock();
+    }
+  }
+
+  /** Credits {@code hostname}'s retry budget for a new call. */
+  public void callStart(String hostname) {
+    Host host = host(hostname);
+    host.lock.lock();
+    try {
+      host.retryTokens = Math.min(maxRetryTokens, host.retryTokens + retryEarnedPerCall);
+    } finally {
+      host.lock.unlock();
+    }
+  }
+
+  /**
+   * Returns true if a request to {@code hostname} may be made now. A half-open circuit lets one
+   * trial request through; that request must be followed by {@link #succeeded}, {@link #failed} or
+   * {@link #canceled}.
+   */
+  public boolean allowRequest(String hostname, Call call, EventListener eventListener) {
+    Host host = host(hostname);
+    host.lock.lock();
+    try {
+      switch (host.state) {
+        case CLOSED:
+          return true;
+        case OPEN:
+          if (System.nanoTime() - host.openedAtNanos < openDurationNanos) return false;
+          host.state = State.HALF_OPEN;
+          host.trialInFlight = true;
+          break;
+        default:
+          if (host.trialInFlight) return false; // Wait for the trial request to complete.
+          host.trialInFlight = true;
+          return true;
+      }
+    } finally {
+      host.lock.unlock();
+    }
+
+    eventListener.circuitStateChanged(call, hostname, State.HALF_OPEN);
+    return true;
+  }
+
+  public void succeeded(String hostname, Call call, EventListener eventListener) {
+    Host host = host(hostname);
+    host.lock.lock();
+    try {
+      host.consecutiveFailures = 0;
+      if (host.state != State.HALF_OPEN) return;
+      host.state = State.CLOSED;
+      host.trialInFlight = false;
+    } finally {
+      host.lock.unlock();
+    }
+
+    eventListener.circuitStateChanged(call, hostname, State.CLOSED);
+  }
+
+  public void failed(String hostname, Call call, EventListener eventListener) {
+    Host host = host(hostname);
+    host.lock.lock();
+    try {
+      host.consecutiveFailures++;
+      if (host.state == State.OPEN) return; // Failed while the circuit opened.
+      if (host.state == State.CLOSED && host.consecutiveFailures < failureThreshold) return;
+      host.state = State.OPEN;
+      host.openedAtNanos = System.nanoTime();
+      host.trialInFlight = false;
+    } finally {
+      host.lock.unlock();
+    }
+
+    eventListener.circuitStateChanged(call, hostname, State.OPEN);
+  }
+
+  /** Reports that a request allowed by {@link #allowRequest} was canceled, and proved nothing. */
+  public void canceled(String hostname) {
+    Host host = host(hostname);
+    host.lock.lock();
+    try {
+      if (host.state == State.HALF_OPEN) host.trialInFlight = false;
+    } finally {
+      host.lock.unlock();
+    }
+  }
+
+  /**
+   * Spends a retry from {@code hostname}'s budget and returns how long to wait before retrying.
+   * Returns -1 if the budget is spent, or if the wait would be longer than {@code maxWaitNanos}.
+   *
+   * <p>A call's first retry is made immediately: most are recovering from a stale pooled connection
+   * or trying another route. Later retries wait a random duration, bounded by a limit that doubles
+   * with each retry.
+   */
+  public long retry(String hostname, int retryCount, long maxWaitNanos) {
+    long waitNanos = 0L;
+    if (retryCount > 0) {
+      long bound = minBackoffNanos << Math.min(retryCount - 1, 30);
+      if (bound <= 0L || bound > maxBackoffNanos) bound = maxBackoffNanos;
+      waitNanos = bound > 0L ? ThreadLocalRandom.current().nextLong(bound) : 0L;
+    }
+    if (waitNanos > maxWaitNanos) return -1L;
+
+    Host host = host(hostname);
+    host.lock.lock();
+    try {
+      if (host.retryTokens < RETRY_COST) return -1L;
+      host.retryTokens -= RETRY_COST;
+      return waitNanos;
+    } finally {
+      host.lock.unlock();
+    }
+  }
+
+  private Host host(String hostname) {
+    Host result = hosts.get(hostname);
+    if (result != null) return result;
+
+    if (hosts.size() >= MAX_HOSTS) {
+      // Forget an arbitrary host.
+      for (String evicted : hosts.keySet()) {
+        hosts.remove(evicted);
+        break;
+      }
+    }
+    return hosts.computeIfAbsent(hostname, name -> new Host(maxRetryTokens));
+  }
+
+  static final class Host {
+    final ReentrantLock lock = new ReentrantLock();
+
+    /** Guarded by lock. */
+    State state = State.CLOSED;
+    int consecutiveFailures;
+    long openedAtNanos;
+
+    /** True while a half-open circuit's trial request is in flight. Guarded by lock. */
+    boolean trialInFlight;
+
+    /** Unspent retries, in thousandths. Guarded by lock. */
+    long retryTokens;
+
+    Host(long retryTokens) {
+      this.retryTokens = retryTokens;
+    }
+  }
+}
@@ -22,6 +22,7 @@ import java.net.ProtocolException;
 import java.net.Proxy;
 import java.net.SocketTimeoutException;
 import java.security.cert.CertificateException;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -38,7 +39,9 @@ import okhttp3.internal.connection.RouteException;
 import okhttp3.internal.connection.Transmitter;
 import okhttp3.internal.http2.ConnectionShutdownException;
 
+import static java.net.HttpURLConnection.HTTP_BAD_GATEWAY;
 import static java.net.HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+import static java.net.HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
 import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
 import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
 import static java.net.HttpURLConnection.HTTP_MULT_CHOICE;
@@ -62,6 +65,9 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
    */
   private static final int MAX_FOLLOW_UPS = 20;
 
+  /** How often a call waiting to retry checks whether it was canceled. */
+  private static final long BACKOFF_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
   private final OkHttpClient client;
 
   public RetryAndFollowUpInterceptor(OkHttpClient client) {
@@ -72,77 +78,160 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
     Request request = chain.request();
     RealInterceptorChain realChain = (RealInterceptorChain) chain;
     Transmitter transmitter = realChain.transmitter();
+    RealCircuitBreaker circuitBreaker = client.circuitBreaker() != null
+        ? Internal.instance.realCircuitBreaker(client.circuitBreaker())
+        : null;
+    if (circuitBreaker != null) circuitBreaker.callStart(request.url().host());
 
     int followUpCount = 0;
+    int retryCount = 0;
+    String admittedHost = null;
     Response priorResponse = null;
-    while (true) {
-      transmitter.prepareToConnect(request);
+    // The host whose admission hasn't been answered with an outcome yet. If the call ends before
+    // one is reported, for example because it was canceled while backing off, the circuit breaker
+    // is told so that a half-open trial isn't left in flight.
+    String unreportedHost = null;
+    try {
+      while (true) {
+        transmitter.prepareToConnect(request);
+
+        if (transmitter.isCanceled()) {
+          throw new IOException("Canceled");
+        }
 
-      if (transmitter.isCanceled()) {
-        throw new IOException("Canceled");
-      }
+        // Ask the circuit breaker once per host. Retries and follow-ups of an admitted call
+        // proceed.
+        String host = request.url().host();
+        if (circuitBreaker != null && !host.equals(admittedHost)) {
+          if (!circuitBreaker.allowRequest(host, chain.call(), transmitter.eventListener())) {
+            throw new IOException("Circuit breaker open for " + host);
+          }
+          admittedHost = host;
+          unreportedHost = host;
+        }
 
-      Response response;
-      boolean success = false;
-      try {
-        response = realChain.proceed(request, transmitter, null);
-        success = true;
-      } catch (RouteException e) {
-        // The attempt to connect via a route failed. The request will not have been sent.
-        if (!recover(e.getLastConnectException(), transmitter, false, request)) {
-          throw e.getFirstConnectException();
+        Response response;
+        boolean success = false;
+        try {
+          response = realChain.proceed(request, transmitter, null);
+          success = true;
+        } catch (RouteException e) {
+          // The attempt to connect via a route failed. The request will not have been sent.
+          if (!recover(e.getLastConnectException(), transmitter, false, request)
+              || !backOff(circuitBreaker, host, retryCount++, transmitter)) {
+            unreportedHost = null;
+            callFailed(circuitBreaker, host, chain, transmitter);
+            throw e.getFirstConnectException();
+          }
+          continue;
+        } catch (IOException e) {
+          // An attempt to communicate with a server failed. The request may have been sent.
+          boolean requestSendStarted = !(e instanceof ConnectionShutdownException);
+          if (!recover(e, transmitter, requestSendStarted, request)
+              || !backOff(circuitBreaker, host, retryCount++, transmitter)) {
+            unreportedHost = null;
+            callFailed(circuitBreaker, host, chain, transmitter);
+            throw e;
+          }
+          continue;
+        } finally {
+          // The network call threw an exception. Release any resources.
+          if (!success) {
+            transmitter.exchangeDoneDueToException();
+          }
         }
-        continue;
-      } catch (IOException e) {
-        // An attempt to communicate with a server failed. The request may have been sent.
-        boolean requestSendStarted = !(e instanceof ConnectionShutdownException);
-        if (!recover(e, transmitter, requestSendStarted, request)) throw e;
-        continue;
-      } finally {
-        // The network call threw an exception. Release any resources.
-        if (!success) {
-          transmitter.exchangeDoneDueToException();
+
+        if (circuitBreaker != null) {
+          unreportedHost = null;
+          int code = response.code();
+          if (code == HTTP_BAD_GATEWAY
+              || code == HTTP_UNAVAILABLE
+              || code == HTTP_GATEWAY_TIMEOUT) {
+            circuitBreaker.failed(host, chain.call(), transmitter.eventListener());
+          } else {
+            circuitBreaker.succeeded(host, chain.call(), transmitter.eventListener());
+          }
         }
-      }
 
-      // Attach the prior response if it exists. Such responses never have a body.
-      if (priorResponse != null) {
-        response = response.newBuilder()
-            .priorResponse(priorResponse.newBuilder()
-                    .body(null)
-                    .build())
-            .build();
-      }
+        // Attach the prior response if it exists. Such responses never have a body.
+        if (priorResponse != null) {
+          response = response.newBuilder()
+              .priorResponse(priorResponse.newBuilder()
+                      .body(null)
+                      .build())
+              .build();
+        }
+
+        Exchange exchange = Internal.instance.exchange(response);
+        Route route = exchange != null ? exchange.connection().route() : null;
+        Request followUp = followUpRequest(response, route);
 
-      Exchange exchange = Internal.instance.exchange(response);
-      Route route = exchange != null ? exchange.connection().route() : null;
-      Request followUp = followUpRequest(response, route);
+        if (followUp == null) {
+          if (exchange != null && exchange.isDuplex()) {
+            transmitter.timeoutEarlyExit();
+          }
+          return response;
+        }
 
-      if (followUp == null) {
-        if (exchange != null && exchange.isDuplex()) {
-          transmitter.timeoutEarlyExit();
+        RequestBody followUpBody = followUp.body();
+        if (followUpBody != null && followUpBody.isOneShot()) {
+          return response;
         }
-        return response;
-      }
 
-      RequestBody followUpBody = followUp.body();
-      if (followUpBody != null && followUpBody.isOneShot()) {
-        return response;
-      }
+        closeQuietly(response.body());
+        if (transmitter.hasExchange()) {
+          exchange.detachWithViolence();
+        }
 
-      closeQuietly(response.body());
-      if (transmitter.hasExchange()) {
-        exchange.detachWithViolence();
-      }
+        if (++followUpCount > MAX_FOLLOW_UPS) {
+          throw new ProtocolException("Too many follow-up requests: " + followUpCount);
+        }
 
-      if (++followUpCount > MAX_FOLLOW_UPS) {
-        throw new ProtocolException("Too many follow-up requests: " + followUpCount);
+        // zp add 进入下一轮
+        request = followUp;
+        priorResponse = response;
       }
+    } finally {
+      if (unreportedHost != null) circuitBreaker.canceled(unreportedHost);
+    }
+  }
+
+  /** Reports a failed call to the circuit breaker, unless it failed because it was canceled. */
+  private void callFailed(@Nullable RealCircuitBreaker circuitBreaker, String host,
+      Chain chain, Transmitter transmitter) {
+    if (circuitBreaker == null) return;
+    if (transmitter.isCanceled()) {
+      circuitBreaker.canceled(host);
+    } else {
+      circuitBreaker.failed(host, chain.call(), transmitter.eventListener());
+    }
+  }
 
-      // zp add 进入下一轮
-      request = followUp;
-      priorResponse = response;
+  /**
+   * Spends a retry from the host's budget and waits before making it. Returns false if the retry
+   * shouldn't be made: the budget is spent, the wait would outlast the call's timeout, or the call
+   * was canceled while waiting.
+   */
+  private boolean backOff(@Nullable RealCircuitBreaker circuitBreaker, String host,
+      int retryCount, Transmitter transmitter) throws InterruptedIOException {
+    if (circuitBreaker == null) return true;
+
+    long waitNanos = circuitBreaker.retry(host, retryCount, transmitter.timeoutRemainingNanos());
+    if (waitNanos == -1L) return false;
+
+    // Sleep in slices so that a canceled call stops waiting promptly.
+    long deadline = System.nanoTime() + waitNanos;
+    try {
+      for (long remaining = waitNanos; remaining > 0L && !transmitter.isCanceled();
+          remaining = deadline - System.nanoTime()) {
+        long slice = Math.min(remaining, BACKOFF_SLICE_NANOS);
+        Thread.sleep(slice / 1_000_000L, (int) (slice % 1_000_000L));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
     }
+    return !transmitter.isCanceled();
   }
 
   /**
@@ -73,11 +73,13 @@ public final class StatusLine {
     if (statusLine.length() < codeStart + 3) {
       throw new ProtocolException("Unexpected status line: " + statusLine);
     }
-    int code;
-    try {
-      code = Integer.parseInt(statusLine.substring(codeStart, codeStart + 3));
-    } catch (NumberFormatException e) {
-      throw new ProtocolException("Unexpected status line: " + statusLine);
+    int code = 0;
+    for (int i = codeStart; i < codeStart + 3; i++) {
+      int digit = statusLine.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        throw new ProtocolException("Unexpected status line: " + statusLine);
+      }
+      code = code * 10 + digit;
     }
 
     // Parse an optional response message like "OK" or "Not Modified". If it
@@ -87,7 +89,10 @@ public final class StatusLine {
       if (statusLine.charAt(codeStart + 3) != ' ') {
         throw new ProtocolException("Unexpected status line: " + statusLine);
       }
-      message = statusLine.substring(codeStart + 4);
+      message = statusLine.regionMatches(codeStart + 4, "OK", 0, 2)
+          && statusLine.length() == codeStart + 6
+          ? "OK"
+          : statusLine.substring(codeStart + 4);
     }
 
     return new StatusLine(protocol, code, message);
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2019 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http1;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import okhttp3.Headers;
+import okhttp3.internal.Internal;
+import okio.Buffer;
+import okio.BufferedSource;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads the status line and header lines of HTTP/1 responses. Each line is copied from the source
+ * into a scratch array and split there. Well-known header names and values are returned as shared
+ * strings, so a typical response allocates only the strings for its less common fields.
+ *
+ * <p>Lines are decoded and trimmed exactly as {@code Headers.Builder.addLenient()} would, and share
+ * a limit of {@link #HEADER_LIMIT} bytes across the response.
+ */
+final class HeadersReader {
+  private static final int HEADER_LIMIT = 256 * 1024;
+
+  /** Values longer than this are never well-known, so aren't looked up. */
+  private static final int MAX_WELL_KNOWN_LENGTH = 32;
+
+  /** Open-addressed by {@link #hash}. Empty slots are null. */
+  private static final String[] WELL_KNOWN = new String[1024];
+
+  static {
+    String[] names = {
+        "Accept-Encoding",
+        "Accept-Ranges",
+        "Access-Control-Allow-Credentials",
+        "Access-Control-Allow-Headers",
+        "Access-Control-Allow-Methods",
+        "Access-Control-Allow-Origin",
+        "Access-Control-Expose-Headers",
+        "Access-Control-Max-Age",
+        "Age",
+        "Allow",
+        "Alt-Svc",
+        "Cache-Control",
+        "Connection",
+        "Content-Disposition",
+        "Content-Encoding",
+        "Content-Language",
+        "Content-Length",
+        "Content-Location",
+        "Content-Range",
+        "Content-Security-Policy",
+        "Content-Type",
+        "Date",
+        "ETag",
+        "Etag",
+        "Expires",
+        "Keep-Alive",
+        "Last-Modified",
+        "Link",
+        "Location",
+        "Pragma",
+        "Proxy-Authenticate",
+        "Referrer-Policy",
+        "Retry-After",
+        "Server",
+        "Set-Cookie",
+        "Strict-Transport-Security",
+        "Trailer",
+        "Transfer-Encoding",
+        "Upgrade",
+        "Vary",
+        "Via",
+        "Warning",
+        "WWW-Authenticate",
+        "X-Cache",
+        "X-Content-Type-Options",
+        "X-Frame-Options",
+        "X-Powered-By",
+        "X-Request-Id",
+        "X-XSS-Protection",
+    };
+    for (String name : names) {
+      addWellKnown(name);
+      addWellKnown(name.toLowerCase(Locale.US));
+    }
+
+    String[] values = {
+        "*",
+        "0",
+        "1; mode=block",
+        "DENY",
+        "Origin",
+        "SAMEORIGIN",
+        "application/json",
+        "application/json; charset=utf-8",
+        "application/octet-stream",
+        "br",
+        "bytes",
+        "chunked",
+        "close",
+        "deflate",
+        "gzip",
+        "identity",
+        "keep-alive",
+        "max-age=0",
+        "no-cache",
+        "no-store",
+        "nosniff",
+        "private",
+        "public",
+        "text/html",
+        "text/html; charset=utf-8",
+        "text/plain",
+        "text/plain; charset=utf-8",
+        "true",
+    };
+    for (String value : values) {
+      addWellKnown(value);
+    }
+  }
+
+  private final BufferedSource source;
+  private final Buffer buffer;
+  private long headerLimit = HEADER_LIMIT;
+  private byte[] line = new byte[128];
+
+  HeadersReader(BufferedSource source) {
+    this.source = source;
+    this.buffer = source.getBuffer();
+  }
+
+  /** Reads a line like the status line, without its line terminator. */
+  String readLine() throws IOException {
+    int length = readLineBytes();
+    return new String(line, 0, length, UTF_8);
+  }
+
+  /** Reads headers or trailers, up to and including the blank line that follows them. */
+  Headers readHeaders() throws IOException {
+    String[] namesAndValues = new String[20];
+    int size = 0;
+
+    for (int length; (length = readLineBytes()) != 0; ) {
+      if (size == namesAndValues.length) {
+        namesAndValues = Arrays.copyOf(namesAndValues, size * 2);
+      }
+
+      // Like Headers.Builder.addLenient(), tolerate empty names and lines without a colon.
+      int colon = indexOf(line, 1, length, (byte) ':');
+      int valueStart;
+      if (colon != -1) {
+        namesAndValues[size++] = string(0, colon);
+        valueStart = colon + 1;
+      } else {
+        namesAndValues[size++] = "";
+        valueStart = length > 0 && line[0] == ':' ? 1 : 0;
+      }
+
+      int valueEnd = length;
+      while (valueStart < valueEnd && (line[valueStart] & 0xff) <= ' ') valueStart++;
+      while (valueEnd > valueStart && (line[valueEnd - 1] & 0xff) <= ' ') valueEnd--;
+      namesAndValues[size++] = string(valueStart, valueEnd);
+    }
+
+    if (size != namesAndValues.length) {
+      namesAndValues = Arrays.copyOf(namesAndValues, size);
+    }
+    return Internal.instance.headers(namesAndValues);
+  }
+
+  /**
+   * Copies the next line into {@link #line} and consumes it with its terminator. Returns the
+   * line's length. Throws like {@link BufferedSource#readUtf8LineStrict(long)} if no line ends
+   * within the remaining header limit.
+   */
+  private int readLineBytes() throws IOException {
+    long newline = source.indexOf((byte) '\n', 0L, headerLimit + 1);
+    if (newline == -1L) {
+      long scanLength = headerLimit + 1;
+      if (source.request(scanLength)
+          && buffer.getByte(scanLength - 1) == '\r'
+          && source.request(scanLength + 1)
+          && buffer.getByte(scanLength) == '\n') {
+        newline = scanLength; // The line ends exactly at the limit.
+      } else {
+        Buffer data = new Buffer();
+        buffer.copyTo(data, 0, Math.min(32, buffer.size()));
+        throw new EOFException("\\n not found: limit=" + Math.min(buffer.size(), headerLimit)
+            + " content=" + data.readByteString().hex() + '…');
+      }
+    }
+
+    int length = (int) (newline > 0 && buffer.getByte(newline - 1) == '\r' ? newline - 1 : newline);
+    if (length > line.length) {
+      line = new byte[Math.max(length, line.length * 2)];
+    }
+    for (int offset = 0; offset < length; ) {
+      offset += buffer.read(line, offset, length - offset);
+    }
+    buffer.skip(newline + 1 - length);
+    headerLimit -= length;
+    return length;
+  }
+
+  /** Returns the bytes of {@link #line} in {@code [start..end)} as a string. */
+  private String string(int start, int end) {
+    int length = end - start;
+    if (length == 0) return "";
+    if (length <= MAX_WELL_KNOWN_LENGTH) {
+      for (int i = hash(line, start, end) & (WELL_KNOWN.length - 1); ; ) {
+        String candidate = WELL_KNOWN[i];
+        if (candidate == null) break;
+        if (equals(candidate, line, start, end)) return candidate;
+        i = (i + 1) & (WELL_KNOWN.length - 1);
+      }
+    }
+    return new String(line, start, length, UTF_8);
+  }
+
+  private static void addWellKnown(String s) {
+    byte[] bytes = s.getBytes(UTF_8);
+    for (int i = hash(bytes, 0, bytes.length) & (WELL_KNOWN.length - 1); ; ) {
+      if (WELL_KNOWN[i] == null) {
+        WELL_KNOWN[i] = s;
+        return;
+      }
+      if (WELL_KNOWN[i].equals(s)) return;
+      i = (i + 1) & (WELL_KNOWN.length - 1);
+    }
+  }
+
+  /** Hashes the length and a few bytes only. Probing then compares every byte. */
+  private static int hash(byte[] bytes, int start, int end) {
+    int length = end - start;
+    int result = length;
+    result = 31 * result + bytes[start];
+    result = 31 * result + bytes[start + length / 2];
+    result = 31 * result + bytes[end - 1];
+    return result ^ (result >>> 7);
+  }
+
+  private static boolean equals(String s, byte[] bytes, int start, int end) {
+    if (s.length() != end - start) return false;
+    for (int i = start; i < end; i++) {
+      if (s.charAt(i - start) != bytes[i]) return false;
+    }
+    return true;
+  }
+
+  private static int indexOf(byte[] bytes, int start, int end, byte b) {
+    for (int i = start; i < end; i++) {
+      if (bytes[i] == b) return i;
+    }
+    return -1;
+  }
+}
@@ -24,7 +24,6 @@ import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
-import okhttp3.internal.Internal;
 import okhttp3.internal.Util;
 import okhttp3.internal.connection.RealConnection;
 import okhttp3.internal.http.ExchangeCodec;
@@ -34,6 +33,7 @@ import okhttp3.internal.http.StatusLine;
 import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
+import okio.ByteString;
 import okio.ForwardingTimeout;
 import okio.Sink;
 import okio.Source;
@@ -71,7 +71,7 @@ public final class Http1ExchangeCodec implements ExchangeCodec {
   private static final int STATE_OPEN_RESPONSE_BODY = 4;
   private static final int STATE_READING_RESPONSE_BODY = 5;
   private static final int STATE_CLOSED = 6;
-  private static final int HEADER_LIMIT = 256 * 1024;
+  private static final ByteString CRLF = ByteString.encodeUtf8("\r\n");
 
   /** The client that configures this stream. May be null for HTTPS proxy tunnels. */
   private final OkHttpClient client;
@@ -81,8 +81,8 @@ public final class Http1ExchangeCodec implements ExchangeCodec {
 
   private final BufferedSource source;
   private final BufferedSink sink;
+  private final HeadersReader headersReader;
   private int state = STATE_IDLE;
-  private long headerLimit = HEADER_LIMIT;
 
   /**
    * Received trailers. Null unless the response body uses chunked transfer-encoding and includes
@@ -96,6 +96,7 @@ public final class Http1ExchangeCodec implements ExchangeCodec {
     this.realConnection = realConnection;
     this.source = source;
     this.sink = sink;
+    this.headersReader = new HeadersReader(source);
   }
 
   @Override public RealConnection connection() {
@@ -210,13 +211,13 @@ public final class Http1ExchangeCodec implements ExchangeCodec {
     }
 
     try {
-      StatusLine statusLine = StatusLine.parse(readHeaderLine());
+      StatusLine statusLine = StatusLine.parse(headersReader.readLine());
 
       Response.Builder responseBuilder = new Response.Builder()
           .protocol(statusLine.protocol)
           .code(statusLine.code)
           .message(statusLine.message)
-          .headers(readHeaders());
+          .headers(headersReader.readHeaders());
 
       if (expectContinue && statusLine.code == HTTP_CONTINUE) {
         return null;
@@ -238,22 +239,6 @@ public final class Http1ExchangeCodec implements ExchangeCodec {
     }
   }
 
-  private String readHeaderLine() throws IOException {
-    String line = source.readUtf8LineStrict(headerLimit);
-    headerLimit -= line.length();
-    return line;
-  }
-
-  /** Reads headers or trailers. */
-  private Headers readHeaders() throws IOException {
-    Headers.Builder headers = new Headers.Builder();
-    // parse the result headers until the first blank line
-    for (String line; (line = readHeaderLine()).length() != 0; ) {
-      Internal.instance.addLenient(headers, line);
-    }
-    return headers.build();
-  }
-
   private Sink newChunkedSink() {
     if (state != STATE_OPEN_REQUEST_BODY) throw new IllegalStateException("state: " + state);
     state = STATE_WRITING_REQUEST_BODY;
@@ -490,7 +475,12 @@ public final class Http1ExchangeCodec implements ExchangeCodec {
       }
       try {
         bytesRemainingInChunk = source.readHexadecimalUnsignedLong();
-        String extensions = source.readUtf8LineStrict().trim();
+        String extensions = "";
+        if (source.rangeEquals(0L, CRLF)) {
+          source.skip(CRLF.size()); // The common case: no extensions.
+        } else {
+          extensions = source.readUtf8LineStrict().trim();
+        }
         if (bytesRemainingInChunk < 0 || (!extensions.isEmpty() && !extensions.startsWith(";"))) {
           throw new ProtocolException("expected chunk size and optional extensions but was \""
               + bytesRemainingInChunk + extensions + "\"");
@@ -500,7 +490,7 @@ public final class Http1ExchangeCodec implements ExchangeCodec {
       }
       if (bytesRemainingInChunk == 0L) {
         hasMoreChunks = false;
-        trailers = readHeaders();
+        trailers = headersReader.readHeaders();
         HttpHeaders.receiveHeaders(client.cookieJar(), url, trailers);
         responseBodyComplete();
       }
@@ -0,0 +1,767 @@
+/*
+ * Copyright (C) 2019 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http1;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.net.SocketFactory;
+import okhttp3.Authenticator;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.EventListener;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.internal.Util;
+import okhttp3.internal.http.BridgeInterceptor;
+import okhttp3.internal.http.HttpHeaders;
+import okhttp3.internal.http.RealResponseBody;
+import okhttp3.internal.http.RequestLine;
+import okhttp3.internal.platform.Platform;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+
+import static java.nio.channels.SelectionKey.OP_CONNECT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static okhttp3.internal.platform.Platform.INFO;
+
+/**
+ * Carries plaintext HTTP/1.1 calls on non-blocking socket channels. One selector thread drives
+ * every exchange, so a call that is waiting for its response holds no thread. This suits many slow
+ * responses, like long polls.
+ *
+ * <p>Calls are admitted by the client's dispatcher like any other asynchronous call, and count as
+ * running until their outcome is delivered. Each call is first prepared on the dispatcher's
+ * executor: the network request is built and its cookies loaded, the request body is buffered, and
+ * the host name is resolved. The selector
+ * thread then reuses an idle connection or connects a new one, writes the request with an {@link
+ * Http1ExchangeCodec}, and reads the response into memory. The codec only parses bytes that have
+ * already arrived, so it never blocks. Finally the response is delivered to the call's callback on
+ * the dispatcher's executor.
+ *
+ * <p>Responses are not followed up, so clients that follow redirects or have an authenticator
+ * don't use this transport. Response bodies are buffered in memory in full, and fail the call if
+ * they exceed {@link #BODY_LIMIT}. Timeouts are enforced to within 100 ms.
+ */
+public final class NioHttp1Transport {
+  private static final ByteString HEADERS_END = ByteString.encodeUtf8("\r\n\r\n");
+  private static final long HEADER_LIMIT = 256 * 1024;
+  static final long BODY_LIMIT = 16 * 1024 * 1024;
+  private static final long TIMEOUT_CHECK_INTERVAL_MILLIS = 100L;
+  private static final int MAX_IDLE_CONNECTIONS_PER_ADDRESS = 5;
+  private static final long KEEP_ALIVE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+  private static final ThreadFactory threadFactory =
+      Util.threadFactory("OkHttp NIO Transport", true);
+
+  private final OkHttpClient client;
+  private final BridgeInterceptor bridge;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  // Guarded by lock.
+  private final Deque<Runnable> tasks = new ArrayDeque<>();
+  private @Nullable Selector selector;
+  private boolean running;
+
+  // Confined to the selector thread.
+  private final Map<Call, NioExchange> exchanges = new LinkedHashMap<>();
+  private final Map<String, Deque<NioConnection>> idleConnections = new LinkedHashMap<>();
+  private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+  public NioHttp1Transport(OkHttpClient client) {
+    this.client = client;
+    this.bridge = new BridgeInterceptor(client.cookieJar());
+  }
+
+  /**
+   * Returns true if this transport can carry {@code request}. It must be a plaintext HTTP/1.1
+   * request without a duplex body that connects directly to its host with the default socket
+   * factory. The client must not follow redirects or answer authentication challenges, as this
+   * transport returns every response as it is.
+   */
+  public boolean supports(Request request) {
+    RequestBody body = request.body();
+    return !request.isHttps()
+        && !client.followRedirects()
+        && client.authenticator() == Authenticator.NONE
+        && client.protocols().contains(Protocol.HTTP_1_1)
+        && client.socketFactory() == SocketFactory.getDefault()
+        && (body == null || !body.isDuplex())
+        && isDirect(request.url());
+  }
+
+  private boolean isDirect(HttpUrl url) {
+    if (client.proxy() != null) return client.proxy().type() == Proxy.Type.DIRECT;
+    List<Proxy> proxies = client.proxySelector().select(url.uri());
+    if (proxies == null) return true;
+    for (Proxy proxy : proxies) {
+      if (proxy.type() != Proxy.Type.DIRECT) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Executes {@code call} and delivers its outcome to {@code callback} on the dispatcher's
+   * executor. This prepares the call on the current thread, which should be one of that executor's,
+   * and returns once the call is handed to the selector thread.
+   */
+  public void execute(Call call, EventListener eventListener, Callback callback) {
+    new NioExchange(call, eventListener, callback).prepare();
+  }
+
+  /** Cancels {@code call} if it is in flight on this transport. */
+  public void cancel(Call call) {
+    execute(() -> {
+      NioExchange exchange = exchanges.get(call);
+      if (exchange != null) exchange.fail(new IOException("Canceled"));
+    });
+  }
+
+  /** Runs {@code task} on the selector thread, starting that thread if necessary. */
+  private void execute(Runnable task) {
+    lock.lock();
+    try {
+      tasks.add(task);
+      if (running) {
+        if (selector != null) selector.wakeup();
+        return;
+      }
+      running = true;
+    } finally {
+      lock.unlock();
+    }
+    threadFactory.newThread(this::loop).start();
+  }
+
+  private void loop() {
+    Selector selector;
+    try {
+      selector = openSelector();
+    } catch (IOException e) {
+      Platform.get().log(INFO, "Failed to open a selector", e);
+      runTasks(); // Without a selector every exchange fails as it starts.
+      return;
+    }
+
+    long nextTimeoutCheck = System.nanoTime();
+    while (runTasks()) {
+      try {
+        selector.select(exchanges.isEmpty() ? 1000L : TIMEOUT_CHECK_INTERVAL_MILLIS);
+      } catch (IOException e) {
+        Platform.get().log(INFO, "Selector failed", e);
+      }
+
+      for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); ) {
+        SelectionKey key = i.next();
+        i.remove();
+        ((NioConnection) key.attachment()).ready(key);
+      }
+
+      long now = System.nanoTime();
+      if (now - nextTimeoutCheck >= 0) {
+        checkTimeouts(now);
+        nextTimeoutCheck = now + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_CHECK_INTERVAL_MILLIS);
+      }
+    }
+  }
+
+  private Selector openSelector() throws IOException {
+    lock.lock();
+    try {
+      if (selector == null) selector = Selector.open();
+      return selector;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Runs pending tasks. Returns false if the selector thread has no more work and should exit; in
+   * that case a later task starts a new thread.
+   */
+  private boolean runTasks() {
+    while (true) {
+      Runnable task;
+      lock.lock();
+      try {
+        task = tasks.poll();
+        if (task == null) {
+          if (!exchanges.isEmpty() || !idleConnections.isEmpty()) return true;
+          running = false;
+          return false;
+        }
+      } finally {
+        lock.unlock();
+      }
+      task.run();
+    }
+  }
+
+  private void checkTimeouts(long now) {
+    for (NioExchange exchange : new ArrayList<>(exchanges.values())) {
+      exchange.checkTimeout(now);
+    }
+    for (Iterator<Deque<NioConnection>> i = idleConnections.values().iterator(); i.hasNext(); ) {
+      Deque<NioConnection> connections = i.next();
+      for (Iterator<NioConnection> j = connections.iterator(); j.hasNext(); ) {
+        NioConnection connection = j.next();
+        if (now - connection.idleAtNanos >= KEEP_ALIVE_NANOS) {
+          j.remove();
+          connection.close();
+        }
+      }
+      if (connections.isEmpty()) i.remove();
+    }
+  }
+
+  private @Nullable NioConnection takeIdleConnection(String address) {
+    Deque<NioConnection> connections = idleConnections.get(address);
+    if (connections == null) return null;
+    NioConnection result = connections.pollLast(); // Most recently used.
+    if (connections.isEmpty()) idleConnections.remove(address);
+    return result;
+  }
+
+  private void releaseConnection(NioConnection connection) {
+    Deque<NioConnection> connections = idleConnections.get(connection.address);
+    if (connections == null) {
+      connections = new ArrayDeque<>();
+      idleConnections.put(connection.address, connections);
+    }
+    if (connections.size() >= MAX_IDLE_CONNECTIONS_PER_ADDRESS) {
+      connection.close();
+      return;
+    }
+    connection.exchange = null;
+    connection.idleAtNanos = System.nanoTime();
+    connection.key.interestOps(OP_READ); // Notice if the server closes it.
+    connections.add(connection);
+  }
+
+  private void removeIdleConnection(NioConnection connection) {
+    Deque<NioConnection> connections = idleConnections.get(connection.address);
+    if (connections != null && connections.remove(connection) && connections.isEmpty()) {
+      idleConnections.remove(connection.address);
+    }
+  }
+
+  /** A socket channel and the bytes that have been read from it but not yet consumed. */
+  final class NioConnection {
+    final String address;
+    final SocketChannel channel;
+    final SelectionKey key;
+    final Buffer source = new Buffer();
+    final Buffer sink = new Buffer();
+    @Nullable NioExchange exchange;
+    long idleAtNanos;
+
+    NioConnection(String address, SocketChannel channel, Selector selector) throws IOException {
+      this.address = address;
+      this.channel = channel;
+      this.key = channel.register(selector, 0, this);
+    }
+
+    void ready(SelectionKey key) {
+      if (!key.isValid()) return;
+      NioExchange exchange = this.exchange;
+      if (exchange == null) {
+        // Idle connections have nothing to read. The server closed this one or misbehaved.
+        removeIdleConnection(this);
+        close();
+        return;
+      }
+      try {
+        if (key.isConnectable()) {
+          exchange.connected();
+        } else if (key.isWritable()) {
+          exchange.writeRequest();
+        } else if (key.isReadable()) {
+          exchange.readResponse();
+        }
+      } catch (IOException e) {
+        exchange.fail(e);
+      } catch (RuntimeException e) {
+        exchange.fail(new IOException("canceled due to " + e, e));
+      }
+    }
+
+    void close() {
+      key.cancel();
+      Util.closeQuietly(channel);
+    }
+  }
+
+  /** The state of one call on this transport. */
+  final class NioExchange {
+    static final int STATE_PREPARING = 0;
+    static final int STATE_CONNECTING = 1;
+    static final int STATE_WRITING_REQUEST = 2;
+    static final int STATE_READING_HEADERS = 3;
+    static final int STATE_READING_BODY = 4;
+    static final int STATE_DONE = 5;
+
+    final Call call;
+    final EventListener eventListener;
+    final Callback callback;
+    final Request userRequest;
+    final long callStartNanos = System.nanoTime();
+
+    /** The call's own timeout, and its deadline or {@link Long#MAX_VALUE} if it has none. */
+    final long callTimeoutNanos;
+    final long callDeadlineNanos;
+
+    int state = STATE_PREPARING;
+    Request networkRequest;
+    @Nullable Buffer requestBody;
+    long requestBodyContentLength;
+    String address;
+    int port;
+    List<InetAddress> inetAddresses;
+    int nextInetAddress;
+    @Nullable InetSocketAddress connectingTo;
+
+    @Nullable NioConnection connection;
+    boolean reusedConnection;
+    boolean retried;
+    Http1ExchangeCodec codec;
+    ByteBuffer outgoing;
+    long sentRequestAtMillis;
+
+    /** The time of the last progress, and how long the current phase may go without progress. */
+    long progressAtNanos;
+    long timeoutNanos;
+
+    Response response;
+    boolean chunked;
+    long contentLength;
+    long chunkScanPosition;
+    boolean chunkTrailers;
+
+    NioExchange(Call call, EventListener eventListener, Callback callback) {
+      this.call = call;
+      this.eventListener = eventListener;
+      this.callback = callback;
+      this.userRequest = call.request();
+      Timeout timeout = call.timeout();
+      this.callTimeoutNanos = timeout.timeoutNanos();
+      this.callDeadlineNanos = timeout.hasDeadline() ? timeout.deadlineNanoTime() : Long.MAX_VALUE;
+    }
+
+    /** Does the work that may block. This runs on one of the dispatcher's executor threads. */
+    void prepare() {
+      try {
+        if (call.isCanceled()) throw new IOException("Canceled");
+
+        networkRequest = bridge.networkRequest(userRequest);
+        RequestBody body = networkRequest.body();
+        if (body != null) {
+          requestBodyContentLength = body.contentLength();
+          requestBody = new Buffer();
+          body.writeTo(requestBody);
+        }
+
+        HttpUrl url = networkRequest.url();
+        port = url.port();
+        address = url.host() + ":" + port;
+        eventListener.dnsStart(call, url.host());
+        inetAddresses = client.dns().lookup(url.host());
+        if (inetAddresses.isEmpty()) {
+          throw new UnknownHostException(client.dns() + " returned no addresses for " + url.host());
+        }
+        eventListener.dnsEnd(call, url.host(), inetAddresses);
+      } catch (IOException e) {
+        deliverFailure(e);
+        return;
+      } catch (RuntimeException e) {
+        deliverFailure(new IOException("canceled due to " + e, e));
+        throw e;
+      }
+
+      execute(this::start);
+    }
+
+    /** Starts the exchange on the selector thread. */
+    void start() {
+      if (call.isCanceled() || selector == null) {
+        deliverFailure(new IOException(call.isCanceled() ? "Canceled" : "selector unavailable"));
+        return;
+      }
+      exchanges.put(call, this);
+      try {
+        NioConnection pooled = takeIdleConnection(address);
+        if (pooled != null) {
+          reusedConnection = true;
+          attach(pooled);
+          startRequest();
+        } else {
+          connectNext();
+        }
+      } catch (IOException e) {
+        fail(e);
+      } catch (RuntimeException e) {
+        fail(new IOException("canceled due to " + e, e));
+      }
+    }
+
+    void connectNext() throws IOException {
+      state = STATE_CONNECTING;
+      InetSocketAddress target = new InetSocketAddress(inetAddresses.get(nextInetAddress++), port);
+      connectingTo = target;
+      eventListener.connectStart(call, target, Proxy.NO_PROXY);
+
+      SocketChannel channel = SocketChannel.open();
+      try {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        attach(new NioConnection(address, channel, selector));
+      } catch (IOException e) {
+        Util.closeQuietly(channel);
+        throw e;
+      }
+
+      progress(client.connectTimeoutMillis());
+      boolean connected;
+      try {
+        connected = channel.connect(target);
+      } catch (IOException e) {
+        connectFailed(e);
+        return;
+      }
+      if (connected) {
+        connected();
+      } else {
+        connection.key.interestOps(OP_CONNECT);
+      }
+    }
+
+    void connected() throws IOException {
+      try {
+        connection.channel.finishConnect();
+      } catch (IOException e) {
+        connectFailed(e);
+        return;
+      }
+      eventListener.connectEnd(call, connectingTo, Proxy.NO_PROXY, Protocol.HTTP_1_1);
+      startRequest();
+    }
+
+    /** Tries the next address, or fails the call if there are none left. */
+    void connectFailed(IOException e) throws IOException {
+      eventListener.connectFailed(call, connectingTo, Proxy.NO_PROXY, null, e);
+      detach().close();
+      if (nextInetAddress < inetAddresses.size()) {
+        connectNext();
+      } else {
+        throw e;
+      }
+    }
+
+    /** Encodes the request into the connection's sink and starts writing it. */
+    void startRequest() throws IOException {
+      codec = new Http1ExchangeCodec(client, null, connection.source, connection.sink);
+
+      eventListener.requestHeadersStart(call);
+      codec.writeRequest(networkRequest.headers(),
+          RequestLine.get(networkRequest, Proxy.Type.DIRECT));
+      eventListener.requestHeadersEnd(call, networkRequest);
+
+      if (requestBody != null) {
+        eventListener.requestBodyStart(call);
+        long byteCount = requestBody.size();
+        BufferedSink bodySink = Okio.buffer(
+            codec.createRequestBody(networkRequest, requestBodyContentLength));
+        bodySink.write(requestBody.clone(), byteCount); // Keep the original in case we retry.
+        bodySink.close();
+        eventListener.requestBodyEnd(call, byteCount);
+      }
+      codec.finishRequest();
+
+      outgoing = ByteBuffer.wrap(connection.sink.readByteArray());
+      state = STATE_WRITING_REQUEST;
+      progress(client.writeTimeoutMillis());
+      connection.key.interestOps(OP_WRITE);
+      writeRequest();
+    }
+
+    void writeRequest() throws IOException {
+      try {
+        if (connection.channel.write(outgoing) > 0) progress(client.writeTimeoutMillis());
+      } catch (IOException e) {
+        retryOrFail(e);
+        return;
+      }
+      if (outgoing.hasRemaining()) return;
+
+      sentRequestAtMillis = System.currentTimeMillis();
+      state = STATE_READING_HEADERS;
+      progress(client.readTimeoutMillis());
+      connection.key.interestOps(OP_READ);
+      eventListener.responseHeadersStart(call);
+    }
+
+    void readResponse() throws IOException {
+      readBuffer.clear();
+      int byteCount;
+      try {
+        byteCount = connection.channel.read(readBuffer);
+      } catch (IOException e) {
+        retryOrFail(e);
+        return;
+      }
+
+      if (byteCount == -1) {
+        if (state == STATE_READING_BODY && !chunked && contentLength == -1L) {
+          finish(false); // The body extends to the end of the stream.
+        } else {
+          retryOrFail(new IOException("unexpected end of stream on " + userRequest.url().redact()));
+        }
+        return;
+      }
+
+      readBuffer.flip();
+      connection.source.write(readBuffer);
+      progress(client.readTimeoutMillis());
+
+      if (state == STATE_READING_HEADERS) readHeaders();
+      if (state == STATE_READING_BODY) {
+        if (bodyComplete()) {
+          finish(true);
+        } else if (connection.source.size() > BODY_LIMIT) {
+          throw new ProtocolException("response body too large");
+        }
+      }
+    }
+
+    void readHeaders() throws IOException {
+      while (state == STATE_READING_HEADERS) {
+        if (connection.source.indexOf(HEADERS_END) == -1L) {
+          if (connection.source.size() > HEADER_LIMIT) {
+            throw new ProtocolException("response headers too large");
+          }
+          return;
+        }
+
+        Response.Builder responseBuilder = codec.readResponseHeaders(false);
+        Response headers = responseBuilder
+            .request(networkRequest)
+            .sentRequestAtMillis(sentRequestAtMillis)
+            .receivedResponseAtMillis(System.currentTimeMillis())
+            .build();
+        if (headers.code() == 100) continue; // The server sent a 100-continue we didn't ask for.
+
+        response = headers;
+        eventListener.responseHeadersEnd(call, response);
+        if (!HttpHeaders.hasBody(response)) {
+          contentLength = 0L;
+        } else if ("chunked".equalsIgnoreCase(response.header("Transfer-Encoding"))) {
+          chunked = true;
+        } else {
+          contentLength = HttpHeaders.contentLength(response);
+          if (contentLength > BODY_LIMIT) throw new ProtocolException("response body too large");
+        }
+        eventListener.responseBodyStart(call);
+        state = STATE_READING_BODY;
+      }
+    }
+
+    /** Returns true once the connection's source holds the complete response body. */
+    boolean bodyComplete() throws ProtocolException {
+      Buffer source = connection.source;
+      if (!chunked) return contentLength != -1L && source.size() >= contentLength;
+
+      // Find the end of the chunked body without consuming it. The codec decodes it afterwards.
+      while (true) {
+        long lineEnd = source.indexOf((byte) '\n', chunkScanPosition);
+        if (lineEnd == -1L) return false;
+
+        if (chunkTrailers) {
+          if (lineEnd - chunkScanPosition <= 1L) return true; // An empty line ends the trailers.
+          chunkScanPosition = lineEnd + 1;
+          continue;
+        }
+
+        long chunkSize = 0L;
+        int digits = 0;
+        for (long i = chunkScanPosition; i < lineEnd; i++, digits++) {
+          int digit = Character.digit(source.getByte(i), 16);
+          if (digit == -1) break;
+          if (digits == 15) throw new ProtocolException("chunk size too large");
+          chunkSize = (chunkSize << 4) | digit;
+        }
+        if (digits == 0) throw new ProtocolException("expected a chunk size");
+
+        if (chunkSize == 0L) {
+          chunkTrailers = true;
+          chunkScanPosition = lineEnd + 1;
+        } else {
+          long chunkEnd = lineEnd + 1 + chunkSize + 2; // The chunk's data and its CRLF.
+          if (source.size() < chunkEnd) return false;
+          chunkScanPosition = chunkEnd;
+        }
+      }
+    }
+
+    /** Decodes the complete response, releases the connection and delivers the response. */
+    void finish(boolean framed) throws IOException {
+      Buffer body = new Buffer();
+      if (framed) {
+        Source bodySource = codec.openResponseBodySource(response);
+        while (bodySource.read(body, 8192L) != -1L) {
+        }
+        bodySource.close();
+      } else {
+        body.writeAll(connection.source);
+      }
+      eventListener.responseBodyEnd(call, body.size());
+
+      NioConnection connection = detach();
+      if (framed
+          && connection.source.size() == 0L
+          && response.protocol() == Protocol.HTTP_1_1
+          && !"close".equalsIgnoreCase(response.header("Connection"))
+          && !"close".equalsIgnoreCase(networkRequest.header("Connection"))) {
+        releaseConnection(connection);
+      } else {
+        connection.close();
+      }
+
+      state = STATE_DONE;
+      exchanges.remove(call);
+      Response networkResponse = response.newBuilder()
+          .body(new RealResponseBody(response.header("Content-Type"), body.size(), body))
+          .build();
+      deliverResponse(networkResponse);
+    }
+
+    /**
+     * Retries on a new connection if a pooled connection failed before any of the response
+     * arrived, as it does if the server closed it while it was idle. Otherwise fails the call.
+     */
+    void retryOrFail(IOException e) throws IOException {
+      boolean nothingReceived = state != STATE_READING_BODY && connection.source.size() == 0L;
+      if (!reusedConnection || retried || !nothingReceived || !client.retryOnConnectionFailure()) {
+        throw e;
+      }
+      retried = true;
+      reusedConnection = false;
+      detach().close();
+      nextInetAddress = 0;
+      connectNext();
+    }
+
+    void checkTimeout(long now) {
+      if ((callTimeoutNanos != 0L && now - callStartNanos >= callTimeoutNanos)
+          || now - callDeadlineNanos >= 0L) {
+        fail(new InterruptedIOException("timeout"));
+        return;
+      }
+      if (timeoutNanos == 0L || now - progressAtNanos < timeoutNanos) return;
+
+      try {
+        if (state == STATE_CONNECTING) {
+          connectFailed(new SocketTimeoutException("connect timed out"));
+        } else {
+          fail(new SocketTimeoutException("timeout"));
+        }
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    void fail(IOException e) {
+      if (state == STATE_DONE) return;
+      state = STATE_DONE;
+      exchanges.remove(call);
+      if (connection != null) detach().close();
+      deliverFailure(e);
+    }
+
+    void progress(int timeoutMillis) {
+      progressAtNanos = System.nanoTime();
+      timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    void attach(NioConnection connection) {
+      this.connection = connection;
+      connection.exchange = this;
+    }
+
+    NioConnection detach() {
+      NioConnection result = connection;
+      result.exchange = null;
+      connection = null;
+      return result;
+    }
+
+    void deliverResponse(Response networkResponse) {
+      eventListener.callEnd(call);
+      deliver(() -> {
+        Response response = bridge.userResponse(userRequest, networkResponse);
+        try {
+          callback.onResponse(call, response);
+        } catch (IOException e) {
+          Platform.get().log(INFO, "Callback failure for " + userRequest.url().redact(), e);
+        }
+      });
+    }
+
+    void deliverFailure(IOException e) {
+      eventListener.callFailed(call, e);
+      deliver(() -> callback.onFailure(call, e));
+    }
+
+    /** Runs {@code callback} on the dispatcher's executor so that it can't stall the selector. */
+    private void deliver(Runnable callback) {
+      try {
+        client.dispatcher().executorService().execute(callback);
+      } catch (RejectedExecutionException e) {
+        callback.run();
+      }
+    }
+  }
+}
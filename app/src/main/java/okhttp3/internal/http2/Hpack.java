@@ -344,7 +344,9 @@ final class Hpack {
       int length = readInt(firstByte, PREFIX_7_BITS);
 
       if (huffmanDecode) {
-        return ByteString.of(Huffman.get().decode(source.readByteArray(length)));
+        Buffer decoded = new Buffer();
+        Huffman.get().decode(source, length, decoded);
+        return decoded.readByteString();
       } else {
         return source.readByteString(length);
       }
@@ -25,15 +25,22 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.annotation.Nullable;
 import okhttp3.Headers;
 import okhttp3.internal.NamedRunnable;
@@ -44,6 +51,7 @@ import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.ByteString;
 import okio.Okio;
+import okio.Timeout;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static okhttp3.internal.http2.ErrorCode.REFUSED_STREAM;
@@ -61,23 +69,27 @@ import static okhttp3.internal.platform.Platform.INFO;
  */
 public final class Http2Connection implements Closeable {
 
-  // Internal state of this connection is guarded by 'this'. No blocking
+  // Internal state of this connection is guarded by 'lock'. No blocking
   // operations may be performed while holding this lock!
   //
-  // Socket writes are guarded by frameWriter.
+  // Socket writes are guarded by 'writer.lock'.
   //
   // Socket reads are unguarded but are only made by the reader thread.
   //
-  // Certain operations (like SYN_STREAM) need to synchronize on both the
-  // frameWriter (to do blocking I/O) and this (to create streams). Such
-  // operations must synchronize on 'this' last. This ensures that we never
-  // wait for a blocking operation while holding 'this'.
+  // Certain operations (like SYN_STREAM) need to hold both the writer's
+  // lock (to do blocking I/O) and 'lock' (to create streams). Such
+  // operations must acquire 'lock' last. This ensures that we never
+  // wait for a blocking operation while holding 'lock'.
+  //
+  // These are locks rather than monitors so that virtual threads waiting
+  // for a window update or a socket write don't pin their carrier threads.
 
-  static final int OKHTTP_CLIENT_WINDOW_SIZE = 16 * 1024 * 1024;
+  static final int OKHTTP_CLIENT_WINDOW_SIZE = WindowTuner.INITIAL_WINDOW;
 
   static final int INTERVAL_PING = 1;
   static final int DEGRADED_PING = 2;
   static final int AWAIT_PING = 3;
+  static final int BDP_PING = 4;
   static final long DEGRADED_PONG_TIMEOUT_NS = 1_000_000_000L; // 1 second.
 
   /**
@@ -96,14 +108,35 @@ public final class Http2Connection implements Closeable {
    * on {@link #listenerExecutor}.
    */
   final Listener listener;
+  final ReentrantLock lock = new ReentrantLock();
+
+  /** Signalled when the connection's write window grows or a stream is removed. */
+  private final Condition condition = lock.newCondition();
+
   final Map<Integer, Http2Stream> streams = new LinkedHashMap<>();
   final String connectionName;
   int lastGoodStreamId;
   int nextStreamId;
   private boolean shutdown;
 
-  /** Asynchronously writes frames to the outgoing socket. */
+  /**
+   * Asynchronously writes frames to the outgoing socket. This is either this connection's own
+   * thread, or an event loop shared with other connections.
+   */
   private final ScheduledExecutorService writerExecutor;
+  private final boolean sharedWriterExecutor;
+  private final @Nullable ScheduledFuture<?> intervalPing;
+
+  /** Tasks waiting to run on a shared event loop, in order. */
+  private final Queue<Runnable> pendingWrites = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean writesScheduled = new AtomicBoolean();
+
+  /** True if pending writes wait for a stream to release the writer. */
+  private final AtomicBoolean writesAwaitWriter = new AtomicBoolean();
+
+  /** Window update increments waiting to be written, keyed by stream ID. */
+  private final Map<Integer, Long> pendingWindowUpdates = new ConcurrentHashMap<>();
+  private final AtomicBoolean windowUpdatesScheduled = new AtomicBoolean();
 
   /** Ensures push promise callbacks events are sent in order per stream. */
   private final ExecutorService pushExecutor;
@@ -111,7 +144,7 @@ public final class Http2Connection implements Closeable {
   /** User code to run in response to push promise events. */
   final PushObserver pushObserver;
 
-  // Total number of pings send and received of the corresponding types. All guarded by this.
+  // Total number of pings send and received of the corresponding types. All guarded by lock.
   private long intervalPingsSent = 0L;
   private long intervalPongsReceived = 0L;
   private long degradedPingsSent = 0L;
@@ -129,6 +162,15 @@ public final class Http2Connection implements Closeable {
   // Visible for testing
   long unacknowledgedBytesRead = 0;
 
+  /**
+   * The size of this connection's receive window when the last {@code WINDOW_UPDATE} frame was
+   * sent. The window has since shrunk by {@link #unacknowledgedBytesRead}.
+   */
+  long receiveWindowSize;
+
+  /** Sizes the receive windows of this connection and its streams. */
+  final WindowTuner windowTuner;
+
   /**
    * Count of bytes that can be written on the connection before receiving a window update.
    */
@@ -159,20 +201,31 @@ public final class Http2Connection implements Closeable {
     }
 
     // Flow control was designed more for servers, or proxies than edge clients.
-    // If we are a client, set the flow control window to 16MiB.  This avoids
-    // thrashing window updates every 64KiB, yet small enough to avoid blowing
-    // up the heap.
+    // If we are a client, start the flow control window at 1MiB. This avoids
+    // thrashing window updates every 64KiB. The window tuner grows it on links
+    // that can carry more, and shrinks it when many streams are open.
     if (builder.client) {
       okHttpSettings.set(Settings.INITIAL_WINDOW_SIZE, OKHTTP_CLIENT_WINDOW_SIZE);
     }
+    receiveWindowSize = okHttpSettings.getInitialWindowSize();
+    windowTuner = new WindowTuner(builder.resources, receiveWindowSize);
 
     connectionName = builder.connectionName;
 
-    writerExecutor = new ScheduledThreadPoolExecutor(1,
-        Util.threadFactory(Util.format("OkHttp %s Writer", connectionName), false));
+    Http2EventLoops eventLoops = builder.resources.eventLoops;
+    sharedWriterExecutor = eventLoops != null;
+    writerExecutor = eventLoops != null
+        ? eventLoops.next()
+        : new ScheduledThreadPoolExecutor(1,
+            Util.threadFactory(Util.format("OkHttp %s Writer", connectionName), false));
     if (builder.pingIntervalMillis != 0) {
-      writerExecutor.scheduleAtFixedRate(new IntervalPingRunnable(),
+      IntervalPingRunnable intervalPingRunnable = new IntervalPingRunnable();
+      intervalPing = writerExecutor.scheduleAtFixedRate(sharedWriterExecutor
+              ? () -> executeWrite(intervalPingRunnable)
+              : intervalPingRunnable,
           builder.pingIntervalMillis, builder.pingIntervalMillis, MILLISECONDS);
+    } else {
+      intervalPing = null;
     }
 
     // Like newSingleThreadExecutor, except lazy creates the thread.
@@ -183,6 +236,7 @@ public final class Http2Connection implements Closeable {
     bytesLeftInWriteWindow = peerSettings.getInitialWindowSize();
     socket = builder.socket;
     writer = new Http2Writer(builder.sink, client);
+    if (sharedWriterExecutor) writer.unlockListener = this::writerUnlocked;
 
     readerRunnable = new ReaderRunnable(new Http2Reader(builder.source, client));
   }
@@ -190,29 +244,132 @@ public final class Http2Connection implements Closeable {
   /**
    * Returns the number of {@link Http2Stream#isOpen() open streams} on this connection.
    */
-  public synchronized int openStreamCount() {
-    return streams.size();
+  public int openStreamCount() {
+    lock.lock();
+    try {
+      return streams.size();
+    } finally {
+      lock.unlock();
+    }
   }
 
-  synchronized Http2Stream getStream(int id) {
-    return streams.get(id);
+  Http2Stream getStream(int id) {
+    lock.lock();
+    try {
+      return streams.get(id);
+    } finally {
+      lock.unlock();
+    }
   }
 
-  synchronized Http2Stream removeStream(int streamId) {
-    Http2Stream stream = streams.remove(streamId);
-    notifyAll(); // The removed stream may be blocked on a connection-wide window update.
-    return stream;
+  Http2Stream removeStream(int streamId) {
+    lock.lock();
+    try {
+      Http2Stream stream = streams.remove(streamId);
+      if (stream != null) windowTuner.streamsClosed(1);
+      // The removed stream may be blocked on a connection-wide window update.
+      condition.signalAll();
+      return stream;
+    } finally {
+      lock.unlock();
+    }
   }
 
-  public synchronized int maxConcurrentStreams() {
-    return peerSettings.getMaxConcurrentStreams(Integer.MAX_VALUE);
+  public int maxConcurrentStreams() {
+    lock.lock();
+    try {
+      return peerSettings.getMaxConcurrentStreams(Integer.MAX_VALUE);
+    } finally {
+      lock.unlock();
+    }
   }
 
-  synchronized void updateConnectionFlowControl(long read) {
-    unacknowledgedBytesRead += read;
-    if (unacknowledgedBytesRead >= okHttpSettings.getInitialWindowSize() / 2) {
-      writeWindowUpdateLater(0, unacknowledgedBytesRead);
-      unacknowledgedBytesRead = 0;
+  /**
+   * Runs {@code task} on this connection's writer. On a shared event loop tasks only run while no
+   * stream is writing to the socket; otherwise they run on the loop once that stream is done. A
+   * task's socket writes time out after {@link Http2EventLoops#WRITE_TIMEOUT_MILLIS}, which fails
+   * the connection.
+   */
+  private void executeWrite(Runnable task) {
+    if (!sharedWriterExecutor) {
+      writerExecutor.execute(task);
+      return;
+    }
+    pendingWrites.add(task);
+    if (writesScheduled.compareAndSet(false, true)) {
+      writerExecutor.execute(this::runPendingWrites);
+    }
+  }
+
+  private void runPendingWrites() {
+    for (Runnable task; (task = pendingWrites.peek()) != null; ) {
+      if (!writer.lock.tryLock()) {
+        // Ask the stream holding the writer to resume us. Check again in case it just let go.
+        writesAwaitWriter.set(true);
+        if (writer.lock.isLocked() || !writesAwaitWriter.compareAndSet(true, false)) return;
+        continue;
+      }
+      Timeout timeout = writer.timeout();
+      long timeoutNanos = timeout.timeoutNanos();
+      timeout.timeout(Http2EventLoops.WRITE_TIMEOUT_MILLIS, MILLISECONDS);
+      try {
+        pendingWrites.poll();
+        task.run();
+      } finally {
+        timeout.timeout(timeoutNanos, TimeUnit.NANOSECONDS);
+        writer.lock.unlock();
+      }
+    }
+    writesScheduled.set(false);
+    // Run tasks that were added after the queue was drained but before the flag was cleared.
+    if (!pendingWrites.isEmpty() && writesScheduled.compareAndSet(false, true)) {
+      writerExecutor.execute(this::runPendingWrites);
+    }
+  }
+
+  private void writerUnlocked() {
+    if (!writesAwaitWriter.compareAndSet(true, false)) return;
+    try {
+      writerExecutor.execute(this::runPendingWrites);
+    } catch (RejectedExecutionException ignored) {
+      // This connection has been closed.
+    }
+  }
+
+  void updateConnectionFlowControl(long read) {
+    lock.lock();
+    try {
+      unacknowledgedBytesRead += read;
+      long target = windowTuner.connectionWindow(streams.size());
+      if (unacknowledgedBytesRead >= Math.min(receiveWindowSize, target) / 2) {
+        long increment = unacknowledgedBytesRead + target - receiveWindowSize;
+        if (increment > 0) {
+          writeWindowUpdateLater(0, increment);
+          receiveWindowSize = target;
+        } else {
+          receiveWindowSize -= unacknowledgedBytesRead; // Shrink by withholding the update.
+        }
+        unacknowledgedBytesRead = 0;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Sends a PING to measure the bandwidth-delay product if one isn't already in flight. */
+  void dataReceived(int length) {
+    int pingSequence;
+    lock.lock();
+    try {
+      pingSequence = windowTuner.dataReceived(length, System.nanoTime());
+    } finally {
+      lock.unlock();
+    }
+    if (pingSequence == -1) return;
+    try {
+      executeWrite(new PingRunnable(false, BDP_PING, pingSequence));
+    } catch (RejectedExecutionException ignored) {
+      // This connection has been closed.
     }
   }
 
@@ -246,8 +403,10 @@ public final class Http2Connection implements Closeable {
     Http2Stream stream;
     int streamId;
 
-    synchronized (writer) {
-      synchronized (this) {
+    writer.lock.lock();
+    try {
+      lock.lock();
+      try {
         if (nextStreamId > Integer.MAX_VALUE / 2) {
           shutdown(REFUSED_STREAM);
         }
@@ -260,7 +419,10 @@ public final class Http2Connection implements Closeable {
         flushHeaders = !out || bytesLeftInWriteWindow == 0L || stream.bytesLeftInWriteWindow == 0L;
         if (stream.isOpen()) {
           streams.put(streamId, stream);
+          windowTuner.streamsOpened(1);
         }
+      } finally {
+        lock.unlock();
       }
       if (associatedStreamId == 0) {
         writer.headers(outFinished, streamId, requestHeaders);
@@ -269,10 +431,12 @@ public final class Http2Connection implements Closeable {
       } else { // HTTP/2 has a PUSH_PROMISE frame.
         writer.pushPromise(associatedStreamId, streamId, requestHeaders);
       }
+    } finally {
+      writer.unlock();
     }
 
     if (flushHeaders) {
-      writer.flush();
+      flush();
     }
 
     return stream;
@@ -304,7 +468,8 @@ public final class Http2Connection implements Closeable {
 
     while (byteCount > 0) {
       int toWrite;
-      synchronized (Http2Connection.this) {
+      lock.lock();
+      try {
         try {
           while (bytesLeftInWriteWindow <= 0) {
             // Before blocking, confirm that the stream we're writing is still open. It's possible
@@ -312,7 +477,7 @@ public final class Http2Connection implements Closeable {
             if (!streams.containsKey(streamId)) {
               throw new IOException("stream closed");
             }
-            Http2Connection.this.wait(); // Wait until we receive a WINDOW_UPDATE.
+            condition.await(); // Wait until we receive a WINDOW_UPDATE.
           }
         } catch (InterruptedException e) {
           Thread.currentThread().interrupt(); // Retain interrupted status.
@@ -322,6 +487,8 @@ public final class Http2Connection implements Closeable {
         toWrite = (int) Math.min(byteCount, bytesLeftInWriteWindow);
         toWrite = Math.min(toWrite, writer.maxDataLength());
         bytesLeftInWriteWindow -= toWrite;
+      } finally {
+        lock.unlock();
       }
 
       byteCount -= toWrite;
@@ -331,7 +498,7 @@ public final class Http2Connection implements Closeable {
 
   void writeSynResetLater(final int streamId, final ErrorCode errorCode) {
     try {
-      writerExecutor.execute(new NamedRunnable("OkHttp %s stream %d", connectionName, streamId) {
+      executeWrite(new NamedRunnable("OkHttp %s stream %d", connectionName, streamId) {
         @Override public void execute() {
           try {
             writeSynReset(streamId, errorCode);
@@ -349,18 +516,30 @@ public final class Http2Connection implements Closeable {
     writer.rstStream(streamId, statusCode);
   }
 
-  void writeWindowUpdateLater(final int streamId, final long unacknowledgedBytesRead) {
+  /**
+   * Sends a window update on the writer thread. Updates that are requested before that thread gets
+   * to them are merged and written together, with a single flush.
+   */
+  void writeWindowUpdateLater(int streamId, long unacknowledgedBytesRead) {
+    pendingWindowUpdates.merge(streamId, unacknowledgedBytesRead, Long::sum);
+    if (!windowUpdatesScheduled.compareAndSet(false, true)) return;
     try {
-      writerExecutor.execute(
-          new NamedRunnable("OkHttp Window Update %s stream %d", connectionName, streamId) {
-            @Override public void execute() {
-              try {
-                writer.windowUpdate(streamId, unacknowledgedBytesRead);
-              } catch (IOException e) {
-                failConnection(e);
-              }
-            }
-          });
+      executeWrite(new NamedRunnable("OkHttp Window Update %s", connectionName) {
+        @Override public void execute() {
+          windowUpdatesScheduled.set(false);
+          Map<Integer, Long> increments = new LinkedHashMap<>();
+          for (Integer streamId : pendingWindowUpdates.keySet()) {
+            Long increment = pendingWindowUpdates.remove(streamId);
+            if (increment != null) increments.put(streamId, increment);
+          }
+          if (increments.isEmpty()) return;
+          try {
+            writer.windowUpdates(increments);
+          } catch (IOException e) {
+            failConnection(e);
+          }
+        }
+      });
     } catch (RejectedExecutionException ignored) {
       // This connection has been closed.
     }
@@ -390,13 +569,16 @@ public final class Http2Connection implements Closeable {
 
     @Override public void execute() {
       boolean failDueToMissingPong;
-      synchronized (Http2Connection.this) {
+      lock.lock();
+      try {
         if (intervalPongsReceived < intervalPingsSent) {
           failDueToMissingPong = true;
         } else {
           intervalPingsSent++;
           failDueToMissingPong = false;
         }
+      } finally {
+        lock.unlock();
       }
       if (failDueToMissingPong) {
         failConnection(null);
@@ -422,19 +604,31 @@ public final class Http2Connection implements Closeable {
 
   /** For testing: sends a ping to be awaited with {@link #awaitPong}. */
   void writePing() {
-    synchronized (this) {
+    lock.lock();
+    try {
       awaitPingsSent++;
+    } finally {
+      lock.unlock();
     }
     writePing(false, AWAIT_PING, 0x4f4b6f6b /* "OKok" */);
   }
 
   /** For testing: awaits a pong. */
-  synchronized void awaitPong() throws InterruptedException {
-    while (awaitPongsReceived < awaitPingsSent) {
-      wait();
+  void awaitPong() throws InterruptedException {
+    lock.lock();
+    try {
+      while (awaitPongsReceived < awaitPingsSent) {
+        condition.await();
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
+  /**
+   * Flushes frames written by all streams. Streams flushing concurrently share one socket write:
+   * see {@link Http2Writer#flush}.
+   */
   public void flush() throws IOException {
     writer.flush();
   }
@@ -445,18 +639,24 @@ public final class Http2Connection implements Closeable {
    * to gracefully stop accepting new requests without harming previously established streams.
    */
   public void shutdown(ErrorCode statusCode) throws IOException {
-    synchronized (writer) {
+    writer.lock.lock();
+    try {
       int lastGoodStreamId;
-      synchronized (this) {
+      lock.lock();
+      try {
         if (shutdown) {
           return;
         }
         shutdown = true;
         lastGoodStreamId = this.lastGoodStreamId;
+      } finally {
+        lock.unlock();
       }
       // TODO: propagate exception message into debugData.
       // TODO: configure a timeout on the reader so that it doesn’t block forever.
       writer.goAway(lastGoodStreamId, statusCode, Util.EMPTY_BYTE_ARRAY);
+    } finally {
+      writer.unlock();
     }
   }
 
@@ -469,18 +669,22 @@ public final class Http2Connection implements Closeable {
   }
 
   void close(ErrorCode connectionCode, ErrorCode streamCode, @Nullable IOException cause) {
-    assert (!Thread.holdsLock(this));
+    assert (!lock.isHeldByCurrentThread());
     try {
       shutdown(connectionCode);
     } catch (IOException ignored) {
     }
 
     Http2Stream[] streamsToClose = null;
-    synchronized (this) {
+    lock.lock();
+    try {
       if (!streams.isEmpty()) {
         streamsToClose = streams.values().toArray(new Http2Stream[streams.size()]);
+        windowTuner.streamsClosed(streams.size());
         streams.clear();
       }
+    } finally {
+      lock.unlock();
     }
 
     if (streamsToClose != null) {
@@ -504,8 +708,13 @@ public final class Http2Connection implements Closeable {
     } catch (IOException ignored) {
     }
 
-    // Release the threads.
-    writerExecutor.shutdown();
+    // Release the threads. A shared event loop outlives this connection; it only stops pinging.
+    if (sharedWriterExecutor) {
+      if (intervalPing != null) intervalPing.cancel(false);
+      pendingWrites.clear();
+    } else {
+      writerExecutor.shutdown();
+    }
     pushExecutor.shutdown();
   }
 
@@ -539,14 +748,20 @@ public final class Http2Connection implements Closeable {
 
   /** Merges {@code settings} into this peer's settings and sends them to the remote peer. */
   public void setSettings(Settings settings) throws IOException {
-    synchronized (writer) {
-      synchronized (this) {
+    writer.lock.lock();
+    try {
+      lock.lock();
+      try {
         if (shutdown) {
           throw new ConnectionShutdownException();
         }
         okHttpSettings.merge(settings);
+      } finally {
+        lock.unlock();
       }
       writer.settings(settings);
+    } finally {
+      writer.unlock();
     }
   }
 
@@ -555,13 +770,20 @@ public final class Http2Connection implements Closeable {
    * @param nowNs
    * @return
    */
-  public synchronized boolean isHealthy(long nowNs) {
-    if (shutdown) return false;
+  public boolean isHealthy(long nowNs) {
+    lock.lock();
+    try {
+      if (shutdown) return false;
 
-    // A degraded pong is overdue.
-    if (degradedPongsReceived < degradedPingsSent && nowNs >= degradedPongDeadlineNs) return false;
+      // A degraded pong is overdue.
+      if (degradedPongsReceived < degradedPingsSent && nowNs >= degradedPongDeadlineNs) {
+        return false;
+      }
 
-    return true;
+      return true;
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
@@ -580,13 +802,16 @@ public final class Http2Connection implements Closeable {
    * <p>The deadline is currently hardcoded. We may make this configurable in the future!
    */
   void sendDegradedPingLater() {
-    synchronized (this) {
+    lock.lock();
+    try {
       if (degradedPongsReceived < degradedPingsSent) return; // Already awaiting a degraded pong.
       degradedPingsSent++;
       degradedPongDeadlineNs = System.nanoTime() + DEGRADED_PONG_TIMEOUT_NS;
+    } finally {
+      lock.unlock();
     }
     try {
-      writerExecutor.execute(new NamedRunnable("OkHttp %s ping", connectionName) {
+      executeWrite(new NamedRunnable("OkHttp %s ping", connectionName) {
         @Override public void execute() {
           writePing(false, DEGRADED_PING, 0);
         }
@@ -605,6 +830,7 @@ public final class Http2Connection implements Closeable {
     PushObserver pushObserver = PushObserver.CANCEL;
     boolean client;
     int pingIntervalMillis;
+    Http2Resources resources = new Http2Resources(Http2Resources.DEFAULT_RECEIVE_MEMORY_LIMIT, 0);
 
     /**
      * @param client true if this peer initiated the connection; false if this peer accepted the
@@ -647,6 +873,12 @@ public final class Http2Connection implements Closeable {
       return this;
     }
 
+    /** Sets the resources this connection shares with others, such as its memory limit. */
+    public Builder resources(Http2Resources resources) {
+      this.resources = resources;
+      return this;
+    }
+
     public Http2Connection build() {
       return new Http2Connection(this);
     }
@@ -697,6 +929,7 @@ public final class Http2Connection implements Closeable {
         source.skip(length);
         return;
       }
+      dataReceived(length);
       dataStream.receiveData(source, length);
       if (inFinished) {
         dataStream.receiveHeaders(Util.EMPTY_HEADERS, true);
@@ -710,7 +943,8 @@ public final class Http2Connection implements Closeable {
         return;
       }
       Http2Stream stream;
-      synchronized (Http2Connection.this) {
+      lock.lock();
+      try {
         stream = getStream(streamId);
 
         if (stream == null) {
@@ -729,6 +963,7 @@ public final class Http2Connection implements Closeable {
               false, inFinished, headers);
           lastGoodStreamId = streamId;
           streams.put(streamId, newStream);
+          windowTuner.streamsOpened(1);
           listenerExecutor.execute(new NamedRunnable(
               "OkHttp %s stream %d", connectionName, streamId) {
             @Override public void execute() {
@@ -746,6 +981,8 @@ public final class Http2Connection implements Closeable {
           });
           return;
         }
+      } finally {
+        lock.unlock();
       }
 
       // Update an existing stream.
@@ -765,7 +1002,7 @@ public final class Http2Connection implements Closeable {
 
     @Override public void settings(boolean clearPrevious, Settings settings) {
       try {
-        writerExecutor.execute(new NamedRunnable("OkHttp %s ACK Settings", connectionName) {
+        executeWrite(new NamedRunnable("OkHttp %s ACK Settings", connectionName) {
           @Override public void execute() {
             applyAndAckSettings(clearPrevious, settings);
           }
@@ -778,8 +1015,10 @@ public final class Http2Connection implements Closeable {
     void applyAndAckSettings(boolean clearPrevious, Settings settings) {
       long delta = 0;
       Http2Stream[] streamsToNotify = null;
-      synchronized (writer) {
-        synchronized (Http2Connection.this) {
+      writer.lock.lock();
+      try {
+        lock.lock();
+        try {
           int priorWriteWindowSize = peerSettings.getInitialWindowSize();
           if (clearPrevious) peerSettings.clear();
           peerSettings.merge(settings);
@@ -790,17 +1029,24 @@ public final class Http2Connection implements Closeable {
                 ? streams.values().toArray(new Http2Stream[streams.size()])
                 : null;
           }
+        } finally {
+          lock.unlock();
         }
         try {
           writer.applyAndAckSettings(peerSettings);
         } catch (IOException e) {
           failConnection(e);
         }
+      } finally {
+        writer.unlock();
       }
       if (streamsToNotify != null) {
         for (Http2Stream stream : streamsToNotify) {
-          synchronized (stream) {
+          stream.lock.lock();
+          try {
             stream.addBytesToWriteWindow(delta);
+          } finally {
+            stream.lock.unlock();
           }
         }
       }
@@ -817,20 +1063,25 @@ public final class Http2Connection implements Closeable {
 
     @Override public void ping(boolean reply, int payload1, int payload2) {
       if (reply) {
-        synchronized (Http2Connection.this) {
+        lock.lock();
+        try {
           if (payload1 == INTERVAL_PING) {
             intervalPongsReceived++;
           } else if (payload1 == DEGRADED_PING) {
             degradedPongsReceived++;
           } else if (payload1 == AWAIT_PING) {
             awaitPongsReceived++;
-            Http2Connection.this.notifyAll();
+            condition.signalAll();
+          } else if (payload1 == BDP_PING) {
+            windowTuner.pingAcknowledged(payload2, System.nanoTime());
           }
+        } finally {
+          lock.unlock();
         }
       } else {
         try {
           // Send a reply to a client ping if this is a server and vice versa.
-          writerExecutor.execute(new PingRunnable(true, payload1, payload2));
+          executeWrite(new PingRunnable(true, payload1, payload2));
         } catch (RejectedExecutionException ignored) {
           // This connection has been closed.
         }
@@ -843,9 +1094,12 @@ public final class Http2Connection implements Closeable {
 
       // Copy the streams first. We don't want to hold a lock when we call receiveRstStream().
       Http2Stream[] streamsCopy;
-      synchronized (Http2Connection.this) {
+      lock.lock();
+      try {
         streamsCopy = streams.values().toArray(new Http2Stream[streams.size()]);
         shutdown = true;
+      } finally {
+        lock.unlock();
       }
 
       // Fail all streams created after the last good stream ID.
@@ -859,15 +1113,21 @@ public final class Http2Connection implements Closeable {
 
     @Override public void windowUpdate(int streamId, long windowSizeIncrement) {
       if (streamId == 0) {
-        synchronized (Http2Connection.this) {
+        lock.lock();
+        try {
           bytesLeftInWriteWindow += windowSizeIncrement;
-          Http2Connection.this.notifyAll();
+          condition.signalAll();
+        } finally {
+          lock.unlock();
         }
       } else {
         Http2Stream stream = getStream(streamId);
         if (stream != null) {
-          synchronized (stream) {
+          stream.lock.lock();
+          try {
             stream.addBytesToWriteWindow(windowSizeIncrement);
+          } finally {
+            stream.lock.unlock();
           }
         }
       }
@@ -894,16 +1154,19 @@ public final class Http2Connection implements Closeable {
     return streamId != 0 && (streamId & 1) == 0;
   }
 
-  // Guarded by this.
+  // Guarded by lock.
   final Set<Integer> currentPushRequests = new LinkedHashSet<>();
 
   void pushRequestLater(final int streamId, final List<Header> requestHeaders) {
-    synchronized (this) {
+    lock.lock();
+    try {
       if (currentPushRequests.contains(streamId)) {
         writeSynResetLater(streamId, ErrorCode.PROTOCOL_ERROR);
         return;
       }
       currentPushRequests.add(streamId);
+    } finally {
+      lock.unlock();
     }
     try {
       pushExecutorExecute(new NamedRunnable(
@@ -913,8 +1176,11 @@ public final class Http2Connection implements Closeable {
           try {
             if (cancel) {
               writer.rstStream(streamId, ErrorCode.CANCEL);
-              synchronized (Http2Connection.this) {
+              lock.lock();
+              try {
                 currentPushRequests.remove(streamId);
+              } finally {
+                lock.unlock();
               }
             }
           } catch (IOException ignored) {
@@ -936,8 +1202,11 @@ public final class Http2Connection implements Closeable {
           try {
             if (cancel) writer.rstStream(streamId, ErrorCode.CANCEL);
             if (cancel || inFinished) {
-              synchronized (Http2Connection.this) {
+              lock.lock();
+              try {
                 currentPushRequests.remove(streamId);
+              } finally {
+                lock.unlock();
               }
             }
           } catch (IOException ignored) {
@@ -965,8 +1234,11 @@ public final class Http2Connection implements Closeable {
           boolean cancel = pushObserver.onData(streamId, buffer, byteCount, inFinished);
           if (cancel) writer.rstStream(streamId, ErrorCode.CANCEL);
           if (cancel || inFinished) {
-            synchronized (Http2Connection.this) {
+            lock.lock();
+            try {
               currentPushRequests.remove(streamId);
+            } finally {
+              lock.unlock();
             }
           }
         } catch (IOException ignored) {
@@ -979,16 +1251,24 @@ public final class Http2Connection implements Closeable {
     pushExecutorExecute(new NamedRunnable("OkHttp %s Push Reset[%s]", connectionName, streamId) {
       @Override public void execute() {
         pushObserver.onReset(streamId, errorCode);
-        synchronized (Http2Connection.this) {
+        lock.lock();
+        try {
           currentPushRequests.remove(streamId);
+        } finally {
+          lock.unlock();
         }
       }
     });
   }
 
-  private synchronized void pushExecutorExecute(NamedRunnable namedRunnable) {
-    if (!shutdown) {
-      pushExecutor.execute(namedRunnable);
+  private void pushExecutorExecute(NamedRunnable namedRunnable) {
+    lock.lock();
+    try {
+      if (!shutdown) {
+        pushExecutor.execute(namedRunnable);
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2019 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.internal.Util;
+
+/**
+ * A fixed set of threads that the HTTP/2 connections of a client share for the frames that the
+ * connection writes itself: pings, window updates and resets. It also runs their ping timers. Each
+ * connection is assigned one loop, so its tasks still run one at a time and in order. Streams
+ * write and flush on the caller's thread, and each connection still has its own reader thread.
+ *
+ * <p>A loop doesn't wait for a stream that is writing to a connection's socket; the connection's
+ * tasks run when that stream is done. A loop's own writes can still block on a socket whose peer
+ * has stopped reading. They time out after {@link #WRITE_TIMEOUT_MILLIS}, which fails the
+ * connection, so one such peer holds up the loop's other connections for at most that long.
+ *
+ * <p>Loop threads exit after a minute without work, and are started again when work arrives.
+ */
+final class Http2EventLoops {
+  /** How long a loop waits on a connection's socket before it fails the connection. */
+  static final long WRITE_TIMEOUT_MILLIS = 10_000L;
+
+  private final ScheduledThreadPoolExecutor[] loops;
+  private final AtomicInteger next = new AtomicInteger();
+
+  Http2EventLoops(int threadCount) {
+    if (threadCount <= 0) throw new IllegalArgumentException("threadCount <= 0: " + threadCount);
+    loops = new ScheduledThreadPoolExecutor[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      ScheduledThreadPoolExecutor loop = new ScheduledThreadPoolExecutor(1,
+          Util.threadFactory(Util.format("OkHttp Http2 Event Loop %d", i + 1), true));
+      loop.setKeepAliveTime(60, TimeUnit.SECONDS);
+      loop.allowCoreThreadTimeOut(true);
+      loop.setRemoveOnCancelPolicy(true);
+      loops[i] = loop;
+    }
+  }
+
+  /** Returns the loop for a new connection. Loops are assigned in turn. */
+  ScheduledExecutorService next() {
+    return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+  }
+}
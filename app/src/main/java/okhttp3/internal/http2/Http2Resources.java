@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2019 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/**
+ * Resources shared by the HTTP/2 connections of one client. Connections opened by other clients
+ * have their own.
+ */
+public final class Http2Resources {
+  /** The default maximum number of bytes to buffer across all streams of a client. */
+  public static final long DEFAULT_RECEIVE_MEMORY_LIMIT = 64L * 1024 * 1024;
+
+  /** The maximum number of bytes to buffer across all streams of these connections. */
+  final long receiveMemoryLimit;
+
+  /** The number of open streams across these connections. */
+  final AtomicInteger openStreams = new AtomicInteger();
+
+  /** The loops that write these connections' frames, or null to give each its own thread. */
+  final @Nullable Http2EventLoops eventLoops;
+
+  /**
+   * @param eventLoopCount the number of threads these connections share to write the frames they
+   *     send themselves. Zero gives each connection its own writer thread.
+   */
+  public Http2Resources(long receiveMemoryLimit, int eventLoopCount) {
+    if (receiveMemoryLimit < WindowTuner.MIN_WINDOW) {
+      throw new IllegalArgumentException("receiveMemoryLimit < " + WindowTuner.MIN_WINDOW);
+    }
+    if (eventLoopCount < 0) {
+      throw new IllegalArgumentException("eventLoopCount < 0: " + eventLoopCount);
+    }
+    this.receiveMemoryLimit = receiveMemoryLimit;
+    this.eventLoops = eventLoopCount > 0 ? new Http2EventLoops(eventLoopCount) : null;
+  }
+}
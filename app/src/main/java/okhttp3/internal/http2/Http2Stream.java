@@ -22,6 +22,8 @@ import java.net.SocketTimeoutException;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.annotation.Nullable;
 import okhttp3.Headers;
 import okhttp3.internal.Util;
@@ -34,9 +36,18 @@ import okio.Timeout;
 
 /** A logical bidirectional stream. */
 public final class Http2Stream {
-  // Internal state is guarded by this. No long-running or potentially
+  // Internal state is guarded by lock. No long-running or potentially
   // blocking operations are performed while the lock is held.
 
+  /**
+   * Guards this stream's state. This is a lock rather than a monitor so that virtual threads
+   * waiting for stream I/O don't pin their carrier threads.
+   */
+  final ReentrantLock lock = new ReentrantLock();
+
+  /** Signalled when data, headers, window updates or errors arrive for this stream. */
+  private final Condition condition = lock.newCondition();
+
   /**
    * The total number of bytes consumed by the application (with {@link FramingSource#read}), but
    * not yet acknowledged by sending a {@code WINDOW_UPDATE} frame on this stream.
@@ -44,12 +55,18 @@ public final class Http2Stream {
   // Visible for testing
   long unacknowledgedBytesRead = 0;
 
+  /**
+   * The size of this stream's receive window when the last {@code WINDOW_UPDATE} frame was sent.
+   * The window has since shrunk by {@link #unacknowledgedBytesRead}.
+   */
+  long receiveWindowSize;
+
   /**
    * Count of bytes that can be written on the stream before receiving a window update. Even if this
    * is positive, writes will block until there available bytes in {@code
    * connection.bytesLeftInWriteWindow}.
    */
-  // guarded by this
+  // guarded by lock
   long bytesLeftInWriteWindow;
 
   final int id;
@@ -87,7 +104,8 @@ public final class Http2Stream {
     this.connection = connection;
     this.bytesLeftInWriteWindow =
         connection.peerSettings.getInitialWindowSize();
-    this.source = new FramingSource(connection.okHttpSettings.getInitialWindowSize());
+    this.receiveWindowSize = connection.okHttpSettings.getInitialWindowSize();
+    this.source = new FramingSource(receiveWindowSize);
     this.sink = new FramingSink();
     this.source.finished = inFinished;
     this.sink.finished = outFinished;
@@ -117,16 +135,21 @@ public final class Http2Stream {
    * <p>Note that the input stream may continue to yield data even after a stream reports itself as
    * not open. This is because input data is buffered.
    */
-  public synchronized boolean isOpen() {
-    if (errorCode != null) {
-      return false;
-    }
-    if ((source.finished || source.closed)
-        && (sink.finished || sink.closed)
-        && hasResponseHeaders) {
-      return false;
+  public boolean isOpen() {
+    lock.lock();
+    try {
+      if (errorCode != null) {
+        return false;
+      }
+      if ((source.finished || source.closed)
+          && (sink.finished || sink.closed)
+          && hasResponseHeaders) {
+        return false;
+      }
+      return true;
+    } finally {
+      lock.unlock();
     }
-    return true;
   }
 
   /** Returns true if this stream was created by this peer. */
@@ -144,41 +167,56 @@ public final class Http2Stream {
    * have been received. If the returned list contains multiple blocks of headers the blocks will be
    * delimited by 'null'.
    */
-  public synchronized Headers takeHeaders() throws IOException {
-    readTimeout.enter();
+  public Headers takeHeaders() throws IOException {
+    lock.lock();
     try {
-      while (headersQueue.isEmpty() && errorCode == null) {
-        waitForIo();
+      readTimeout.enter();
+      try {
+        while (headersQueue.isEmpty() && errorCode == null) {
+          waitForIo();
+        }
+      } finally {
+        readTimeout.exitAndThrowIfTimedOut();
+      }
+      if (!headersQueue.isEmpty()) {
+        return headersQueue.removeFirst();
       }
+      throw errorException != null ? errorException : new StreamResetException(errorCode);
     } finally {
-      readTimeout.exitAndThrowIfTimedOut();
-    }
-    if (!headersQueue.isEmpty()) {
-      return headersQueue.removeFirst();
+      lock.unlock();
     }
-    throw errorException != null ? errorException : new StreamResetException(errorCode);
   }
 
   /**
    * Returns the trailers. It is only safe to call this once the source stream has been completely
    * exhausted.
    */
-  public synchronized Headers trailers() throws IOException {
-    if (errorCode != null) {
-      throw errorException != null ? errorException : new StreamResetException(errorCode);
-    }
-    if (!source.finished || !source.receiveBuffer.exhausted() || !source.readBuffer.exhausted()) {
-      throw new IllegalStateException("too early; can't read the trailers yet");
+  public Headers trailers() throws IOException {
+    lock.lock();
+    try {
+      if (errorCode != null) {
+        throw errorException != null ? errorException : new StreamResetException(errorCode);
+      }
+      if (!source.finished || !source.receiveBuffer.exhausted() || !source.readBuffer.exhausted()) {
+        throw new IllegalStateException("too early; can't read the trailers yet");
+      }
+      return source.trailers != null ? source.trailers : Util.EMPTY_HEADERS;
+    } finally {
+      lock.unlock();
     }
-    return source.trailers != null ? source.trailers : Util.EMPTY_HEADERS;
   }
 
   /**
    * Returns the reason why this stream was closed, or null if it closed normally or has not yet
    * been closed.
    */
-  public synchronized ErrorCode getErrorCode() {
-    return errorCode;
+  public ErrorCode getErrorCode() {
+    lock.lock();
+    try {
+      return errorCode;
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
@@ -191,22 +229,28 @@ public final class Http2Stream {
    */
   public void writeHeaders(List<Header> responseHeaders, boolean outFinished, boolean flushHeaders)
       throws IOException {
-    assert (!Thread.holdsLock(Http2Stream.this));
+    assert (!lock.isHeldByCurrentThread());
     if (responseHeaders == null) {
       throw new NullPointerException("headers == null");
     }
-    synchronized (this) {
+    lock.lock();
+    try {
       this.hasResponseHeaders = true;
       if (outFinished) {
         this.sink.finished = true;
       }
+    } finally {
+      lock.unlock();
     }
 
     // Only DATA frames are subject to flow-control. Transmit the HEADER frame if the connection
     // flow-control window is fully depleted.
     if (!flushHeaders) {
-      synchronized (connection) {
+      connection.lock.lock();
+      try {
         flushHeaders = connection.bytesLeftInWriteWindow == 0L;
+      } finally {
+        connection.lock.unlock();
       }
     }
 
@@ -218,10 +262,13 @@ public final class Http2Stream {
   }
 
   public void enqueueTrailers(Headers trailers) {
-    synchronized (this) {
+    lock.lock();
+    try {
       if (sink.finished) throw new IllegalStateException("already finished");
       if (trailers.size() == 0) throw new IllegalArgumentException("trailers.size() == 0");
       this.sink.trailers = trailers;
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -245,10 +292,13 @@ public final class Http2Stream {
    *     #writeHeaders} has not yet been sent.
    */
   public Sink getSink() {
-    synchronized (this) {
+    lock.lock();
+    try {
       if (!hasResponseHeaders && !isLocallyInitiated()) {
         throw new IllegalStateException("reply before requesting the sink");
       }
+    } finally {
+      lock.unlock();
     }
     return sink;
   }
@@ -278,8 +328,9 @@ public final class Http2Stream {
 
   /** Returns true if this stream was closed. */
   private boolean closeInternal(ErrorCode errorCode, @Nullable IOException errorException) {
-    assert (!Thread.holdsLock(this));
-    synchronized (this) {
+    assert (!lock.isHeldByCurrentThread());
+    lock.lock();
+    try {
       if (this.errorCode != null) {
         return false;
       }
@@ -288,14 +339,16 @@ public final class Http2Stream {
       }
       this.errorCode = errorCode;
       this.errorException = errorException;
-      notifyAll();
+      condition.signalAll();
+    } finally {
+      lock.unlock();
     }
     connection.removeStream(id);
     return true;
   }
 
   void receiveData(BufferedSource in, int length) throws IOException {
-    assert (!Thread.holdsLock(Http2Stream.this));
+    assert (!lock.isHeldByCurrentThread());
     this.source.receive(in, length);
   }
 
@@ -304,9 +357,10 @@ public final class Http2Stream {
    * {@link FramingSource#read} them.
    */
   void receiveHeaders(Headers headers, boolean inFinished) {
-    assert (!Thread.holdsLock(Http2Stream.this));
+    assert (!lock.isHeldByCurrentThread());
     boolean open;
-    synchronized (this) {
+    lock.lock();
+    try {
       if (!hasResponseHeaders || !inFinished) {
         hasResponseHeaders = true;
         headersQueue.add(headers);
@@ -317,38 +371,48 @@ public final class Http2Stream {
         this.source.finished = true;
       }
       open = isOpen();
-      notifyAll();
+      condition.signalAll();
+    } finally {
+      lock.unlock();
     }
     if (!open) {
       connection.removeStream(id);
     }
   }
 
-  synchronized void receiveRstStream(ErrorCode errorCode) {
-    if (this.errorCode == null) {
-      this.errorCode = errorCode;
-      notifyAll();
+  void receiveRstStream(ErrorCode errorCode) {
+    lock.lock();
+    try {
+      if (this.errorCode == null) {
+        this.errorCode = errorCode;
+        condition.signalAll();
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
   /**
    * A source that reads the incoming data frames of a stream. Although this class uses
-   * synchronization to safely receive incoming data frames, it is not intended for use by multiple
+   * locking to safely receive incoming data frames, it is not intended for use by multiple
    * readers.
    */
   private final class FramingSource implements Source {
     /** Buffer to receive data from the network into. Only accessed by the reader thread. */
     private final Buffer receiveBuffer = new Buffer();
 
-    /** Buffer with readable data. Guarded by Http2Stream.this. */
+    /** Buffer with readable data. Guarded by lock. */
     private final Buffer readBuffer = new Buffer();
 
-    /** Maximum number of bytes to buffer before reporting a flow control error. */
-    private final long maxByteCount;
+    /**
+     * Maximum number of bytes to buffer before reporting a flow control error. This is the largest
+     * window granted to the peer. Guarded by lock.
+     */
+    long maxByteCount;
 
     /**
      * Received trailers. Null unless the server has provided trailers. Undefined until the stream
-     * is exhausted. Guarded by Http2Stream.this.
+     * is exhausted. Guarded by lock.
      */
     private Headers trailers;
 
@@ -372,9 +436,10 @@ public final class Http2Stream {
         long readBytesDelivered = -1;
         IOException errorExceptionToDeliver = null;
 
-        // 1. Decide what to do in a synchronized block.
+        // 1. Decide what to do while holding the lock.
 
-        synchronized (Http2Stream.this) {
+        lock.lock();
+        try {
           readTimeout.enter();
           try {
             if (errorCode != null) {
@@ -392,13 +457,10 @@ public final class Http2Stream {
               readBytesDelivered = readBuffer.read(sink, Math.min(byteCount, readBuffer.size()));
               unacknowledgedBytesRead += readBytesDelivered;
 
-              if (errorExceptionToDeliver == null
-                  && unacknowledgedBytesRead
-                  >= connection.okHttpSettings.getInitialWindowSize() / 2) {
+              if (errorExceptionToDeliver == null) {
                 // Flow control: notify the peer that we're ready for more data! Only send a
                 // WINDOW_UPDATE if the stream isn't in error.
-                connection.writeWindowUpdateLater(id, unacknowledgedBytesRead);
-                unacknowledgedBytesRead = 0;
+                updateStreamFlowControl();
               }
             } else if (!finished && errorExceptionToDeliver == null) {
               // Nothing to do. Wait until that changes then try again.
@@ -408,12 +470,14 @@ public final class Http2Stream {
           } finally {
             readTimeout.exitAndThrowIfTimedOut();
           }
+        } finally {
+          lock.unlock();
         }
 
-        // 2. Do it outside of the synchronized block and timeout.
+        // 2. Do it outside of the lock and timeout.
 
         if (readBytesDelivered != -1) {
-          // Update connection.unacknowledgedBytesRead outside the synchronized block.
+          // Update connection.unacknowledgedBytesRead outside the lock.
           updateConnectionFlowControl(readBytesDelivered);
           return readBytesDelivered;
         }
@@ -430,8 +494,25 @@ public final class Http2Stream {
       }
     }
 
+    /** Sends a window update that resizes this stream's window to the tuner's target. */
+    private void updateStreamFlowControl() {
+      assert (lock.isHeldByCurrentThread());
+      long target = connection.windowTuner.streamWindow();
+      if (unacknowledgedBytesRead < Math.min(receiveWindowSize, target) / 2) return;
+
+      long increment = unacknowledgedBytesRead + target - receiveWindowSize;
+      if (increment > 0) {
+        connection.writeWindowUpdateLater(id, increment);
+        receiveWindowSize = target;
+        maxByteCount = Math.max(maxByteCount, target);
+      } else {
+        receiveWindowSize -= unacknowledgedBytesRead; // Shrink by withholding the update.
+      }
+      unacknowledgedBytesRead = 0;
+    }
+
     private void updateConnectionFlowControl(long read) {
-      assert (!Thread.holdsLock(Http2Stream.this));
+      assert (!lock.isHeldByCurrentThread());
       connection.updateConnectionFlowControl(read);
     }
 
@@ -440,14 +521,17 @@ public final class Http2Stream {
      * performs blocking reads for the incoming bytes.
      */
     void receive(BufferedSource in, long byteCount) throws IOException {
-      assert (!Thread.holdsLock(Http2Stream.this));
+      assert (!lock.isHeldByCurrentThread());
 
       while (byteCount > 0) {
         boolean finished;
         boolean flowControlError;
-        synchronized (Http2Stream.this) {
+        lock.lock();
+        try {
           finished = this.finished;
           flowControlError = byteCount + readBuffer.size() > maxByteCount;
+        } finally {
+          lock.unlock();
         }
 
         // If the peer sends more data than we can handle, discard it and close the connection.
@@ -472,7 +556,8 @@ public final class Http2Stream {
         // been closed since this read began we must discard the incoming data and tell the
         // connection we've done so.
         long bytesDiscarded = 0L;
-        synchronized (Http2Stream.this) {
+        lock.lock();
+        try {
           if (closed) {
             bytesDiscarded = receiveBuffer.size();
             receiveBuffer.clear();
@@ -480,9 +565,11 @@ public final class Http2Stream {
             boolean wasEmpty = readBuffer.size() == 0;
             readBuffer.writeAll(receiveBuffer);
             if (wasEmpty) {
-              Http2Stream.this.notifyAll();
+              condition.signalAll();
             }
           }
+        } finally {
+          lock.unlock();
         }
         if (bytesDiscarded > 0L) {
           updateConnectionFlowControl(bytesDiscarded);
@@ -496,11 +583,14 @@ public final class Http2Stream {
 
     @Override public void close() throws IOException {
       long bytesDiscarded;
-      synchronized (Http2Stream.this) {
+      lock.lock();
+      try {
         closed = true;
         bytesDiscarded = readBuffer.size();
         readBuffer.clear();
-        Http2Stream.this.notifyAll(); // TODO(jwilson): Unnecessary?
+        condition.signalAll(); // TODO(jwilson): Unnecessary?
+      } finally {
+        lock.unlock();
       }
       if (bytesDiscarded > 0) {
         updateConnectionFlowControl(bytesDiscarded);
@@ -510,12 +600,15 @@ public final class Http2Stream {
   }
 
   void cancelStreamIfNecessary() throws IOException {
-    assert (!Thread.holdsLock(Http2Stream.this));
+    assert (!lock.isHeldByCurrentThread());
     boolean open;
     boolean cancel;
-    synchronized (this) {
+    lock.lock();
+    try {
       cancel = !source.finished && source.closed && (sink.finished || sink.closed);
       open = isOpen();
+    } finally {
+      lock.unlock();
     }
     if (cancel) {
       // RST this stream to prevent additional data from being sent. This
@@ -549,7 +642,7 @@ public final class Http2Stream {
     boolean finished;
 
     @Override public void write(Buffer source, long byteCount) throws IOException {
-      assert (!Thread.holdsLock(Http2Stream.this));
+      assert (!lock.isHeldByCurrentThread());
       sendBuffer.write(source, byteCount);
       while (sendBuffer.size() >= EMIT_BUFFER_SIZE) {
         emitFrame(false);
@@ -562,7 +655,8 @@ public final class Http2Stream {
      */
     private void emitFrame(boolean outFinishedOnLastFrame) throws IOException {
       long toWrite;
-      synchronized (Http2Stream.this) {
+      lock.lock();
+      try {
         writeTimeout.enter();
         try {
           while (bytesLeftInWriteWindow <= 0 && !finished && !closed && errorCode == null) {
@@ -575,6 +669,8 @@ public final class Http2Stream {
         checkOutNotClosed(); // Kick out if the stream was reset or closed while waiting.
         toWrite = Math.min(bytesLeftInWriteWindow, sendBuffer.size());
         bytesLeftInWriteWindow -= toWrite;
+      } finally {
+        lock.unlock();
       }
 
       writeTimeout.enter();
@@ -587,13 +683,21 @@ public final class Http2Stream {
     }
 
     @Override public void flush() throws IOException {
-      assert (!Thread.holdsLock(Http2Stream.this));
-      synchronized (Http2Stream.this) {
+      assert (!lock.isHeldByCurrentThread());
+      lock.lock();
+      try {
         checkOutNotClosed();
+      } finally {
+        lock.unlock();
       }
       while (sendBuffer.size() > 0) {
         emitFrame(false);
-        connection.flush();
+        writeTimeout.enter();
+        try {
+          connection.flush();
+        } finally {
+          writeTimeout.exitAndThrowIfTimedOut();
+        }
       }
     }
 
@@ -602,9 +706,12 @@ public final class Http2Stream {
     }
 
     @Override public void close() throws IOException {
-      assert (!Thread.holdsLock(Http2Stream.this));
-      synchronized (Http2Stream.this) {
+      assert (!lock.isHeldByCurrentThread());
+      lock.lock();
+      try {
         if (closed) return;
+      } finally {
+        lock.unlock();
       }
       if (!sink.finished) {
         // We have 0 or more frames of data, and 0 or more frames of trailers. We need to send at
@@ -625,8 +732,11 @@ public final class Http2Stream {
           connection.writeData(id, true, null, 0);
         }
       }
-      synchronized (Http2Stream.this) {
+      lock.lock();
+      try {
         closed = true;
+      } finally {
+        lock.unlock();
       }
       connection.flush();
       cancelStreamIfNecessary();
@@ -637,8 +747,9 @@ public final class Http2Stream {
    * {@code delta} will be negative if a settings frame initial window is smaller than the last.
    */
   void addBytesToWriteWindow(long delta) {
+    assert (lock.isHeldByCurrentThread());
     bytesLeftInWriteWindow += delta;
-    if (delta > 0) Http2Stream.this.notifyAll();
+    if (delta > 0) condition.signalAll();
   }
 
   void checkOutNotClosed() throws IOException {
@@ -652,12 +763,12 @@ public final class Http2Stream {
   }
 
   /**
-   * Like {@link #wait}, but throws an {@code InterruptedIOException} when interrupted instead of
-   * the more awkward {@link InterruptedException}.
+   * Like {@link Condition#await}, but throws an {@code InterruptedIOException} when interrupted
+   * instead of the more awkward {@link InterruptedException}.
    */
   void waitForIo() throws InterruptedIOException {
     try {
-      wait();
+      condition.await();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt(); // Retain interrupted status.
       throw new InterruptedIOException();
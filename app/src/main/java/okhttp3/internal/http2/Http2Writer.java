@@ -17,10 +17,17 @@ package okhttp3.internal.http2;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 import okio.Buffer;
 import okio.BufferedSink;
+import okio.Timeout;
 
 import static java.util.logging.Level.FINE;
 import static okhttp3.internal.Util.format;
@@ -42,7 +49,17 @@ import static okhttp3.internal.http2.Http2.TYPE_WINDOW_UPDATE;
 import static okhttp3.internal.http2.Http2.frameLog;
 import static okhttp3.internal.http2.Http2.illegalArgument;
 
-/** Writes HTTP/2 transport frames. */
+/**
+ * Writes HTTP/2 transport frames.
+ *
+ * <p>Frames from concurrent writers are batched. A writer that would flush leaves the flush to the
+ * next writer if one is waiting for the lock, so a burst of small frames from many streams costs
+ * one flush instead of one per frame. The last writer of a burst always flushes, so no frame is
+ * left in the buffer. Frames are written in the order the lock is acquired.
+ *
+ * <p>{@link #flush} doesn't return until its frames have been flushed, either by the caller or by
+ * the writer it handed the flush to. It throws if that flush fails.
+ */
 final class Http2Writer implements Closeable {
   private static final Logger logger = Logger.getLogger(Http2.class.getName());
 
@@ -54,6 +71,31 @@ final class Http2Writer implements Closeable {
 
   final Hpack.Writer hpackWriter;
 
+  /**
+   * Guards socket writes. This is a lock rather than a monitor so that virtual threads blocked in
+   * a socket write don't pin their carrier threads.
+   */
+  final ReentrantLock lock = new ReentrantLock();
+
+  /** The number of threads waiting in {@link #acquire}. */
+  private final AtomicInteger waitingWriters = new AtomicInteger();
+
+  /** True if frames that must be flushed have been written but not flushed. Guarded by lock. */
+  private boolean flushPending;
+
+  /** Signalled when a flush completes or fails. */
+  private final Condition flushed = lock.newCondition();
+
+  /** Counts calls to {@link #flush}, and how many of them have been flushed. Guarded by lock. */
+  private long flushRequests;
+  private long flushesCompleted;
+
+  /** The failure of the last socket flush. Later calls to {@link #flush} throw it. */
+  private @Nullable IOException flushFailure;
+
+  /** Runs each time a thread stops holding the lock, if non-null. Set before the writer is used. */
+  @Nullable Runnable unlockListener;
+
   Http2Writer(BufferedSink sink, boolean client) {
     this.sink = sink;
     this.client = client;
@@ -62,29 +104,39 @@ final class Http2Writer implements Closeable {
     this.maxFrameSize = INITIAL_MAX_FRAME_SIZE;
   }
 
-  public synchronized void connectionPreface() throws IOException {
-    if (closed) throw new IOException("closed");
-    if (!client) return; // Nothing to write; servers don't send connection headers!
-    if (logger.isLoggable(FINE)) {
-      logger.fine(format(">> CONNECTION %s", CONNECTION_PREFACE.hex()));
+  public void connectionPreface() throws IOException {
+    acquire();
+    try {
+      if (closed) throw new IOException("closed");
+      if (!client) return; // Nothing to write; servers don't send connection headers!
+      if (logger.isLoggable(FINE)) {
+        logger.fine(format(">> CONNECTION %s", CONNECTION_PREFACE.hex()));
+      }
+      sink.write(CONNECTION_PREFACE.toByteArray());
+      flushPending = true;
+    } finally {
+      release();
     }
-    sink.write(CONNECTION_PREFACE.toByteArray());
-    sink.flush();
   }
 
   /** Applies {@code peerSettings} and then sends a settings ACK. */
-  public synchronized void applyAndAckSettings(Settings peerSettings) throws IOException {
-    if (closed) throw new IOException("closed");
-    this.maxFrameSize = peerSettings.getMaxFrameSize(maxFrameSize);
-    if (peerSettings.getHeaderTableSize() != -1) {
-      hpackWriter.setHeaderTableSizeSetting(peerSettings.getHeaderTableSize());
+  public void applyAndAckSettings(Settings peerSettings) throws IOException {
+    acquire();
+    try {
+      if (closed) throw new IOException("closed");
+      this.maxFrameSize = peerSettings.getMaxFrameSize(maxFrameSize);
+      if (peerSettings.getHeaderTableSize() != -1) {
+        hpackWriter.setHeaderTableSizeSetting(peerSettings.getHeaderTableSize());
+      }
+      int length = 0;
+      byte type = TYPE_SETTINGS;
+      byte flags = FLAG_ACK;
+      int streamId = 0;
+      frameHeader(streamId, length, type, flags);
+      flushPending = true;
+    } finally {
+      release();
     }
-    int length = 0;
-    byte type = TYPE_SETTINGS;
-    byte flags = FLAG_ACK;
-    int streamId = 0;
-    frameHeader(streamId, length, type, flags);
-    sink.flush();
   }
 
   /**
@@ -100,38 +152,68 @@ final class Http2Writer implements Closeable {
    * @param requestHeaders minimally includes {@code :method}, {@code :scheme}, {@code :authority},
    * and {@code :path}.
    */
-  public synchronized void pushPromise(int streamId, int promisedStreamId,
+  public void pushPromise(int streamId, int promisedStreamId,
       List<Header> requestHeaders) throws IOException {
-    if (closed) throw new IOException("closed");
-    hpackWriter.writeHeaders(requestHeaders);
-
-    long byteCount = hpackBuffer.size();
-    int length = (int) Math.min(maxFrameSize - 4, byteCount);
-    byte type = TYPE_PUSH_PROMISE;
-    byte flags = byteCount == length ? FLAG_END_HEADERS : 0;
-    frameHeader(streamId, length + 4, type, flags);
-    sink.writeInt(promisedStreamId & 0x7fffffff);
-    sink.write(hpackBuffer, length);
-
-    if (byteCount > length) writeContinuationFrames(streamId, byteCount - length);
+    acquire();
+    try {
+      if (closed) throw new IOException("closed");
+      hpackWriter.writeHeaders(requestHeaders);
+
+      long byteCount = hpackBuffer.size();
+      int length = (int) Math.min(maxFrameSize - 4, byteCount);
+      byte type = TYPE_PUSH_PROMISE;
+      byte flags = byteCount == length ? FLAG_END_HEADERS : 0;
+      frameHeader(streamId, length + 4, type, flags);
+      sink.writeInt(promisedStreamId & 0x7fffffff);
+      sink.write(hpackBuffer, length);
+
+      if (byteCount > length) writeContinuationFrames(streamId, byteCount - length);
+    } finally {
+      release();
+    }
   }
 
-  public synchronized void flush() throws IOException {
-    if (closed) throw new IOException("closed");
-    sink.flush();
+  /**
+   * Flushes written frames. If another writer is waiting for the lock this waits for that writer
+   * to flush them along with its own frames.
+   */
+  public void flush() throws IOException {
+    acquire();
+    try {
+      if (closed) throw new IOException("closed");
+      flushPending = true;
+      long request = ++flushRequests;
+      while (waitingWriters.get() > 0 && flushesCompleted < request) {
+        try {
+          flushed.await(); // Releases the lock to the waiting writer.
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt(); // Retain interrupted status.
+          throw new InterruptedIOException();
+        }
+        if (flushFailure != null) throw new IOException("flush failed", flushFailure);
+        if (closed) throw new IOException("closed");
+      }
+    } finally {
+      release();
+    }
   }
 
-  public synchronized void rstStream(int streamId, ErrorCode errorCode)
+  public void rstStream(int streamId, ErrorCode errorCode)
       throws IOException {
-    if (closed) throw new IOException("closed");
-    if (errorCode.httpCode == -1) throw new IllegalArgumentException();
+    acquire();
+    try {
+      if (closed) throw new IOException("closed");
+      if (errorCode.httpCode == -1) throw new IllegalArgumentException();
 
-    int length = 4;
-    byte type = TYPE_RST_STREAM;
-    byte flags = FLAG_NONE;
-    frameHeader(streamId, length, type, flags);
-    sink.writeInt(errorCode.httpCode);
-    sink.flush();
+      int length = 4;
+      byte type = TYPE_RST_STREAM;
+      byte flags = FLAG_NONE;
+      frameHeader(streamId, length, type, flags);
+      sink.writeInt(errorCode.httpCode);
+      flushPending = true;
+    } finally {
+      release();
+    }
   }
 
   /** The maximum size of bytes that may be sent in a single call to {@link #data}. */
@@ -147,12 +229,17 @@ final class Http2Writer implements Closeable {
    * @param byteCount must be between 0 and the minimum of {@code source.length} and {@link
    * #maxDataLength}.
    */
-  public synchronized void data(boolean outFinished, int streamId, Buffer source, int byteCount)
+  public void data(boolean outFinished, int streamId, Buffer source, int byteCount)
       throws IOException {
-    if (closed) throw new IOException("closed");
-    byte flags = FLAG_NONE;
-    if (outFinished) flags |= FLAG_END_STREAM;
-    dataFrame(streamId, flags, source, byteCount);
+    acquire();
+    try {
+      if (closed) throw new IOException("closed");
+      byte flags = FLAG_NONE;
+      if (outFinished) flags |= FLAG_END_STREAM;
+      dataFrame(streamId, flags, source, byteCount);
+    } finally {
+      release();
+    }
   }
 
   void dataFrame(int streamId, byte flags, Buffer buffer, int byteCount) throws IOException {
@@ -164,41 +251,51 @@ final class Http2Writer implements Closeable {
   }
 
   /** Write okhttp's settings to the peer. */
-  public synchronized void settings(Settings settings) throws IOException {
-    if (closed) throw new IOException("closed");
-    int length = settings.size() * 6;
-    byte type = TYPE_SETTINGS;
-    byte flags = FLAG_NONE;
-    int streamId = 0;
-    frameHeader(streamId, length, type, flags);
-    for (int i = 0; i < Settings.COUNT; i++) {
-      if (!settings.isSet(i)) continue;
-      int id = i;
-      if (id == 4) {
-        id = 3; // SETTINGS_MAX_CONCURRENT_STREAMS renumbered.
-      } else if (id == 7) {
-        id = 4; // SETTINGS_INITIAL_WINDOW_SIZE renumbered.
+  public void settings(Settings settings) throws IOException {
+    acquire();
+    try {
+      if (closed) throw new IOException("closed");
+      int length = settings.size() * 6;
+      byte type = TYPE_SETTINGS;
+      byte flags = FLAG_NONE;
+      int streamId = 0;
+      frameHeader(streamId, length, type, flags);
+      for (int i = 0; i < Settings.COUNT; i++) {
+        if (!settings.isSet(i)) continue;
+        int id = i;
+        if (id == 4) {
+          id = 3; // SETTINGS_MAX_CONCURRENT_STREAMS renumbered.
+        } else if (id == 7) {
+          id = 4; // SETTINGS_INITIAL_WINDOW_SIZE renumbered.
+        }
+        sink.writeShort(id);
+        sink.writeInt(settings.get(i));
       }
-      sink.writeShort(id);
-      sink.writeInt(settings.get(i));
+      flushPending = true;
+    } finally {
+      release();
     }
-    sink.flush();
   }
 
   /**
    * Send a connection-level ping to the peer. {@code ack} indicates this is a reply. The data in
    * {@code payload1} and {@code payload2} opaque binary, and there are no rules on the content.
    */
-  public synchronized void ping(boolean ack, int payload1, int payload2) throws IOException {
-    if (closed) throw new IOException("closed");
-    int length = 8;
-    byte type = TYPE_PING;
-    byte flags = ack ? FLAG_ACK : FLAG_NONE;
-    int streamId = 0;
-    frameHeader(streamId, length, type, flags);
-    sink.writeInt(payload1);
-    sink.writeInt(payload2);
-    sink.flush();
+  public void ping(boolean ack, int payload1, int payload2) throws IOException {
+    acquire();
+    try {
+      if (closed) throw new IOException("closed");
+      int length = 8;
+      byte type = TYPE_PING;
+      byte flags = ack ? FLAG_ACK : FLAG_NONE;
+      int streamId = 0;
+      frameHeader(streamId, length, type, flags);
+      sink.writeInt(payload1);
+      sink.writeInt(payload2);
+      flushPending = true;
+    } finally {
+      release();
+    }
   }
 
   /**
@@ -209,29 +306,58 @@ final class Http2Writer implements Closeable {
    * @param errorCode reason for closing the connection.
    * @param debugData only valid for HTTP/2; opaque debug data to send.
    */
-  public synchronized void goAway(int lastGoodStreamId, ErrorCode errorCode, byte[] debugData)
+  public void goAway(int lastGoodStreamId, ErrorCode errorCode, byte[] debugData)
       throws IOException {
-    if (closed) throw new IOException("closed");
-    if (errorCode.httpCode == -1) throw illegalArgument("errorCode.httpCode == -1");
-    int length = 8 + debugData.length;
-    byte type = TYPE_GOAWAY;
-    byte flags = FLAG_NONE;
-    int streamId = 0;
-    frameHeader(streamId, length, type, flags);
-    sink.writeInt(lastGoodStreamId);
-    sink.writeInt(errorCode.httpCode);
-    if (debugData.length > 0) {
-      sink.write(debugData);
+    acquire();
+    try {
+      if (closed) throw new IOException("closed");
+      if (errorCode.httpCode == -1) throw illegalArgument("errorCode.httpCode == -1");
+      int length = 8 + debugData.length;
+      byte type = TYPE_GOAWAY;
+      byte flags = FLAG_NONE;
+      int streamId = 0;
+      frameHeader(streamId, length, type, flags);
+      sink.writeInt(lastGoodStreamId);
+      sink.writeInt(errorCode.httpCode);
+      if (debugData.length > 0) {
+        sink.write(debugData);
+      }
+      flushPending = true;
+    } finally {
+      release();
     }
-    sink.flush();
   }
 
   /**
    * Inform peer that an additional {@code windowSizeIncrement} bytes can be sent on {@code
    * streamId}, or the connection if {@code streamId} is zero.
    */
-  public synchronized void windowUpdate(int streamId, long windowSizeIncrement) throws IOException {
-    if (closed) throw new IOException("closed");
+  public void windowUpdate(int streamId, long windowSizeIncrement) throws IOException {
+    acquire();
+    try {
+      if (closed) throw new IOException("closed");
+      windowUpdateFrame(streamId, windowSizeIncrement);
+      flushPending = true;
+    } finally {
+      release();
+    }
+  }
+
+  /** Sends a window update for each stream ID in {@code increments}, and flushes once. */
+  public void windowUpdates(Map<Integer, Long> increments) throws IOException {
+    acquire();
+    try {
+      if (closed) throw new IOException("closed");
+      for (Map.Entry<Integer, Long> entry : increments.entrySet()) {
+        windowUpdateFrame(entry.getKey(), entry.getValue());
+      }
+      flushPending = true;
+    } finally {
+      release();
+    }
+  }
+
+  private void windowUpdateFrame(int streamId, long windowSizeIncrement) throws IOException {
     if (windowSizeIncrement == 0 || windowSizeIncrement > 0x7fffffffL) {
       throw illegalArgument("windowSizeIncrement == 0 || windowSizeIncrement > 0x7fffffffL: %s",
           windowSizeIncrement);
@@ -241,7 +367,6 @@ final class Http2Writer implements Closeable {
     byte flags = FLAG_NONE;
     frameHeader(streamId, length, type, flags);
     sink.writeInt((int) windowSizeIncrement);
-    sink.flush();
   }
 
   public void frameHeader(int streamId, int length, byte type, byte flags) throws IOException {
@@ -256,9 +381,54 @@ final class Http2Writer implements Closeable {
     sink.writeInt(streamId & 0x7fffffff);
   }
 
-  @Override public synchronized void close() throws IOException {
-    closed = true;
-    sink.close();
+  @Override public void close() throws IOException {
+    acquire();
+    try {
+      closed = true;
+      flushed.signalAll();
+      sink.close();
+    } finally {
+      release();
+    }
+  }
+
+  /** The timeout of the socket's sink. Only change it while holding the lock. */
+  Timeout timeout() {
+    return sink.timeout();
+  }
+
+  /** Releases a hold on the lock, and notifies the listener if this thread no longer holds it. */
+  void unlock() {
+    lock.unlock();
+    Runnable unlockListener = this.unlockListener;
+    if (unlockListener != null && !lock.isHeldByCurrentThread()) unlockListener.run();
+  }
+
+  private void acquire() {
+    waitingWriters.incrementAndGet();
+    lock.lock();
+    waitingWriters.decrementAndGet();
+  }
+
+  /** Releases the lock, flushing first unless another writer is waiting to flush for us. */
+  private void release() throws IOException {
+    try {
+      if (flushPending && !closed && waitingWriters.get() == 0) {
+        flushPending = false;
+        long requests = flushRequests;
+        try {
+          sink.flush();
+          flushesCompleted = requests;
+        } catch (IOException e) {
+          flushFailure = e;
+          throw e;
+        } finally {
+          flushed.signalAll();
+        }
+      }
+    } finally {
+      unlock();
+    }
   }
 
   private static void writeMedium(BufferedSink sink, int i) throws IOException {
@@ -276,19 +446,24 @@ final class Http2Writer implements Closeable {
     }
   }
 
-  public synchronized void headers(
+  public void headers(
       boolean outFinished, int streamId, List<Header> headerBlock) throws IOException {
-    if (closed) throw new IOException("closed");
-    hpackWriter.writeHeaders(headerBlock);
-
-    long byteCount = hpackBuffer.size();
-    int length = (int) Math.min(maxFrameSize, byteCount);
-    byte type = TYPE_HEADERS;
-    byte flags = byteCount == length ? FLAG_END_HEADERS : 0;
-    if (outFinished) flags |= FLAG_END_STREAM;
-    frameHeader(streamId, length, type, flags);
-    sink.write(hpackBuffer, length);
+    acquire();
+    try {
+      if (closed) throw new IOException("closed");
+      hpackWriter.writeHeaders(headerBlock);
 
-    if (byteCount > length) writeContinuationFrames(streamId, byteCount - length);
+      long byteCount = hpackBuffer.size();
+      int length = (int) Math.min(maxFrameSize, byteCount);
+      byte type = TYPE_HEADERS;
+      byte flags = byteCount == length ? FLAG_END_HEADERS : 0;
+      if (outFinished) flags |= FLAG_END_STREAM;
+      frameHeader(streamId, length, type, flags);
+      sink.write(hpackBuffer, length);
+
+      if (byteCount > length) writeContinuationFrames(streamId, byteCount - length);
+    } finally {
+      release();
+    }
   }
 }
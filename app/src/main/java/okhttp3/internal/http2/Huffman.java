@@ -15,9 +15,9 @@
  */
 package okhttp3.internal.http2;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import okio.BufferedSink;
+import okio.BufferedSource;
 import okio.ByteString;
 
 /**
@@ -82,10 +82,24 @@ class Huffman {
     return INSTANCE;
   }
 
-  private final Node root = new Node();
+  /** The symbol that marks the end of a string. It must not appear in encoded strings. */
+  private static final int EOS = 256;
+  private static final int EOS_CODE = 0x3fffffff;
+  private static final int EOS_CODE_LENGTH = 30;
+
+  /** The number of internal nodes in the code tree, one fewer than the number of symbols. */
+  private static final int STATE_COUNT = 256;
+
+  // Decoder transitions pack the next state in bits 0-7, the emitted symbol in bits 8-15, and flags.
+  private static final int FLAG_EMIT = 1 << 16;
+  private static final int FLAG_ACCEPT = 1 << 17;
+  private static final int FLAG_FAIL = 1 << 18;
+
+  /** Transitions of the decoder, indexed by state and the next 4 bits of input. */
+  private final int[] transitions = new int[STATE_COUNT * 16];
 
   private Huffman() {
-    buildTree();
+    buildDecodeTable();
   }
 
   void encode(ByteString data, BufferedSink sink) throws IOException {
@@ -125,103 +139,86 @@ class Huffman {
     return (int) ((len + 7) >> 3);
   }
 
-  byte[] decode(byte[] buf) {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    Node node = root;
-    int current = 0;
-    int nbits = 0;
-    for (int i = 0; i < buf.length; i++) {
-      int b = buf[i] & 0xFF;
-      current = (current << 8) | b;
-      nbits += 8;
-      while (nbits >= 8) {
-        int c = (current >>> (nbits - 8)) & 0xFF;
-        node = node.children[c];
-        if (node.children == null) {
-          // terminal node
-          baos.write(node.symbol);
-          nbits -= node.terminalBits;
-          node = root;
-        } else {
-          // non-terminal node
-          nbits -= 8;
-        }
-      }
-    }
-
-    while (nbits > 0) {
-      int c = (current << (8 - nbits)) & 0xFF;
-      node = node.children[c];
-      if (node.children != null || node.terminalBits > nbits) {
-        break;
-      }
-      baos.write(node.symbol);
-      nbits -= node.terminalBits;
-      node = root;
+  /**
+   * Decodes {@code byteCount} Huffman-encoded bytes from {@code source} into {@code sink}. Throws if
+   * the input contains the EOS symbol or ends with padding that isn't a prefix of EOS.
+   */
+  void decode(BufferedSource source, long byteCount, BufferedSink sink) throws IOException {
+    byte[] input = source.readByteArray(byteCount);
+    // Codes are at least 5 bits, so the output is at most 8/5 the size of the input.
+    byte[] output = new byte[input.length * 8 / 5];
+    int outputSize = 0;
+
+    int state = 0;
+    boolean accept = true;
+    for (byte b : input) {
+      int high = transitions[state << 4 | (b >>> 4) & 0x0F];
+      if ((high & FLAG_EMIT) != 0) output[outputSize++] = (byte) (high >>> 8);
+      state = high & 0xFF;
+
+      int low = transitions[state << 4 | b & 0x0F];
+      if ((low & FLAG_EMIT) != 0) output[outputSize++] = (byte) (low >>> 8);
+      state = low & 0xFF;
+
+      if (((high | low) & FLAG_FAIL) != 0) throw new IOException("Huffman string contains EOS");
+      accept = (low & FLAG_ACCEPT) != 0;
     }
 
-    return baos.toByteArray();
-  }
-
-  private void buildTree() {
-    for (int i = 0; i < CODE_LENGTHS.length; i++) {
-      addCode(i, CODES[i], CODE_LENGTHS[i]);
-    }
+    if (!accept) throw new IOException("Huffman string has invalid padding");
+    sink.write(output, 0, outputSize);
   }
 
-  private void addCode(int sym, int code, byte len) {
-    Node terminal = new Node(sym, len);
-
-    Node current = root;
-    while (len > 8) {
-      len -= 8;
-      int i = ((code >>> len) & 0xFF);
-      if (current.children == null) {
-        throw new IllegalStateException("invalid dictionary: prefix not unique");
-      }
-      if (current.children[i] == null) {
-        current.children[i] = new Node();
+  /**
+   * Builds the decoder's state machine from the code table. Each state is an internal node of the
+   * code tree, with the root as state 0. Codes are at least 5 bits, so a 4-bit step emits at most
+   * one symbol.
+   */
+  private void buildDecodeTable() {
+    // Leaves are stored as ~symbol, internal nodes as their index. 0 means no child yet.
+    int[][] children = new int[STATE_COUNT][2];
+    int nodeCount = 1;
+    for (int symbol = 0; symbol <= EOS; symbol++) {
+      int code = symbol == EOS ? EOS_CODE : CODES[symbol];
+      int length = symbol == EOS ? EOS_CODE_LENGTH : CODE_LENGTHS[symbol];
+      int node = 0;
+      for (int bit = length - 1; bit > 0; bit--) {
+        int b = (code >>> bit) & 1;
+        if (children[node][b] < 0) {
+          throw new IllegalStateException("invalid dictionary: prefix not unique");
+        }
+        if (children[node][b] == 0) children[node][b] = nodeCount++;
+        node = children[node][b];
       }
-      current = current.children[i];
+      children[node][code & 1] = ~symbol;
     }
+    if (nodeCount != STATE_COUNT) throw new IllegalStateException("invalid dictionary");
 
-    int shift = 8 - len;
-    int start = (code << shift) & 0xFF;
-    int end = 1 << shift;
-    for (int i = start; i < start + end; i++) {
-      current.children[i] = terminal;
+    // A string may end in any state reached by up to 7 one bits, which is a prefix of EOS.
+    boolean[] accepting = new boolean[STATE_COUNT];
+    for (int node = 0, depth = 0; depth < 8; node = children[node][1], depth++) {
+      accepting[node] = true;
     }
-  }
-
-  private static final class Node {
-
-    // Null if terminal.
-    final Node[] children;
-
-    // Terminal nodes have a symbol.
-    final int symbol;
 
-    // Number of bits represented in the terminal node.
-    final int terminalBits;
-
-    /** Construct an internal node. */
-    Node() {
-      this.children = new Node[256];
-      this.symbol = 0; // Not read.
-      this.terminalBits = 0; // Not read.
-    }
-
-    /**
-     * Construct a terminal node.
-     *
-     * @param symbol symbol the node represents
-     * @param bits length of Huffman code in bits
-     */
-    Node(int symbol, int bits) {
-      this.children = null;
-      this.symbol = symbol;
-      int b = bits & 0x07;
-      this.terminalBits = b == 0 ? 8 : b;
+    for (int state = 0; state < STATE_COUNT; state++) {
+      for (int nibble = 0; nibble < 16; nibble++) {
+        int node = state;
+        int entry = 0;
+        for (int bit = 3; bit >= 0; bit--) {
+          int next = children[node][(nibble >>> bit) & 1];
+          if (next >= 0) {
+            node = next;
+          } else if (~next == EOS) {
+            entry |= FLAG_FAIL;
+            node = 0;
+            break;
+          } else {
+            entry |= FLAG_EMIT | (~next << 8);
+            node = 0;
+          }
+        }
+        if (accepting[node]) entry |= FLAG_ACCEPT;
+        transitions[state << 4 | nibble] = entry | node;
+      }
     }
   }
 }
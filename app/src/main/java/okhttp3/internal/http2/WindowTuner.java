@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.http2;
+
+import static okhttp3.internal.http2.Settings.DEFAULT_INITIAL_WINDOW_SIZE;
+
+/**
+ * Sizes the receive windows of one HTTP/2 connection to its bandwidth-delay product. While data is
+ * arriving a PING is kept in flight. The bytes that arrive before its ACK measure throughput, and
+ * the round trip measures latency. When their product fills most of the current window, the window
+ * is doubled, up to {@link #MAX_WINDOW}.
+ *
+ * <p>The connections of a client share a {@linkplain Http2Resources memory limit}. Each stream's
+ * window is at most an equal share of it, which bounds the bytes buffered across the client's
+ * streams. Windows shrink by sending smaller window
+ * updates. Bytes already granted to the peer can't be taken back, so shrinking takes effect as the
+ * application consumes them.
+ *
+ * <p>A PING that isn't acknowledged within {@link #PING_TIMEOUT_NANOS} is abandoned, and the next
+ * data to arrive sends another. Each PING carries a sequence number so a late acknowledgement of an
+ * abandoned PING isn't mistaken for the current one.
+ *
+ * <p>Instances are guarded by their connection's lock. Streams read their window without it.
+ */
+final class WindowTuner {
+  /**
+   * The initial window of streams and connections opened by clients. This was 16 MiB before windows
+   * were tuned; streams now start smaller and grow once the bandwidth-delay product is measured.
+   */
+  static final int INITIAL_WINDOW = 1024 * 1024;
+
+  /** Windows never grow beyond this. */
+  static final long MAX_WINDOW = 16 * 1024 * 1024;
+
+  /** Windows never shrink below the protocol's default, which every peer must be able to use. */
+  static final long MIN_WINDOW = DEFAULT_INITIAL_WINDOW_SIZE;
+
+  /** How long to wait for a PING to be acknowledged before sending another. */
+  static final long PING_TIMEOUT_NANOS = 5_000_000_000L; // 5 seconds.
+
+  private final Http2Resources resources;
+  private volatile long bdpWindow;
+  private boolean pingInFlight;
+  private int pingSequence;
+  private long pingSentAtNanos;
+  private long bytesSincePing;
+  private long smoothedRttNanos = -1L;
+
+  WindowTuner(Http2Resources resources, long initialWindow) {
+    this.resources = resources;
+    this.bdpWindow = initialWindow;
+  }
+
+  void streamsOpened(int count) {
+    resources.openStreams.addAndGet(count);
+  }
+
+  void streamsClosed(int count) {
+    resources.openStreams.addAndGet(-count);
+  }
+
+  /**
+   * Returns the sequence number of a PING that the caller should send to measure the
+   * bandwidth-delay product, or -1 if none should be sent.
+   */
+  int dataReceived(long byteCount, long now) {
+    if (pingInFlight && now - pingSentAtNanos < PING_TIMEOUT_NANOS) {
+      bytesSincePing += byteCount;
+      return -1;
+    }
+    pingInFlight = true;
+    pingSequence = (pingSequence + 1) & Integer.MAX_VALUE;
+    pingSentAtNanos = now;
+    bytesSincePing = 0L;
+    return pingSequence;
+  }
+
+  void pingAcknowledged(int sequence, long now) {
+    if (!pingInFlight || sequence != pingSequence) return;
+    pingInFlight = false;
+
+    long rttNanos = Math.max(1L, now - pingSentAtNanos);
+    smoothedRttNanos = smoothedRttNanos == -1L
+        ? rttNanos
+        : smoothedRttNanos + (rttNanos - smoothedRttNanos) / 8;
+
+    double bytesPerNano = (double) bytesSincePing / rttNanos;
+    long bandwidthDelayProduct = (long) (bytesPerNano * smoothedRttNanos);
+    if (bandwidthDelayProduct >= bdpWindow * 2 / 3 && bdpWindow < MAX_WINDOW) {
+      bdpWindow = Math.min(MAX_WINDOW, bandwidthDelayProduct * 2);
+    }
+  }
+
+  /** Returns the window that each stream should have. */
+  long streamWindow() {
+    long share = resources.receiveMemoryLimit / Math.max(1, resources.openStreams.get());
+    return Math.max(MIN_WINDOW, Math.min(bdpWindow, share));
+  }
+
+  /** Returns the window that a connection carrying {@code streamCount} streams should have. */
+  long connectionWindow(int streamCount) {
+    return Math.min(MAX_WINDOW * 4, streamWindow() * Math.max(1, streamCount));
+  }
+}
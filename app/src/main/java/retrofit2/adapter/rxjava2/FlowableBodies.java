@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2019 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package retrofit2.adapter.rxjava2;
+
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.internal.Internal;
+import okhttp3.internal.connection.Exchange;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import org.reactivestreams.Publisher;
+
+/**
+ * Streams HTTP bodies as {@link Flowable flowables} of byte chunks, so that bodies of any size
+ * flow through Rx operators in bounded memory.
+ *
+ * <p>Response bodies are read only as fast as subscribers request chunks. Each request reads at
+ * most {@link #CHUNK_SIZE} bytes into Okio's pooled segments, and emits them as a {@link
+ * ByteString}. Reads block and run on the thread that requests, so subscribe on an I/O scheduler.
+ */
+public final class FlowableBodies {
+  /** The most bytes emitted in one chunk. This is the size of an Okio segment. */
+  static final long CHUNK_SIZE = 8192L;
+
+  /** The number of chunks that a request body buffers ahead of the network. */
+  static final int REQUEST_PREFETCH = 4;
+
+  private FlowableBodies() {
+  }
+
+  /**
+   * Returns the body of {@code response} as a flowable. Cancelling the subscription cancels the
+   * response's exchange, which interrupts a blocked read, and closes the body. The body is also
+   * closed when it is exhausted or fails. It may be subscribed to only once.
+   */
+  public static Flowable<ByteString> responseBody(Response response) {
+    ResponseBody body = response.body();
+    if (body == null) throw new IllegalArgumentException("response has no body: " + response);
+    Exchange exchange = Internal.instance.exchange(response);
+    Flowable<ByteString> result = responseBody(body);
+    return exchange != null ? result.doOnCancel(exchange::cancel) : result;
+  }
+
+  /**
+   * Returns {@code body} as a flowable. Cancelling the subscription closes the body once any read
+   * in progress returns. Prefer {@link #responseBody(Response)}, which also interrupts that read.
+   * The body may be subscribed to only once.
+   */
+  public static Flowable<ByteString> responseBody(ResponseBody body) {
+    AtomicBoolean subscribed = new AtomicBoolean();
+    return Flowable.generate(
+        () -> {
+          if (!subscribed.compareAndSet(false, true)) {
+            throw new IllegalStateException("response body already subscribed");
+          }
+          return body.source();
+        },
+        (source, emitter) -> {
+          Buffer chunk = new Buffer();
+          if (source.read(chunk, CHUNK_SIZE) == -1L) {
+            emitter.onComplete();
+          } else {
+            emitter.onNext(chunk.readByteString());
+          }
+        },
+        BufferedSource::close);
+  }
+
+  /**
+   * Returns a request body that writes the chunks of {@code content}. Chunks are requested as the
+   * network consumes them, with at most {@link #REQUEST_PREFETCH} chunks buffered. The body is one
+   * shot: {@code content} is subscribed to when the body is written and never again.
+   *
+   * @param contentLength the number of bytes {@code content} will emit, or -1 if unknown.
+   */
+  public static RequestBody requestBody(@Nullable MediaType contentType, long contentLength,
+      Publisher<ByteString> content) {
+    return new RequestBody() {
+      @Override public @Nullable MediaType contentType() {
+        return contentType;
+      }
+
+      @Override public long contentLength() {
+        return contentLength;
+      }
+
+      @Override public boolean isOneShot() {
+        return true;
+      }
+
+      @Override public void writeTo(BufferedSink sink) throws IOException {
+        Iterator<ByteString> chunks = Flowable.fromPublisher(content)
+            .blockingIterable(REQUEST_PREFETCH)
+            .iterator();
+        try {
+          while (chunks.hasNext()) {
+            sink.write(chunks.next());
+          }
+        } catch (RuntimeException e) {
+          // Blocking iteration wraps checked exceptions. Unwrap the ones writeTo() may throw.
+          if (e.getClass() == RuntimeException.class && e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw e;
+        } finally {
+          ((Disposable) chunks).dispose(); // Cancels the subscription if the sink failed.
+        }
+      }
+    };
+  }
+}